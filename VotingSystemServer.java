@@ -1,23 +1,168 @@
 import java.io.*;
+import java.math.BigDecimal;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class VotingSystemServer {
-    private static final int PORT = 8080;
+    private static final int PORT = Integer.getInteger("voting.server.port", 8080);
     private static final String VOTERS_FILE = "voters.csv";
     private static final String CANDIDATES_FILE = "candidates.csv";
+    // Pre-sharding single votes file, split into VOTES_DIR on first start
     private static final String VOTES_FILE = "votes.csv";
+    private static final String VOTES_DIR = "votes";
     private static final String SECTIONS_FILE = "sections.csv";
+    private static final String SNAPSHOT_FILE = "voting.snapshot";
     
-    // In-memory storage for quick access
-    private static Map<String, Voter> voters = new ConcurrentHashMap<>();
+    // Vote journal group commit tuning (-Dvoting.journal.flushIntervalMs=..., -Dvoting.journal.maxBatch=...)
+    private static final long JOURNAL_FLUSH_INTERVAL_MS = Long.getLong("voting.journal.flushIntervalMs", 2);
+    private static final int JOURNAL_MAX_BATCH = Integer.getInteger("voting.journal.maxBatch", 512);
+    private static final long JOURNAL_ACK_TIMEOUT_MS = Long.getLong("voting.journal.ackTimeoutMs", 10000);
+    
+    // Durability per table (-Dvoting.persist.voters=sync|group|async, likewise candidates, sections and votes):
+    // sync acknowledges after the table's own fsync, group after one shared by the changes of a window,
+    // async at once, with the write following within the async window
+    private static final String PERSIST_VOTERS = Persistence.mode("voters", System.getProperty("voting.persist.voters", "group"));
+    private static final String PERSIST_CANDIDATES = Persistence.mode("candidates", System.getProperty("voting.persist.candidates", "group"));
+    private static final String PERSIST_SECTIONS = Persistence.mode("sections", System.getProperty("voting.persist.sections", "group"));
+    private static final String PERSIST_VOTES = Persistence.mode("votes", System.getProperty("voting.persist.votes", "group"));
+    private static final long PERSIST_GROUP_WINDOW_MS = Long.getLong("voting.persist.groupWindowMs", 10);
+    private static final long PERSIST_ASYNC_FLUSH_MS = Long.getLong("voting.persist.asyncFlushMs", 200);
+    // Votes use the journal's own window in group mode
+    private static final long VOTES_FLUSH_MS = PERSIST_VOTES.equals(Persistence.SYNC) ? 0
+            : PERSIST_VOTES.equals(Persistence.ASYNC) ? PERSIST_ASYNC_FLUSH_MS : JOURNAL_FLUSH_INTERVAL_MS;
+    
+    // Server engine (-Dvoting.server.engine=blocking|nio)
+    private static final String ENGINE = System.getProperty("voting.server.engine", "blocking");
+    
+    // HTTP/1.1 persistent connections
+    private static final int HTTP_IDLE_TIMEOUT_MS = Integer.getInteger("voting.http.idleTimeoutMs", 5000);
+    // Once a request's first byte arrives, all of its headers and body must follow within this long
+    private static final int HTTP_REQUEST_TIMEOUT_MS = Integer.getInteger("voting.http.requestTimeoutMs", 10000);
+    private static final int HTTP_MAX_REQUESTS_PER_CONNECTION = Integer.getInteger("voting.http.maxRequests", 100);
+    
+    // Request parser limits
+    private static final int HTTP_MAX_HEADERS = Integer.getInteger("voting.http.maxHeaders", 64);
+    private static final int HTTP_MAX_HEADER_BYTES = Integer.getInteger("voting.http.maxHeaderBytes", 8192);
+    private static final int HTTP_MAX_BODY_BYTES = Integer.getInteger("voting.http.maxBodyBytes", 1 << 20);
+    // Bulk import endpoints take whole rolls in one body
+    private static final int HTTP_MAX_BULK_BODY_BYTES = Integer.getInteger("voting.http.maxBulkBodyBytes", 64 << 20);
+    
+    // Binary snapshot for fast restarts (-Dvoting.snapshot.intervalMs=0 writes it only on shutdown)
+    private static final long SNAPSHOT_INTERVAL_MS = Long.getLong("voting.snapshot.intervalMs", 60000);
+    // Also time a full CSV parse at startup and print both (-Dvoting.snapshot.compare=true)
+    private static final boolean SNAPSHOT_COMPARE = Boolean.getBoolean("voting.snapshot.compare");
+    
+    // Live results stream: updates are coalesced over one window and sent to every subscriber
+    private static final long SSE_WINDOW_MS = Long.getLong("voting.sse.windowMs", 250);
+    private static final long SSE_HEARTBEAT_MS = Long.getLong("voting.sse.heartbeatMs", 15000);
+    // A subscriber that cannot take events for this long is disconnected
+    private static final long SSE_DROP_AFTER_MS = Long.getLong("voting.sse.dropAfterMs", 30000);
+    private static final int SSE_MAX_QUEUED_BYTES = Integer.getInteger("voting.sse.maxQueuedBytes", 64 * 1024);
+    // On the blocking engine a stream holds a worker until the client leaves, so with a bounded
+    // pool only this share of the workers may be streaming; more subscribers get 503
+    private static final int SSE_BLOCKING_STREAMS_PERCENT = Integer.getInteger("voting.sse.blockingStreamsPercent", 10);
+    
+    // Static files at or below this size are held in memory (plus a gzipped copy)
+    private static final long STATIC_MAX_CACHED_BYTES = Long.getLong("voting.static.maxCachedBytes", 1 << 20);
+    
+    // Largest page served by ?limit= on list endpoints
+    private static final int MAX_PAGE_SIZE = Integer.getInteger("voting.api.maxPageSize", 1000);
+    // Most ballots a kiosk may send in one /api/vote/batch request
+    private static final int BATCH_MAX_BALLOTS = Integer.getInteger("voting.batch.maxBallots", 1000);
+    
+    // Connection execution (-Dvoting.server.executor=bounded|virtual|thread)
+    private static final String EXECUTOR_MODE = System.getProperty("voting.server.executor", "bounded");
+    private static final int WORKER_THREADS = Integer.getInteger("voting.server.workers", 200);
+    private static final int WORKER_QUEUE_CAPACITY = Integer.getInteger("voting.server.queueCapacity", 1000);
+    
+    // Admission control: queueing delay above the target for a whole interval sheds reads, then
+    // admin calls, with 503 + Retry-After; votes are never shed (-Dvoting.admission.targetMs=0 turns it off)
+    private static final long ADMISSION_TARGET_MS = Long.getLong("voting.admission.targetMs", 50);
+    private static final long ADMISSION_INTERVAL_MS = Long.getLong("voting.admission.intervalMs", 100);
+    // Share of a bounded worker pool that reads and admin calls together may not use
+    private static final int ADMISSION_VOTE_RESERVE_PERCENT = Integer.getInteger("voting.admission.voteReservePercent", 25);
+    
+    // Replication (-Dvoting.replication.role=standalone|primary|follower): a primary ships its changes
+    // to followers on the replication port; a follower serves reads from what it has applied
+    private static final String REPLICATION_ROLE = System.getProperty("voting.replication.role", "standalone");
+    private static final int REPLICATION_PORT = Integer.getInteger("voting.replication.port", 9090);
+    // Where a follower finds its primary's replication port
+    private static final String REPLICATION_PRIMARY = System.getProperty("voting.replication.primary", "localhost:9090");
+    // Change log entries a primary keeps for reconnecting followers; one further behind is sent a full copy
+    private static final int REPLICATION_LOG_CAPACITY = Integer.getInteger("voting.replication.logCapacity", 1 << 18);
+    private static final long REPLICATION_HEARTBEAT_MS = Long.getLong("voting.replication.heartbeatMs", 1000);
+    
+    // In-memory storage for quick access; each section's votes are sorted by voter ID for cursor paging,
+    // and voters are held by column and paged through the published roll
+    private static final VoterRegistry voters = new VoterRegistry();
     private static Map<Long, Candidate> candidates = new ConcurrentHashMap<>();
-    private static Map<String, Vote> votes = new ConcurrentHashMap<>();
+    private static VoteStore voteStore = new VoteStore(Paths.get(VOTES_DIR), VOTES_FLUSH_MS, JOURNAL_MAX_BATCH);
     private static Map<Long, VotingSection> sections = new ConcurrentHashMap<>();
+    // Who has voted in which section; the check-and-record step for a ballot
+    private static final BallotLedger ballots = new BallotLedger();
     private static AtomicLong candidateIdCounter = new AtomicLong(1);
     private static AtomicLong sectionIdCounter = new AtomicLong(1);
+    private static final VoteTally tally = new VoteTally();
+    // Candidates by section and ballots per candidate, kept in step with the tables above
+    private static final CandidateIndex candidateIndex = new CandidateIndex();
+    // The CSV tables, each rewritten whole by the persistence thread
+    private static final Persistence persistence = new Persistence(PERSIST_GROUP_WINDOW_MS, PERSIST_ASYNC_FLUSH_MS);
+    private static final Persistence.Table votersTable = persistence.table("voters", VOTERS_FILE, PERSIST_VOTERS, VotingSystemServer::writeVoters);
+    private static final Persistence.Table candidatesTable = persistence.table("candidates", CANDIDATES_FILE, PERSIST_CANDIDATES, VotingSystemServer::writeCandidates);
+    private static final Persistence.Table sectionsTable = persistence.table("sections", SECTIONS_FILE, PERSIST_SECTIONS, VotingSystemServer::writeSections);
+    // Immutable copies the list endpoints serialize from; writers publish after each change, then bump dataVersions
+    private static final PublishedView<CatalogView> catalogView = new PublishedView<>(CatalogView::build);
+    private static final PublishedView<VoterRegistry.Roll> voterView = new PublishedView<>(voters::roll);
+    private static final DataVersions dataVersions = new DataVersions();
+    private static final ResultsFeed resultsFeed = new ResultsFeed(SSE_WINDOW_MS, SSE_HEARTBEAT_MS, SSE_DROP_AFTER_MS);
+    private static ConnectionExecutor connectionExecutor;
+    // Replaced in main once the worker pool size is known
+    private static AdmissionControl admission = new AdmissionControl(ADMISSION_TARGET_MS, ADMISSION_INTERVAL_MS, 0);
+    // Records nothing unless this server is a primary
+    private static final ChangeLog changeLog = new ChangeLog(REPLICATION_LOG_CAPACITY, REPLICATION_HEARTBEAT_MS);
+    // Set when this server is a follower
+    private static Follower follower;
     
     // Admin credentials
     private static final String ADMIN_USERNAME = "admin";
@@ -26,8 +171,71 @@ public class VotingSystemServer {
     public static void main(String[] args) {
         System.out.println("Starting Voting System Server on port " + PORT);
         
-        // Load existing data from CSV files
-        loadDataFromCSV();
+        if (REPLICATION_ROLE.equals("follower")) {
+            // A follower keeps no files of its own; everything it serves comes from the primary
+            follower = Follower.create(REPLICATION_PRIMARY, REPLICATION_HEARTBEAT_MS);
+            follower.start();
+            System.out.println("Following primary at " + REPLICATION_PRIMARY + "; writes are refused");
+        } else {
+            // Load existing data from the snapshot, or from the CSV files when it is missing or stale
+            loadData();
+            
+            // Votes are appended to their section's journal instead of rewriting a file per ballot
+            try {
+                voteStore.open();
+            } catch (IOException e) {
+                System.err.println("Unable to open vote journals: " + e.getMessage());
+                return;
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                // Async tables are written out first, so the snapshot records their final files
+                persistence.close();
+                // The snapshot marks the journals, so it has to be written before they close
+                saveSnapshot();
+                voteStore.close();
+            }));
+            if (SNAPSHOT_INTERVAL_MS > 0) {
+                ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "snapshot-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                snapshotter.scheduleWithFixedDelay(VotingSystemServer::saveSnapshot,
+                        SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+            
+            if (REPLICATION_ROLE.equals("primary")) {
+                try {
+                    changeLog.start(REPLICATION_PORT, PORT);
+                } catch (IOException e) {
+                    System.err.println("Unable to open replication port " + REPLICATION_PORT + ": " + e.getMessage());
+                    return;
+                }
+                System.out.println("Shipping changes to followers on port " + REPLICATION_PORT);
+            }
+        }
+        
+        resultsFeed.start();
+        
+        connectionExecutor = ConnectionExecutor.create(EXECUTOR_MODE, WORKER_THREADS, WORKER_QUEUE_CAPACITY);
+        System.out.println("Connection executor: " + connectionExecutor.describe());
+        int maxWorkers = connectionExecutor.getMaxWorkers();
+        // Blocking-engine streams pin workers outside admission, so they come out of the non-vote share
+        int streams = !ENGINE.equals("nio") && maxWorkers > 0 ? Math.max(1, maxWorkers * SSE_BLOCKING_STREAMS_PERCENT / 100) : 0;
+        if (streams > 0) QueuedEventSink.limit(streams);
+        admission = new AdmissionControl(ADMISSION_TARGET_MS, ADMISSION_INTERVAL_MS,
+                maxWorkers > 0 ? Math.max(1, maxWorkers * (100 - ADMISSION_VOTE_RESERVE_PERCENT) / 100 - streams) : 0);
+        System.out.println("Admission control: " + admission.describe());
+        
+        if (ENGINE.equals("nio")) {
+            System.out.println("Using NIO selector engine");
+            try {
+                new NioServer(PORT, connectionExecutor).run();
+            } catch (IOException e) {
+                System.err.println("Server error: " + e.getMessage());
+            }
+            return;
+        }
         
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
             System.out.println("Server started successfully!");
@@ -35,19 +243,88 @@ public class VotingSystemServer {
             
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                new Thread(new ClientHandler(clientSocket)).start();
+                connectionExecutor.submit(clientSocket);
             }
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
         }
     }
     
+    private static void loadData() {
+        long csvNanos = -1;
+        if (SNAPSHOT_COMPARE) {
+            long start = System.nanoTime();
+            loadDataFromCSV();
+            tally.rebuild(voteStore.parts());
+            ballots.rebuild(voteStore.shards());
+            candidateIndex.rebuild(candidates.values(), tally);
+            csvNanos = System.nanoTime() - start;
+            clearData();
+        }
+        
+        long start = System.nanoTime();
+        try {
+            voteStore.migrate(Paths.get(VOTES_FILE));
+        } catch (IOException e) {
+            System.err.println("Error splitting " + VOTES_FILE + " by section: " + e.getMessage());
+        }
+        String source = DataSnapshot.load(Paths.get(SNAPSHOT_FILE));
+        if (source == null) {
+            clearData();
+            loadDataFromCSV();
+            source = "CSV files";
+        }
+        tally.rebuild(voteStore.parts());
+        ballots.rebuild(voteStore.shards());
+        candidateIndex.rebuild(candidates.values(), tally);
+        publishViews();
+        long nanos = System.nanoTime() - start;
+        
+        System.out.println("Data loaded from " + source + " in " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms: " + voters.size() + " voters, " + candidates.size() + " candidates, " + voteStore.size() + " votes in " + voteStore.shards().size() + " shards, " + sections.size() + " sections");
+        if (csvNanos >= 0) {
+            System.out.println(String.format("Startup comparison: CSV parse %d ms, this start %d ms (%.1fx)",
+                    TimeUnit.NANOSECONDS.toMillis(csvNanos), TimeUnit.NANOSECONDS.toMillis(nanos), csvNanos / (double) Math.max(1, nanos)));
+        }
+    }
+    
+    /** Publishes fresh read views after the tables were loaded or replaced wholesale. */
+    private static void publishViews() {
+        catalogView.publish();
+        voterView.publish();
+    }
+    
     private static void loadDataFromCSV() {
         loadVoters();
         loadCandidates();
         loadVotes();
         loadSections();
-        System.out.println("Data loaded: " + voters.size() + " voters, " + candidates.size() + " candidates, " + votes.size() + " votes, " + sections.size() + " sections");
+    }
+    
+    private static void clearData() {
+        voters.clear();
+        candidates.clear();
+        candidateIndex.clear();
+        voteStore.clear();
+        ballots.clear();
+        sections.clear();
+        candidateIdCounter.set(1);
+        sectionIdCounter.set(1);
+    }
+    
+    /** Writes the binary snapshot if anything changed since the last one. */
+    private static synchronized void saveSnapshot() {
+        try {
+            long start = System.nanoTime();
+            if (DataSnapshot.write(Paths.get(SNAPSHOT_FILE), voteStore)) {
+                long elapsed = System.nanoTime() - start;
+                Metrics.snapshotWrite.record(elapsed);
+                System.out.println("Snapshot written in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+            }
+        } catch (IOException | ExecutionException e) {
+            System.err.println("Error writing snapshot: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
     
     private static void loadVoters() {
@@ -56,12 +333,10 @@ public class VotingSystemServer {
             while ((line = reader.readLine()) != null) {
                 String[] parts = line.split(",");
                 if (parts.length >= 4) {
-                    Voter voter = new Voter(parts[0], parts[1], Integer.parseInt(parts[2]), parts[3]);
-                    voters.put(voter.getVoterId(), voter);
+                    voters.put(new Voter(parts[0], parts[1], Integer.parseInt(parts[2]), parts[3]));
                 } else if (parts.length >= 2) {
                     // Backward compatibility for old format
-                    Voter voter = new Voter(parts[0], parts[1], 0, "Unknown");
-                    voters.put(voter.getVoterId(), voter);
+                    voters.put(new Voter(parts[0], parts[1], 0, "Unknown"));
                 }
             }
         } catch (IOException e) {
@@ -93,19 +368,34 @@ public class VotingSystemServer {
         }
     }
     
+    /** Replays the vote journal; a later record for the same voter replaces an earlier one. */
     private static void loadVotes() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(VOTES_FILE))) {
+        try {
+            voteStore.loadAll();
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error loading votes: " + e.getMessage());
+        }
+    }
+    
+    /** Replays journal records starting at a byte offset into sink and returns how many lines were read. */
+    private static long replayVotes(String fileName, long offset, Consumer<Vote> sink) throws IOException {
+        long records = 0;
+        try (FileInputStream in = new FileInputStream(fileName)) {
+            in.getChannel().position(offset);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
             String line;
             while ((line = reader.readLine()) != null) {
+                records++;
                 String[] parts = line.split(",");
                 // Support two formats:
                 // old: voterId,candidateId,timestamp
-                // new: voterId,candidateId,sectionId,timestamp
+                // new: voterId,candidateId,sectionId,timestamp[,idempotency key of a kiosk ballot]
                 if (parts.length >= 3) {
                     String voterId = parts[0];
                     long candidateId = 0;
                     long sectionId = 0;
                     String timestamp = "";
+                    String key = null;
                     try {
                         candidateId = Long.parseLong(parts[1]);
                     } catch (NumberFormatException ignore) {}
@@ -113,52 +403,92 @@ public class VotingSystemServer {
                     if (parts.length >= 4) {
                         try { sectionId = Long.parseLong(parts[2]); } catch (NumberFormatException ignore) {}
                         timestamp = parts[3];
+                        if (parts.length >= 5) key = parts[4];
                     } else {
                         // fallback
                         timestamp = parts[2];
                     }
 
-                    Vote vote = new Vote(voterId, candidateId, sectionId, timestamp);
-                    votes.put(vote.getVoterId(), vote);
+                    sink.accept(new Vote(voterId, candidateId, sectionId, timestamp, key));
                 }
             }
-        } catch (IOException e) {
-            System.out.println("No existing votes file found, starting fresh");
         }
+        return records;
     }
     
-    private static void saveVoters() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(VOTERS_FILE))) {
-            for (Voter voter : voters.values()) {
-                writer.println(voter.getVoterId() + "," + voter.getName() + "," + voter.getAge() + "," + voter.getGender());
-            }
-        } catch (IOException e) {
-            System.err.println("Error saving voters: " + e.getMessage());
+    private static boolean saveVoters() {
+        return persist(votersTable);
+    }
+    
+    private static boolean saveCandidates() {
+        return persist(candidatesTable);
+    }
+    
+    /**
+     * Queues a rewrite of the table and waits for it as long as the table's mode asks.
+     * False if the rewrite failed (or persistence is closed); the change stays in memory.
+     */
+    private static boolean persist(Persistence.Table table) {
+        long started = System.nanoTime();
+        try {
+            persistence.save(table).get();
+            return true;
+        } catch (ExecutionException e) {
+            // Already reported by save() or the persistence thread
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            Metrics.persisted(started);
         }
     }
     
-    private static void saveCandidates() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(CANDIDATES_FILE))) {
-            for (Candidate candidate : candidates.values()) {
-                // Write format: id,name,party,age,gender,sectionId
-                writer.println(candidate.getId() + "," + candidate.getName() + "," + candidate.getParty() + "," + candidate.getAge() + "," + candidate.getGender() + "," + candidate.getSectionId());
-            }
-        } catch (IOException e) {
-            System.err.println("Error saving candidates: " + e.getMessage());
+    private static void writeVoters(PrintWriter writer) {
+        VoterRegistry.Roll roll = voterView.get();
+        for (int i = 0; i < roll.size(); i++) {
+            Voter voter = roll.voter(i);
+            writer.println(voter.getVoterId() + "," + voter.getName() + "," + voter.getAge() + "," + voter.getGender());
+        }
+    }
+    
+    private static void writeCandidates(PrintWriter writer) {
+        for (Candidate candidate : candidates.values()) {
+            // Write format: id,name,party,age,gender,sectionId
+            writer.println(candidate.getId() + "," + candidate.getName() + "," + candidate.getParty() + "," + candidate.getAge() + "," + candidate.getGender() + "," + candidate.getSectionId());
         }
     }
     
-    private static void saveVotes() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(VOTES_FILE))) {
-            for (Vote vote : votes.values()) {
-                // Write format: voterId,candidateId,sectionId,timestamp
-                writer.println(vote.getVoterId() + "," + vote.getCandidateId() + "," + vote.getSectionId() + "," + vote.getTimestamp());
+    /**
+     * Waits for a journal write, unless votes are persisted async; then a failure is only logged.
+     * A record the writer has not picked up within the ack timeout is withdrawn and fails, so a
+     * stalled disk turns into errors rather than workers parked forever.
+     */
+    private static void awaitJournal(CompletableFuture<Void> written) throws InterruptedException, ExecutionException {
+        if (PERSIST_VOTES.equals(Persistence.ASYNC)) {
+            written.exceptionally(e -> {
+                System.err.println("Error journaling acknowledged votes: " + e.getMessage());
+                return null;
+            });
+            return;
+        }
+        try {
+            written.get(JOURNAL_ACK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (VoteJournal.withdraw(written)) {
+                throw new ExecutionException(new IOException("Vote journal did not write within " + JOURNAL_ACK_TIMEOUT_MS + " ms"));
             }
-        } catch (IOException e) {
-            System.err.println("Error saving votes: " + e.getMessage());
+            // The writer already holds the record; its write is under way, so see it through
+            written.get();
         }
     }
     
+    // Write format: voterId,candidateId,sectionId,timestamp
+    private static String formatVote(Vote vote) {
+        String line = vote.getVoterId() + "," + vote.getCandidateId() + "," + vote.getSectionId() + "," + vote.getTimestamp();
+        return vote.getKey() == null ? line + "\n" : line + "," + vote.getKey() + "\n";
+    }
+    
     private static void loadSections() {
         try (BufferedReader reader = new BufferedReader(new FileReader(SECTIONS_FILE))) {
             String line;
@@ -175,18 +505,20 @@ public class VotingSystemServer {
         }
     }
     
-    private static void saveSections() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(SECTIONS_FILE))) {
-            for (VotingSection section : sections.values()) {
-                writer.println(section.getId() + "," + section.getName() + "," + section.getDescription() + "," + section.getStartDate() + "," + section.getEndDate());
-            }
-        } catch (IOException e) {
-            System.err.println("Error saving sections: " + e.getMessage());
+    private static boolean saveSections() {
+        return persist(sectionsTable);
+    }
+    
+    private static void writeSections(PrintWriter writer) {
+        for (VotingSection section : sections.values()) {
+            writer.println(section.getId() + "," + section.getName() + "," + section.getDescription() + "," + section.getStartDate() + "," + section.getEndDate());
         }
     }
     
     static class ClientHandler implements Runnable {
         private Socket clientSocket;
+        // When the socket was handed to the executor; the wait for a worker is the first request's queueing delay
+        private final long acceptedNanos = System.nanoTime();
         
         public ClientHandler(Socket socket) {
             this.clientSocket = socket;
@@ -194,55 +526,99 @@ public class VotingSystemServer {
         
         @Override
         public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                 PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
-                // Read request line
-                String requestLine = in.readLine();
-                if (requestLine == null) {
-                    return;
-                }
-
-                // Read headers
-                Map<String, String> headers = new HashMap<>();
-                String line;
-                int contentLength = 0;
-                StringBuilder rawRequest = new StringBuilder();
-                rawRequest.append(requestLine).append("\r\n");
-                while ((line = in.readLine()) != null && !line.isEmpty()) {
-                    rawRequest.append(line).append("\r\n");
-                    int idx = line.indexOf(":");
-                    if (idx > 0) {
-                        String key = line.substring(0, idx).trim().toLowerCase();
-                        String value = line.substring(idx + 1).trim();
-                        headers.put(key, value);
-                        if (key.equals("content-length")) {
-                            try { contentLength = Integer.parseInt(value); } catch (NumberFormatException ignore) {}
+            long queueNanos = System.nanoTime() - acceptedNanos;
+            Metrics.activeConnections.increment();
+            try (InputStream in = clientSocket.getInputStream();
+                 OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream())) {
+                clientSocket.setSoTimeout(HTTP_IDLE_TIMEOUT_MS);
+                HttpRequestParser parser = new HttpRequestParser(HTTP_MAX_HEADERS, HTTP_MAX_HEADER_BYTES, HTTP_MAX_BODY_BYTES,
+                                                         ClientHandler.BULK_PATHS, HTTP_MAX_BULK_BODY_BYTES);
+                HttpRequest request = new HttpRequest();
+                // Bytes [start, end) of buf are received but not yet parsed; pipelined requests wait here
+                byte[] buf = new byte[8192];
+                int start = 0;
+                int end = 0;
+                int served = 0;
+                // When the last read returned; a buffered request has been waiting since then
+                long readNanos = 0;
+                while (true) {
+                    int consumed;
+                    // Only time spent in the parser counts; waiting for the client's bytes does not
+                    long parseNanos = 0;
+                    // Set once part of a request is buffered, so a slow sender cannot hold this worker
+                    long deadline = 0;
+                    try {
+                        while (true) {
+                            long parseStart = System.nanoTime();
+                            consumed = parser.parse(buf, start, end, request);
+                            parseNanos += System.nanoTime() - parseStart;
+                            if (consumed >= 0) break;
+                            if (start > 0) {
+                                System.arraycopy(buf, start, buf, 0, end - start);
+                                end -= start;
+                                start = 0;
+                            }
+                            if (end == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                            int timeout = HTTP_IDLE_TIMEOUT_MS;
+                            if (end > start) {
+                                if (deadline == 0) deadline = System.currentTimeMillis() + HTTP_REQUEST_TIMEOUT_MS;
+                                long remaining = deadline - System.currentTimeMillis();
+                                if (remaining <= 0) {
+                                    Metrics.requestTimeouts.increment();
+                                    out.write(frame(REQUEST_TIMEOUT_RESPONSE, false));
+                                    out.flush();
+                                    return;
+                                }
+                                timeout = (int) Math.min(timeout, remaining);
+                            }
+                            clientSocket.setSoTimeout(timeout);
+                            int n;
+                            try {
+                                n = in.read(buf, end, buf.length - end);
+                            } catch (SocketTimeoutException e) {
+                                if (deadline == 0) throw e;
+                                Metrics.requestTimeouts.increment();
+                                out.write(frame(REQUEST_TIMEOUT_RESPONSE, false));
+                                out.flush();
+                                return;
+                            }
+                            if (n < 0) return;
+                            end += n;
+                            readNanos = System.nanoTime();
                         }
+                    } catch (HttpRequestParser.HttpParseException e) {
+                        Metrics.parseErrors.increment();
+                        out.write(frame(e.toResponse(), false));
+                        out.flush();
+                        return;
                     }
-                }
-                // Blank line between headers and body
-                rawRequest.append("\r\n");
+                    start += consumed;
+                    // The first request waited in the executor queue; a later one waited from when its
+                    // bytes were read, behind the requests pipelined ahead of it
+                    request.setQueueNanos(served == 0 ? queueNanos : System.nanoTime() - readNanos);
 
-                // Read body if present
-                String body = "";
-                if (contentLength > 0) {
-                    char[] buf = new char[contentLength];
-                    int read = 0;
-                    while (read < contentLength) {
-                        int r = in.read(buf, read, contentLength - read);
-                        if (r == -1) break;
-                        read += r;
-                    }
-                    body = new String(buf, 0, read);
-                    rawRequest.append(body);
+                    // Idle between requests this worker is still pinned; under load it goes back to the pool
+                    boolean keepAlive = request.isKeepAlive() && ++served < HTTP_MAX_REQUESTS_PER_CONNECTION
+                            && admission.keepAlive(connectionExecutor.getActiveWorkers());
+                    long handleStart = System.nanoTime();
+                    Response response = handleRequest(request);
+                    long writeStart = System.nanoTime();
+                    long persistNanos = Metrics.takePersisted();
+                    Metrics.RouteMetrics metrics = request.getMetrics();
+                    metrics.record(response.status(), parseNanos, writeStart - handleStart - persistNanos, persistNanos);
+                    keepAlive = response.writeTo(out, keepAlive, request.isHttp11());
+                    // Responses to pipelined requests already buffered go out in one flush
+                    if (!keepAlive || (start == end && in.available() == 0)) out.flush();
+                    // An event stream's write lasts as long as the subscription, so it is not a latency
+                    if (!response.isEventStream()) metrics.phases[Metrics.WRITE].record(System.nanoTime() - writeStart);
+                    if (!keepAlive) return;
                 }
-
-                String response = handleRequest(rawRequest.toString());
-                out.print(response);
-                out.flush();
+            } catch (SocketTimeoutException e) {
+                // Idle keep-alive connection; just close it
             } catch (IOException e) {
                 System.err.println("Client handler error: " + e.getMessage());
             } finally {
+                Metrics.activeConnections.decrement();
                 try {
                     clientSocket.close();
                 } catch (IOException e) {
@@ -251,163 +627,199 @@ public class VotingSystemServer {
             }
         }
         
-        private String handleRequest(String request) {
+        /**
+         * Adds Content-Length and Connection headers to a response built by the handlers,
+         * so the client can find the end of the body without us closing the socket.
+         */
+        static byte[] frame(String response, boolean keepAlive) {
+            int split = response.indexOf("\r\n\r\n");
+            String head = split < 0 ? response : response.substring(0, split);
+            byte[] body = split < 0 ? new byte[0] : response.substring(split + 4).getBytes(StandardCharsets.UTF_8);
+            byte[] headBytes = frameHead(head, body.length, keepAlive);
+            byte[] framed = Arrays.copyOf(headBytes, headBytes.length + body.length);
+            System.arraycopy(body, 0, framed, headBytes.length, body.length);
+            return framed;
+        }
+        
+        /** Status line and headers plus framing headers, ending with the blank line. */
+        static byte[] frameHead(String head, long contentLength, boolean keepAlive) {
+            if (head.contains("\r\nConnection: close")) {
+                keepAlive = false;
+                head = head.replace("\r\nConnection: close", "");
+            }
+            StringBuilder sb = new StringBuilder(head.length() + 96);
+            sb.append(head);
+            // 204 and 304 never carry a body, so they get no Content-Length
+            if (!head.startsWith("HTTP/1.1 204") && !head.startsWith("HTTP/1.1 304")) {
+                sb.append("\r\nContent-Length: ").append(contentLength);
+            }
+            if (keepAlive) {
+                sb.append("\r\nConnection: keep-alive");
+                sb.append("\r\nKeep-Alive: timeout=").append(HTTP_IDLE_TIMEOUT_MS / 1000);
+            } else {
+                sb.append("\r\nConnection: close");
+            }
+            sb.append("\r\n\r\n");
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        
+        // Routes whose request bodies may go up to HTTP_MAX_BULK_BODY_BYTES
+        static final Set<String> BULK_PATHS = new HashSet<>(Arrays.asList("/api/voter/bulk", "/api/candidate/bulk"));
+        
+        private static final String[] VOTER_COLUMNS = { "voterId", "name", "age", "gender" };
+        private static final String[] CANDIDATE_COLUMNS = { "name", "party", "age", "gender", "sectionId" };
+        private static final String[] BALLOT_COLUMNS = { "key", "voterId", "candidateId", "sectionId" };
+        
+        // Built once at class load; handlers get the ClientHandler so they can stay instance methods
+        private static final Router ROUTES = buildRoutes();
+        
+        private static Router buildRoutes() {
+            Router router = new Router();
+            router.addResponse("GET", "/api/voters", ClientHandler::getVoters);
+            router.add("GET", "/api/candidates", (h, req) -> h.getCandidates(longParam(req.queryParam("sectionId"))));
+            router.addResponse("GET", "/api/votes", ClientHandler::getVotes);
+            router.addResponse("GET", "/api/results", ClientHandler::getResults);
+            router.addResponse("GET", "/api/results/stream", ClientHandler::streamResults);
+            router.addResponse("GET", "/api/sections", ClientHandler::getSections);
+            router.add("GET", "/api/voter/{voterId}", (h, req) -> h.getVoter(req.getPathParam()));
+            router.add("GET", "/api/server/stats", (h, req) -> h.getServerStats());
+            router.addResponse("GET", "/api/metrics", (h, req) -> Response.bytes(METRICS_HEAD,
+                    Metrics.render().getBytes(StandardCharsets.UTF_8)));
+            router.add("GET", "/api/replication", (h, req) -> h.getReplication());
+            router.add("POST", "/api/voter/login", ClientHandler::loginVoter);
+            router.add("POST", "/api/admin/login", ClientHandler::loginAdmin);
+            router.add("POST", "/api/vote", ClientHandler::castVote);
+            router.add("POST", "/api/vote/batch", ClientHandler::castVoteBatch);
+            router.add("POST", "/api/voter/add", ClientHandler::addVoter);
+            router.add("POST", "/api/candidate/add", ClientHandler::addCandidate);
+            router.add("POST", "/api/voter/bulk", ClientHandler::importVoters);
+            router.add("POST", "/api/candidate/bulk", ClientHandler::importCandidates);
+            router.add("POST", "/api/voter/delete", ClientHandler::deleteVoter);
+            router.add("POST", "/api/candidate/delete", ClientHandler::deleteCandidate);
+            router.add("POST", "/api/sections/create", ClientHandler::createSection);
+            router.add("POST", "/api/sections/delete", ClientHandler::deleteSection);
+            return router;
+        }
+        
+        private static Long longParam(String value) {
+            if (value == null) return null;
+            try { return Long.parseLong(value); } catch (NumberFormatException ignore) { return null; }
+        }
+        
+        private Response handleRequest(HttpRequest request) {
             try {
-                String[] parts = request.split(" ");
-                if (parts.length < 2) {
-                    return "HTTP/1.1 400 Bad Request\r\n\r\nInvalid request";
-                }
-
-                String method = parts[0];
-                String path = parts[1];
+                String method = request.getMethod();
                 
                 if (method.equals("OPTIONS")) {
-                    return "HTTP/1.1 204 No Content\r\n" +
+                    return Response.of("HTTP/1.1 204 No Content\r\n" +
                            "Access-Control-Allow-Origin: *\r\n" +
                            "Access-Control-Allow-Methods: GET, POST, OPTIONS\r\n" +
-                           "Access-Control-Allow-Headers: Content-Type\r\n\r\n";
+                           "Access-Control-Allow-Headers: Content-Type\r\n\r\n");
+                }
+                Router.Route route = ROUTES.match(method, request);
+                if (route != null) {
+                    request.setMetrics(route.metrics);
+                    if (follower != null && route.admissionClass != AdmissionControl.EXEMPT) {
+                        Response refused = follower.refuse(route);
+                        if (refused != null) return refused;
+                    }
+                    return admitted(route.admissionClass, request, () -> route.handler.handle(this, request));
                 } else if (method.equals("GET")) {
-                    return handleGetRequest(path);
+                    return admitted(AdmissionControl.READ, request, () -> serveStaticFile(request));
                 } else if (method.equals("POST")) {
-                    return handlePostRequest(path, request);
+                    return Response.of("HTTP/1.1 404 Not Found\r\n\r\nEndpoint not found");
                 } else {
-                    return "HTTP/1.1 405 Method Not Allowed\r\n\r\nMethod not allowed";
+                    return Response.of("HTTP/1.1 405 Method Not Allowed\r\n\r\nMethod not allowed");
                 }
             } catch (Exception e) {
-                return "HTTP/1.1 500 Internal Server Error\r\n\r\n" + e.getMessage();
+                return Response.of("HTTP/1.1 500 Internal Server Error\r\n\r\n" + e.getMessage());
             }
         }
         
-        private String handleGetRequest(String path) {
-            // Support query params (e.g. /api/results?sectionId=1)
-            String query = null;
-            if (path.contains("?")) {
-                int idx = path.indexOf('?');
-                query = path.substring(idx + 1);
-                path = path.substring(0, idx);
+        // The change is made in memory, but the table rewrite that acknowledges it failed
+        static final String SAVE_FAILED_RESPONSE =
+                "HTTP/1.1 500 Internal Server Error\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                "{\"success\":false,\"message\":\"Change could not be saved\"}";
+        
+        static final String REQUEST_TIMEOUT_RESPONSE =
+                "HTTP/1.1 408 Request Timeout\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                "{\"success\":false,\"message\":\"Request not received in time\"}";
+        
+        // Runs the handler if admission control lets the request in, else sheds it with a fast 503
+        private static Response admitted(int admissionClass, HttpRequest request, java.util.function.Supplier<Response> handler) {
+            admission.observe(admissionClass, request.getQueueNanos());
+            if (!admission.tryAcquire(admissionClass)) {
+                return Response.of("HTTP/1.1 503 Service Unavailable\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n" +
+                                   "Retry-After: " + admission.retryAfterSeconds() + "\r\n\r\n" +
+                                   "{\"success\":false,\"message\":\"Server overloaded, retry later\"}");
             }
-
-            if (path.startsWith("/api/voters")) {
-                return getVoters();
-            } else if (path.startsWith("/api/candidates")) {
-                Long sectionId = null;
-                if (query != null) {
-                    String[] pairs = query.split("&");
-                    for (String p : pairs) {
-                        String[] kv = p.split("=");
-                        if (kv.length == 2 && kv[0].equals("sectionId")) {
-                            try { sectionId = Long.parseLong(kv[1]); } catch (NumberFormatException ignore) {}
-                        }
-                    }
-                }
-                return getCandidates(sectionId);
-            } else if (path.startsWith("/api/votes")) {
-                return getVotes();
-            } else if (path.startsWith("/api/results")) {
-                Long sectionId = null;
-                if (query != null) {
-                    String[] pairs = query.split("&");
-                    for (String p : pairs) {
-                        String[] kv = p.split("=");
-                        if (kv.length == 2 && kv[0].equals("sectionId")) {
-                            try { sectionId = Long.parseLong(kv[1]); } catch (NumberFormatException ignore) {}
-                        }
-                    }
-                }
-                return getResults(sectionId);
-            } else if (path.startsWith("/api/sections")) {
-                return getSections();
-            } else if (path.startsWith("/api/voter/")) {
-                String voterId = path.substring("/api/voter/".length());
-                return getVoter(voterId);
-            } else {
-                return serveStaticFile(path);
-            }
-        }
-        
-        private String handlePostRequest(String path, String request) {
-            String body = extractBody(request);
-            
-            if (path.equals("/api/voter/login")) {
-                return loginVoter(body);
-            } else if (path.equals("/api/admin/login")) {
-                return loginAdmin(body);
-            } else if (path.equals("/api/vote")) {
-                return castVote(body);
-            } else if (path.equals("/api/voter/add")) {
-                return addVoter(body);
-            } else if (path.equals("/api/candidate/add")) {
-                return addCandidate(body);
-            } else if (path.equals("/api/voter/delete")) {
-                return deleteVoter(body);
-            } else if (path.equals("/api/candidate/delete")) {
-                return deleteCandidate(body);
-            } else if (path.equals("/api/sections/create")) {
-                return createSection(body);
-            } else if (path.equals("/api/sections/delete")) {
-                return deleteSection(body);
-            } else {
-                return "HTTP/1.1 404 Not Found\r\n\r\nEndpoint not found";
+            try {
+                return handler.get();
+            } finally {
+                admission.release(admissionClass);
             }
         }
         
-        private String extractBody(String request) {
-            String[] lines = request.split("\r\n");
-            for (int i = 0; i < lines.length; i++) {
-                if (lines[i].isEmpty()) {
-                    StringBuilder body = new StringBuilder();
-                    for (int j = i + 1; j < lines.length; j++) {
-                        body.append(lines[j]);
-                        if (j < lines.length - 1) body.append("\r\n");
-                    }
-                    return body.toString();
+        private static final String METRICS_HEAD =
+                "HTTP/1.1 200 OK\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\nCache-Control: no-store";
+        
+        private static final String JSON_STREAM_HEAD =
+                "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *";
+        
+        /**
+         * Voters in voter ID order, written straight to the connection in chunks. With
+         * ?limit= the list stops after that many entries and ends with a nextCursor to pass
+         * back as ?after=; without it the whole roll is streamed. The roll is the published
+         * one, so a listing is never torn by voters added or deleted while it streams.
+         */
+        private Response getVoters(HttpRequest request) {
+            int limit = pageLimit(request.queryParam("limit"));
+            String after = request.queryParam("after");
+            VoterRegistry.Roll roll = voterView.get();
+            int from = after == null ? 0 : roll.firstAfter(after);
+            return Response.streaming(JSON_STREAM_HEAD, out -> {
+                Writer json = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192);
+                json.append("{\"voters\":[");
+                
+                boolean first = true;
+                int i = from;
+                int end = (int) Math.min(roll.size(), (long) from + limit);
+                for (; i < end; i++) {
+                    Voter voter = roll.voter(i);
+                    if (!first) json.append(",");
+                    boolean hasVoted = ballots.hasVoted(voter.getVoterId());
+                    json.append("{\"voterId\":\"").append(voter.getVoterId()).append("\",");
+                    json.append("\"name\":\"").append(voter.getName()).append("\",");
+                    json.append("\"age\":").append(String.valueOf(voter.getAge())).append(",");
+                    json.append("\"gender\":\"").append(voter.getGender()).append("\",");
+                    json.append("\"voted\":").append(String.valueOf(hasVoted));
+                    json.append("}");
+                    first = false;
                 }
-            }
-            return "";
+                json.append("]");
+                if (limit != Integer.MAX_VALUE) appendCursor(json, i < roll.size() && i > from ? roll.id(i - 1) : null);
+                json.append("}");
+                json.flush();
+            });
         }
         
-        private String getVoters() {
-            StringBuilder json = new StringBuilder();
-            json.append("HTTP/1.1 200 OK\r\n");
-            json.append("Content-Type: application/json\r\n");
-            json.append("Access-Control-Allow-Origin: *\r\n\r\n");
-            json.append("{\"voters\":[");
-            
-            boolean first = true;
-            for (Voter voter : voters.values()) {
-                if (!first) json.append(",");
-                boolean hasVoted = votes.containsKey(voter.getVoterId());
-                json.append("{\"voterId\":\"").append(voter.getVoterId()).append("\",");
-                json.append("\"name\":\"").append(voter.getName()).append("\",");
-                json.append("\"age\":").append(voter.getAge()).append(",");
-                json.append("\"gender\":\"").append(voter.getGender()).append("\",");
-                json.append("\"voted\":").append(hasVoted);
-                json.append("}");
-                first = false;
+        // No ?limit= means stream everything; otherwise clamp to [1, MAX_PAGE_SIZE]
+        private static int pageLimit(String value) {
+            if (value == null) return Integer.MAX_VALUE;
+            try {
+                return Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(value)));
+            } catch (NumberFormatException e) {
+                return MAX_PAGE_SIZE;
             }
-            json.append("]}");
-            return json.toString();
         }
-
-        private String getCandidates() {
-            StringBuilder json = new StringBuilder();
-            json.append("HTTP/1.1 200 OK\r\n");
-            json.append("Content-Type: application/json\r\n");
-            json.append("Access-Control-Allow-Origin: *\r\n\r\n");
-            json.append("{\"candidates\":[");
-
-            boolean first = true;
-            for (Candidate candidate : candidates.values()) {
-                if (!first) json.append(",");
-                json.append("{\"id\":").append(candidate.getId()).append(",");
-                json.append("\"name\":\"").append(candidate.getName()).append("\",");
-                json.append("\"party\":\"").append(candidate.getParty()).append("\",");
-                json.append("\"age\":").append(candidate.getAge()).append(",");
-                json.append("\"gender\":\"").append(candidate.getGender()).append("\"}");
-                first = false;
+        
+        private static void appendCursor(Writer json, String cursor) throws IOException {
+            json.append(",\"nextCursor\":");
+            if (cursor == null) {
+                json.append("null");
+            } else {
+                json.append("\"").append(cursor).append("\"");
             }
-            json.append("]}");
-            return json.toString();
         }
 
         private String getCandidates(Long sectionId) {
@@ -418,8 +830,9 @@ public class VotingSystemServer {
             json.append("{\"candidates\":[");
 
             boolean first = true;
-            for (Candidate candidate : candidates.values()) {
-                if (sectionId != null && sectionId > 0 && candidate.getSectionId() != sectionId) continue;
+            CatalogView view = catalogView.get();
+            Candidate[] listed = (sectionId != null && sectionId > 0) ? view.standing(sectionId) : view.candidates;
+            for (Candidate candidate : listed) {
                 if (!first) json.append(",");
                 json.append("{\"id\":").append(candidate.getId()).append(",");
                 json.append("\"name\":\"").append(candidate.getName()).append("\",");
@@ -434,99 +847,172 @@ public class VotingSystemServer {
             return json.toString();
         }
         
-        private String getResults(Long sectionId) {
-            Map<Long, Integer> voteCounts = new HashMap<>();
-            int total = 0;
-            for (Vote vote : votes.values()) {
-                if (sectionId != null && sectionId > 0) {
-                    if (vote.getSectionId() != sectionId) continue;
-                }
-                voteCounts.put(vote.getCandidateId(), voteCounts.getOrDefault(vote.getCandidateId(), 0) + 1);
-                total++;
+        private static final String JSON_CACHED_HEAD = JSON_STREAM_HEAD + "\r\nCache-Control: no-cache\r\nETag: ";
+        
+        // Serialized bodies keyed by section (0 = all sections), reused until their ETag changes
+        private static final VersionedCache<Long> RESULTS_CACHE = new VersionedCache<>();
+        private static final VersionedCache<Long> SECTIONS_CACHE = new VersionedCache<>();
+        
+        private static Response notModified(String etag) {
+            return Response.of("HTTP/1.1 304 Not Modified\r\nETag: " + etag +
+                               "\r\nCache-Control: no-cache\r\nAccess-Control-Allow-Origin: *\r\n\r\n");
+        }
+        
+        /**
+         * Results for ?sectionId=, or across all sections. An unchanged poll is answered
+         * with 304 from the version counters alone; otherwise the body is reused from the
+         * cache while its version is current and only rebuilt after a change.
+         */
+        private Response getResults(HttpRequest request) {
+            Long sectionId = longParam(request.queryParam("sectionId"));
+            // Section 0 / missing means results across every section
+            Long scope = (sectionId != null && sectionId > 0) ? sectionId : null;
+            String etag = dataVersions.resultsTag(scope);
+            if (request.matchesETag(etag)) return notModified(etag);
+            
+            byte[] body;
+            if (scope == null || catalogView.get().hasSection(scope)) {
+                body = RESULTS_CACHE.get(scope == null ? 0L : scope, etag, () -> resultsJson(scope));
+            } else {
+                // Not cached, so arbitrary section IDs cannot grow the cache
+                body = resultsJson(scope).getBytes(StandardCharsets.UTF_8);
             }
-
+            return Response.bytes(JSON_CACHED_HEAD + etag, body);
+        }
+        
+        /**
+         * Live results for ?sectionId= (or all sections) as Server-Sent Events: a snapshot
+         * first, then deltas with the new counts of candidates that received votes.
+         */
+        private Response streamResults(HttpRequest request) {
+            Long sectionId = longParam(request.queryParam("sectionId"));
+            Long scope = (sectionId != null && sectionId > 0) ? sectionId : null;
+            // Subscriptions are keyed by section, so only real sections may open one
+            if (scope != null && !sections.containsKey(scope)) {
+                return Response.of("HTTP/1.1 404 Not Found\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                                   "{\"success\":false,\"message\":\"Section not found\"}");
+            }
+            return Response.events("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nAccess-Control-Allow-Origin: *",
+                                   sink -> resultsFeed.subscribe(scope, sink));
+        }
+        
+        // totalVotes is the sum of the counts listed, read once from the tally
+        private String resultsJson(Long scope) {
+            CatalogView view = catalogView.get();
+            long[] counts = view.counts(scope);
             StringBuilder json = new StringBuilder();
-            json.append("HTTP/1.1 200 OK\r\n");
-            json.append("Content-Type: application/json\r\n");
-            json.append("Access-Control-Allow-Origin: *\r\n\r\n");
             json.append("{\"candidates\":[");
 
             boolean first = true;
-            for (Candidate candidate : candidates.values()) {
+            for (int i = 0; i < view.candidates.length; i++) {
+                Candidate candidate = view.candidates[i];
                 if (!first) json.append(",");
-                int voteCount = voteCounts.getOrDefault(candidate.getId(), 0);
                 json.append("{\"name\":\"").append(candidate.getName()).append("\",");
                 json.append("\"party\":\"").append(candidate.getParty()).append("\",");
-                json.append("\"votes\":").append(voteCount).append("}");
+                json.append("\"votes\":").append(counts[i]).append("}");
                 first = false;
             }
-            json.append("],\"totalVotes\":").append(total);
-            json.append(",\"totalCandidates\":").append(candidates.size());
+            json.append("],\"totalVotes\":").append(CatalogView.total(counts));
+            json.append(",\"totalCandidates\":").append(view.candidates.length);
             json.append("}");
             return json.toString();
         }
 
-        private String getVotes() {
-            StringBuilder json = new StringBuilder();
-            json.append("HTTP/1.1 200 OK\r\n");
-            json.append("Content-Type: application/json\r\n");
-            json.append("Access-Control-Allow-Origin: *\r\n\r\n");
-            json.append("{\"votes\":[");
-
-            boolean first = true;
-            for (Vote vote : votes.values()) {
-                if (!first) json.append(",");
-                json.append("{\"voterId\":\"").append(vote.getVoterId()).append("\",");
-                json.append("\"candidateId\":").append(vote.getCandidateId()).append(",");
-                json.append("\"sectionId\":").append(vote.getSectionId()).append(",");
-                json.append("\"timestamp\":\"").append(vote.getTimestamp()).append("\"}");
-                first = false;
+        /**
+         * Votes in voter ID order, streamed and paged the same way as getVoters. With
+         * ?sectionId= only that section's shard is read; otherwise the shards are merged,
+         * one voter's votes in section order, and the cursor is "voterId,sectionId".
+         */
+        private Response getVotes(HttpRequest request) {
+            int limit = pageLimit(request.queryParam("limit"));
+            String after = request.queryParam("after");
+            String sectionParam = request.queryParam("sectionId");
+            Iterator<Vote> it;
+            if (sectionParam != null) {
+                Long sectionId = longParam(sectionParam);
+                VoteStore.Shard shard = sectionId == null ? null : voteStore.find(sectionId);
+                NavigableMap<String, Vote> view = shard == null ? Collections.emptyNavigableMap()
+                        : after == null ? shard.votes : shard.votes.tailMap(after, false);
+                it = view.values().iterator();
+            } else {
+                // A bare voter ID, as the section listing hands out, skips all of that voter's votes
+                int comma = after == null ? -1 : after.lastIndexOf(',');
+                Long afterSection = comma < 0 ? null : longParam(after.substring(comma + 1));
+                it = afterSection == null ? voteStore.iterator(after, Long.MAX_VALUE)
+                        : voteStore.iterator(after.substring(0, comma), afterSection);
             }
-            json.append("]}");
-            return json.toString();
+            boolean merged = sectionParam == null;
+            return Response.streaming(JSON_STREAM_HEAD, out -> {
+                Writer json = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192);
+                json.append("{\"votes\":[");
+
+                boolean first = true;
+                int count = 0;
+                String last = null;
+                while (count < limit && it.hasNext()) {
+                    Vote vote = it.next();
+                    if (!first) json.append(",");
+                    json.append("{\"voterId\":\"").append(vote.getVoterId()).append("\",");
+                    json.append("\"candidateId\":").append(String.valueOf(vote.getCandidateId())).append(",");
+                    json.append("\"sectionId\":").append(String.valueOf(vote.getSectionId())).append(",");
+                    json.append("\"timestamp\":\"").append(vote.getTimestamp()).append("\"}");
+                    first = false;
+                    count++;
+                    last = merged ? vote.getVoterId() + "," + vote.getSectionId() : vote.getVoterId();
+                }
+                json.append("]");
+                if (limit != Integer.MAX_VALUE) appendCursor(json, it.hasNext() ? last : null);
+                json.append("}");
+                json.flush();
+            });
         }
         
-        private String getResults() {
-            Map<Long, Integer> voteCounts = new HashMap<>();
-            for (Vote vote : votes.values()) {
-                voteCounts.put(vote.getCandidateId(), voteCounts.getOrDefault(vote.getCandidateId(), 0) + 1);
-            }
-            
+        private String getServerStats() {
+            ConnectionExecutor executor = connectionExecutor;
             StringBuilder json = new StringBuilder();
             json.append("HTTP/1.1 200 OK\r\n");
             json.append("Content-Type: application/json\r\n");
             json.append("Access-Control-Allow-Origin: *\r\n\r\n");
-            json.append("{\"candidates\":[");
-            
-            boolean first = true;
-            for (Candidate candidate : candidates.values()) {
-                if (!first) json.append(",");
-                int voteCount = voteCounts.getOrDefault(candidate.getId(), 0);
-                json.append("{\"name\":\"").append(candidate.getName()).append("\",");
-                json.append("\"party\":\"").append(candidate.getParty()).append("\",");
-                json.append("\"votes\":").append(voteCount).append("}");
-                first = false;
-            }
-            json.append("],\"totalVotes\":").append(votes.size());
-            json.append(",\"totalCandidates\":").append(candidates.size());
+            json.append("{\"executor\":\"").append(executor.getMode()).append("\",");
+            json.append("\"maxWorkers\":").append(executor.getMaxWorkers()).append(",");
+            json.append("\"activeWorkers\":").append(executor.getActiveWorkers()).append(",");
+            json.append("\"queueDepth\":").append(executor.getQueueDepth()).append(",");
+            json.append("\"queueCapacity\":").append(executor.getQueueCapacity()).append(",");
+            json.append("\"completed\":").append(executor.getCompleted()).append(",");
+            json.append("\"rejected\":").append(executor.getRejected()).append(",");
+            json.append("\"eventSubscribers\":").append(resultsFeed.subscriberCount()).append(",");
+            json.append("\"admissionLevel\":").append(admission.level());
             json.append("}");
             return json.toString();
         }
         
+        /** This server's part in replication: a follower's position and lag, or a primary's followers. */
+        private String getReplication() {
+            String body;
+            if (follower != null) {
+                body = follower.statusJson();
+            } else if (changeLog.isEnabled()) {
+                body = changeLog.statusJson();
+            } else {
+                body = "{\"role\":\"standalone\"}";
+            }
+            return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\nCache-Control: no-store\r\n\r\n" + body;
+        }
+        
         private String getVoter(String voterId) {
             Voter voter = voters.get(voterId);
             if (voter != null) {
-                boolean hasVoted = votes.containsKey(voter.getVoterId());
+                List<Long> votedSections = ballots.sectionsVoted(voter.getVoterId());
                 return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
-                       "{\"success\":true,\"voter\":{\"voterId\":\"" + voter.getVoterId() + "\",\"name\":\"" + voter.getName() + "\",\"age\":\"" + voter.getAge() + "\",\"gender\":\"" + voter.getGender() + "\",\"voted\":" + hasVoted + "}}";
+                       "{\"success\":true,\"voter\":{\"voterId\":\"" + voter.getVoterId() + "\",\"name\":\"" + voter.getName() + "\",\"age\":\"" + voter.getAge() + "\",\"gender\":\"" + voter.getGender() + "\",\"voted\":" + !votedSections.isEmpty() + ",\"votedSections\":" + votedSections + "}}";
             } else {
                 return "HTTP/1.1 404 Not Found\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
                        "{\"success\":false,\"message\":\"Voter not found\"}";
             }
         }
         
-        private String loginVoter(String body) {
-            String voterId = extractParameter(body, "voterId");
+        private String loginVoter(HttpRequest request) {
+            String voterId = request.param("voterId");
             if (voterId == null) {
                 return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
                        "{\"success\":false,\"message\":\"Voter ID required\"}";
@@ -542,9 +1028,9 @@ public class VotingSystemServer {
             }
         }
         
-        private String loginAdmin(String body) {
-            String username = extractParameter(body, "username");
-            String password = extractParameter(body, "password");
+        private String loginAdmin(HttpRequest request) {
+            String username = request.param("username");
+            String password = request.param("password");
             
             if (ADMIN_USERNAME.equals(username) && ADMIN_PASSWORD.equals(password)) {
                 return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
@@ -555,95 +1041,318 @@ public class VotingSystemServer {
             }
         }
         
-        private String castVote(String body) {
-            String voterId = extractParameter(body, "voterId");
-            String candidateIdStr = extractParameter(body, "candidateId");
-            String sectionIdStr = extractParameter(body, "sectionId");
+        private String castVote(HttpRequest request) {
+            String voterId = request.param("voterId");
+            String candidateIdStr = request.param("candidateId");
+            String sectionIdStr = request.param("sectionId");
             
             if (voterId == null || candidateIdStr == null) {
                 return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
                        "{\"success\":false,\"message\":\"Voter ID and Candidate ID required\"}";
             }
             
-            if (votes.containsKey(voterId)) {
-                return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
-                       "{\"success\":false,\"message\":\"Voter has already voted\"}";
-            }
-            
             try {
                 long candidateId = Long.parseLong(candidateIdStr);
                 long sectionId = 0;
                 if (sectionIdStr != null) {
                     try { sectionId = Long.parseLong(sectionIdStr); } catch (NumberFormatException ignore) {}
                 }
-                if (!candidates.containsKey(candidateId)) {
+                // Every section gets a shard and a journal, so only existing ones can take votes
+                if (sectionId != 0 && !sections.containsKey(sectionId)) {
                     return "HTTP/1.1 404 Not Found\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
-                           "{\"success\":false,\"message\":\"Candidate not found\"}";
+                           "{\"success\":false,\"message\":\"Section not found\"}";
                 }
                 
                 Vote vote = new Vote(voterId, candidateId, sectionId, new Date().toString());
-                votes.put(voterId, vote);
-                saveVotes();
-                
-                return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
-                       "{\"success\":true,\"message\":\"Vote recorded successfully\"}";
+                VoteStore.Shard shard;
+                try {
+                    shard = voteStore.enter(sectionId);
+                } catch (UncheckedIOException e) {
+                    System.err.println("Error opening vote journal: " + e.getMessage());
+                    return "HTTP/1.1 500 Internal Server Error\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                           "{\"success\":false,\"message\":\"Vote could not be recorded\"}";
+                }
+                // Deleted since the check above; deleteSection waits for votes that got in first
+                if (shard == null) {
+                    return "HTTP/1.1 404 Not Found\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                           "{\"success\":false,\"message\":\"Section not found\"}";
+                }
+                try {
+                    // Counting the ballot against the candidate keeps it from being deleted meanwhile
+                    if (!candidateIndex.reserveBallot(candidateId)) {
+                        return "HTTP/1.1 404 Not Found\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                               "{\"success\":false,\"message\":\"Candidate not found\"}";
+                    }
+                    // One ballot per voter per section: of two racing requests only one sets the bit
+                    if (!ballots.record(voterId, sectionId)) {
+                        candidateIndex.releaseBallot(candidateId);
+                        return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                               "{\"success\":false,\"message\":\"Voter has already voted in this section\"}";
+                    }
+                    shard.votes.put(voterId, vote);
+                    
+                    // Only acknowledge once the batch holding this vote has been fsynced (in sync and group modes)
+                    long journalStart = System.nanoTime();
+                    try {
+                        awaitJournal(shard.journal.append(vote));
+                        Metrics.persisted(journalStart);
+                    } catch (InterruptedException | ExecutionException e) {
+                        if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+                        shard.votes.remove(voterId, vote);
+                        ballots.revoke(voterId, sectionId);
+                        candidateIndex.releaseBallot(candidateId);
+                        // A follower copying the store meanwhile may have seen the vote; this takes it back
+                        changeLog.vote(voterId, sectionId);
+                        System.err.println("Error journaling vote: " + e.getMessage());
+                        return "HTTP/1.1 500 Internal Server Error\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                               "{\"success\":false,\"message\":\"Vote could not be recorded\"}";
+                    }
+                    tally.record(vote);
+                    dataVersions.voteRecorded(sectionId);
+                    resultsFeed.voteRecorded(sectionId, candidateId);
+                    changeLog.vote(voterId, sectionId);
+                    
+                    return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                           "{\"success\":true,\"message\":\"Vote recorded successfully\"}";
+                } finally {
+                    shard.exit();
+                }
             } catch (NumberFormatException e) {
                 return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
                        "{\"success\":false,\"message\":\"Invalid candidate ID\"}";
             }
         }
         
-        private String addVoter(String body) {
-            String voterId = extractParameter(body, "voterId");
-            String name = extractParameter(body, "name");
-            String ageStr = extractParameter(body, "age");
-            String gender = extractParameter(body, "gender");
-            
-            if (voterId == null || name == null || ageStr == null || gender == null) {
+        /**
+         * Records the ballots a kiosk buffered while offline, sent as CSV
+         * (key,voterId,candidateId[,sectionId]) or NDJSON, where key is an idempotency key
+         * the kiosk generated for each ballot. Every ballot is checked and claimed in one
+         * pass, then each section's share is appended to its journal as a single record, so
+         * the batch costs one fsync per section instead of one round trip per ballot. The
+         * reply gives every ballot's status by line; a ballot already recorded under the
+         * same key is reported as a duplicate and not written again, so a kiosk can resend
+         * a batch whose reply it never got.
+         */
+        private String castVoteBatch(HttpRequest request) {
+            if (request.getBodyLength() == 0) {
                 return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
-                       "{\"success\":false,\"message\":\"Voter ID, name, age, and gender required\"}";
+                       "{\"success\":false,\"message\":\"Request body required\"}";
+            }
+            // Counted before anything is parsed, so an oversized batch costs one pass over its bytes
+            if (BulkImport.countRows(request, BALLOT_COLUMNS, BATCH_MAX_BALLOTS) > BATCH_MAX_BALLOTS) {
+                return "HTTP/1.1 413 Payload Too Large\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                       "{\"success\":false,\"message\":\"At most " + BATCH_MAX_BALLOTS + " ballots per batch\"}";
             }
+            String timestamp = new Date().toString();
+            BulkImport.Result<Vote> upload = BulkImport.parse(request, BALLOT_COLUMNS, fields -> {
+                BulkImport.require(fields, 3);
+                if (!isBallotKey(fields[0])) throw new IllegalArgumentException("Invalid idempotency key");
+                try {
+                    long sectionId = fields[3] == null || fields[3].isEmpty() ? 0 : Long.parseLong(fields[3]);
+                    return new Vote(fields[1], Long.parseLong(fields[2]), sectionId, timestamp, fields[0]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid candidate or section ID");
+                }
+            });
             
-            if (voters.containsKey(voterId)) {
-                return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
-                       "{\"success\":false,\"message\":\"Voter ID already exists\"}";
+            // Replies by line, starting with the rows that did not parse
+            TreeMap<Integer, String> replies = new TreeMap<>();
+            for (BulkImport.Row<Vote> row : upload.errors()) {
+                replies.put(row.line, "{\"line\":" + row.line + ",\"status\":\"rejected\",\"message\":\"" + row.error + "\"}");
             }
+            int duplicates = 0;
             
+            // Shards this batch votes into; a section being deleted waits until they are exited
+            Map<Long, VoteStore.Shard> entered = new HashMap<>();
+            int recorded = 0;
             try {
-                int age = Integer.parseInt(ageStr);
-                Voter voter = new Voter(voterId, name, age, gender);
-                voters.put(voterId, voter);
-                saveVoters();
+                // Claim every ballot the same way castVote does, grouping the winners by shard
+                Map<VoteStore.Shard, List<BulkImport.Row<Vote>>> claimed = new LinkedHashMap<>();
+                for (BulkImport.Row<Vote> row : upload.rows) {
+                    Vote vote = row.record;
+                    long sectionId = vote.getSectionId();
+                    if (sectionId != 0 && !sections.containsKey(sectionId)) {
+                        replies.put(row.line, ballotReply(row, "rejected", "Section not found"));
+                        continue;
+                    }
+                    VoteStore.Shard shard = entered.get(sectionId);
+                    if (shard == null) {
+                        try {
+                            shard = voteStore.enter(sectionId);
+                        } catch (UncheckedIOException e) {
+                            System.err.println("Error opening vote journal: " + e.getMessage());
+                            replies.put(row.line, ballotReply(row, "failed", "Vote could not be recorded"));
+                            continue;
+                        }
+                        if (shard == null) {
+                            replies.put(row.line, ballotReply(row, "rejected", "Section not found"));
+                            continue;
+                        }
+                        entered.put(sectionId, shard);
+                    }
+                    if (!candidateIndex.reserveBallot(vote.getCandidateId())) {
+                        replies.put(row.line, ballotReply(row, "rejected", "Candidate not found"));
+                        continue;
+                    }
+                    Vote existing = claimBallot(shard, vote);
+                    if (existing != null) {
+                        candidateIndex.releaseBallot(vote.getCandidateId());
+                        if (vote.getKey().equals(existing.getKey())) {
+                            replies.put(row.line, ballotReply(row, "duplicate", null));
+                            duplicates++;
+                        } else {
+                            replies.put(row.line, ballotReply(row, "rejected", "Voter has already voted in this section"));
+                        }
+                        continue;
+                    }
+                    shard.votes.put(vote.getVoterId(), vote);
+                    claimed.computeIfAbsent(shard, k -> new ArrayList<>()).add(row);
+                }
                 
-                return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
-                       "{\"success\":true,\"message\":\"Voter added successfully\"}";
-            } catch (NumberFormatException e) {
-                return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
-                       "{\"success\":false,\"message\":\"Invalid age format\"}";
+                // One journal record per shard, all in flight together; acknowledge once fsynced (unless async)
+                Map<VoteStore.Shard, CompletableFuture<Void>> writes = new LinkedHashMap<>();
+                for (Map.Entry<VoteStore.Shard, List<BulkImport.Row<Vote>>> entry : claimed.entrySet()) {
+                    List<Vote> votes = new ArrayList<>(entry.getValue().size());
+                    for (BulkImport.Row<Vote> row : entry.getValue()) votes.add(row.record);
+                    writes.put(entry.getKey(), entry.getKey().journal.appendAll(votes));
+                }
+                List<Long> votedSections = new ArrayList<>();
+                long journalStart = System.nanoTime();
+                for (Map.Entry<VoteStore.Shard, List<BulkImport.Row<Vote>>> entry : claimed.entrySet()) {
+                    VoteStore.Shard shard = entry.getKey();
+                    boolean written;
+                    try {
+                        awaitJournal(writes.get(shard));
+                        written = true;
+                    } catch (InterruptedException | ExecutionException e) {
+                        if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+                        System.err.println("Error journaling ballot batch: " + e.getMessage());
+                        written = false;
+                    }
+                    for (BulkImport.Row<Vote> row : entry.getValue()) {
+                        Vote vote = row.record;
+                        if (written) {
+                            tally.record(vote);
+                            resultsFeed.voteRecorded(shard.sectionId, vote.getCandidateId());
+                            replies.put(row.line, ballotReply(row, "recorded", null));
+                            recorded++;
+                        } else {
+                            shard.votes.remove(vote.getVoterId(), vote);
+                            ballots.revoke(vote.getVoterId(), shard.sectionId);
+                            candidateIndex.releaseBallot(vote.getCandidateId());
+                            replies.put(row.line, ballotReply(row, "failed", "Vote could not be recorded"));
+                        }
+                        changeLog.vote(vote.getVoterId(), shard.sectionId);
+                    }
+                    if (written) votedSections.add(shard.sectionId);
+                }
+                if (!writes.isEmpty()) Metrics.persisted(journalStart);
+                for (long sectionId : votedSections) dataVersions.voteRecorded(sectionId);
+            } finally {
+                for (VoteStore.Shard shard : entered.values()) shard.exit();
             }
+            
+            StringBuilder json = new StringBuilder(96 + replies.size() * 56);
+            json.append("{\"success\":true,\"recorded\":").append(recorded);
+            json.append(",\"duplicates\":").append(duplicates);
+            json.append(",\"notRecorded\":").append(replies.size() - recorded - duplicates);
+            json.append(",\"ballots\":[");
+            boolean first = true;
+            for (String reply : replies.values()) {
+                if (!first) json.append(",");
+                json.append(reply);
+                first = false;
+            }
+            json.append("]}");
+            return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" + json;
         }
         
-        private String addCandidate(String body) {
-            String name = extractParameter(body, "name");
-            String party = extractParameter(body, "party");
-            String ageStr = extractParameter(body, "age");
-            String gender = extractParameter(body, "gender");
-            String sectionIdStr = extractParameter(body, "sectionId");
-            
-            if (name == null || party == null || ageStr == null || gender == null) {
-                return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
-                       "{\"success\":false,\"message\":\"Name, party, age, and gender required\"}";
+        /**
+         * Sets the voter's bit in the ledger for the shard's section and returns null, or
+         * returns the vote already holding it. Every writer sets the bit just before putting
+         * its vote in the shard (and takes the vote out just before clearing the bit), so a
+         * kiosk resend racing the original can see the bit with the shard still empty; it
+         * waits out that gap rather than calling its own ballot a different vote.
+         */
+        private static Vote claimBallot(VoteStore.Shard shard, Vote vote) {
+            while (!ballots.record(vote.getVoterId(), shard.sectionId)) {
+                Vote existing = shard.votes.get(vote.getVoterId());
+                if (existing != null) return existing;
+                Thread.yield();
             }
-            
-            try {
-                int age = Integer.parseInt(ageStr);
-                long id = candidateIdCounter.getAndIncrement();
-                Candidate candidate = new Candidate(id, name, party, age, gender);
-                if (sectionIdStr != null) {
+            return null;
+        }
+        
+        // Keys go into the vote files and replies as they are, so keep them to a safe alphabet
+        private static boolean isBallotKey(String key) {
+            if (key.length() > 64) return false;
+            for (int i = 0; i < key.length(); i++) {
+                char c = key.charAt(i);
+                if (!(Character.isLetterOrDigit(c) && c < 128) && c != '-' && c != '_' && c != '.' && c != ':') return false;
+            }
+            return true;
+        }
+        
+        private static String ballotReply(BulkImport.Row<Vote> row, String status, String message) {
+            String reply = "{\"line\":" + row.line + ",\"key\":\"" + row.record.getKey() + "\",\"status\":\"" + status + "\"";
+            return message == null ? reply + "}" : reply + ",\"message\":\"" + message + "\"}";
+        }
+        
+        private String addVoter(HttpRequest request) {
+            String voterId = request.param("voterId");
+            String name = request.param("name");
+            String ageStr = request.param("age");
+            String gender = request.param("gender");
+            
+            if (voterId == null || name == null || ageStr == null || gender == null) {
+                return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                       "{\"success\":false,\"message\":\"Voter ID, name, age, and gender required\"}";
+            }
+            
+            try {
+                int age = Integer.parseInt(ageStr);
+                // Checked and added in one step, so of two racing adds the second is refused
+                if (!voters.putIfAbsent(new Voter(voterId, name, age, gender))) {
+                    return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                           "{\"success\":false,\"message\":\"Voter ID already exists\"}";
+                }
+                voterView.publish();
+                changeLog.voter(voterId);
+                if (!saveVoters()) return SAVE_FAILED_RESPONSE;
+                
+                return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                       "{\"success\":true,\"message\":\"Voter added successfully\"}";
+            } catch (NumberFormatException e) {
+                return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                       "{\"success\":false,\"message\":\"Invalid age format\"}";
+            }
+        }
+        
+        private String addCandidate(HttpRequest request) {
+            String name = request.param("name");
+            String party = request.param("party");
+            String ageStr = request.param("age");
+            String gender = request.param("gender");
+            String sectionIdStr = request.param("sectionId");
+            
+            if (name == null || party == null || ageStr == null || gender == null) {
+                return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                       "{\"success\":false,\"message\":\"Name, party, age, and gender required\"}";
+            }
+            
+            try {
+                int age = Integer.parseInt(ageStr);
+                long id = candidateIdCounter.getAndIncrement();
+                Candidate candidate = new Candidate(id, name, party, age, gender);
+                if (sectionIdStr != null) {
                     try { candidate.setSectionId(Long.parseLong(sectionIdStr)); } catch (NumberFormatException ignore) {}
                 }
                 candidates.put(id, candidate);
-                saveCandidates();
+                candidateIndex.add(candidate);
+                changeLog.candidate(id);
+                catalogView.publish();
+                dataVersions.candidatesChanged();
+                if (!saveCandidates()) return SAVE_FAILED_RESPONSE;
                 
                 return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
                        "{\"success\":true,\"message\":\"Candidate added successfully\",\"candidateId\":" + id + "}";
@@ -653,8 +1362,85 @@ public class VotingSystemServer {
             }
         }
         
-        private String deleteVoter(String body) {
-            String voterId = extractParameter(body, "voterId");
+        /**
+         * Adds every valid row of a CSV (voterId,name,age,gender) or NDJSON upload and
+         * rewrites voters.csv once. Rows that fail validation or reuse an existing voter ID
+         * are skipped and reported by line number.
+         */
+        private String importVoters(HttpRequest request) {
+            if (request.getBodyLength() == 0) {
+                return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                       "{\"success\":false,\"message\":\"Request body required\"}";
+            }
+            BulkImport.Result<Voter> upload = BulkImport.parse(request, VOTER_COLUMNS, fields -> {
+                BulkImport.require(fields, 4);
+                return new Voter(fields[0], fields[1], BulkImport.age(fields[2]), fields[3]);
+            });
+            
+            int imported = 0;
+            for (BulkImport.Row<Voter> row : upload.rows) {
+                if (voters.putIfAbsent(row.record)) {
+                    changeLog.voter(row.record.getVoterId());
+                    imported++;
+                } else {
+                    upload.reject(row.line, "Voter ID already exists");
+                }
+            }
+            if (imported > 0) {
+                voterView.publish();
+                if (!saveVoters()) return SAVE_FAILED_RESPONSE;
+            }
+            
+            return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                   upload.report(imported);
+        }
+        
+        /**
+         * Adds every valid row of a CSV (name,party,age,gender[,sectionId]) or NDJSON upload
+         * with freshly assigned IDs and rewrites candidates.csv once.
+         */
+        private String importCandidates(HttpRequest request) {
+            if (request.getBodyLength() == 0) {
+                return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                       "{\"success\":false,\"message\":\"Request body required\"}";
+            }
+            BulkImport.Result<Candidate> upload = BulkImport.parse(request, CANDIDATE_COLUMNS, fields -> {
+                BulkImport.require(fields, 4);
+                // IDs are assigned in upload order once the rows are merged
+                Candidate candidate = new Candidate(0, fields[0], fields[1], BulkImport.age(fields[2]), fields[3]);
+                if (fields[4] != null && !fields[4].isEmpty()) {
+                    try {
+                        candidate.setSectionId(Long.parseLong(fields[4]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid section ID");
+                    }
+                }
+                return candidate;
+            });
+            
+            int imported = 0;
+            for (BulkImport.Row<Candidate> row : upload.rows) {
+                Candidate parsed = row.record;
+                long id = candidateIdCounter.getAndIncrement();
+                Candidate candidate = new Candidate(id, parsed.getName(), parsed.getParty(), parsed.getAge(), parsed.getGender());
+                candidate.setSectionId(parsed.getSectionId());
+                candidates.put(id, candidate);
+                candidateIndex.add(candidate);
+                changeLog.candidate(id);
+                imported++;
+            }
+            if (imported > 0) {
+                catalogView.publish();
+                dataVersions.candidatesChanged();
+                if (!saveCandidates()) return SAVE_FAILED_RESPONSE;
+            }
+            
+            return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                   upload.report(imported);
+        }
+        
+        private String deleteVoter(HttpRequest request) {
+            String voterId = request.param("voterId");
             
             if (voterId == null) {
                 return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
@@ -667,20 +1453,22 @@ public class VotingSystemServer {
             }
             
             // Check if voter has voted
-            if (votes.containsKey(voterId)) {
+            if (ballots.hasVoted(voterId)) {
                 return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
                        "{\"success\":false,\"message\":\"Cannot delete voter who has already voted\"}";
             }
             
             voters.remove(voterId);
-            saveVoters();
+            voterView.publish();
+            changeLog.voter(voterId);
+            if (!saveVoters()) return SAVE_FAILED_RESPONSE;
             
             return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
                    "{\"success\":true,\"message\":\"Voter deleted successfully\"}";
         }
         
-        private String deleteCandidate(String body) {
-            String candidateIdStr = extractParameter(body, "candidateId");
+        private String deleteCandidate(HttpRequest request) {
+            String candidateIdStr = request.param("candidateId");
             
             if (candidateIdStr == null) {
                 return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
@@ -695,22 +1483,18 @@ public class VotingSystemServer {
                            "{\"success\":false,\"message\":\"Candidate not found\"}";
                 }
                 
-                // Check if candidate has received votes
-                boolean hasVotes = false;
-                for (Vote vote : votes.values()) {
-                    if (vote.getCandidateId() == candidateId) {
-                        hasVotes = true;
-                        break;
-                    }
-                }
-                
-                if (hasVotes) {
+                // Refused if the candidate holds any ballot, including one still being journaled
+                if (!candidateIndex.retire(candidateId)) {
                     return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
                            "{\"success\":false,\"message\":\"Cannot delete candidate who has received votes\"}";
                 }
                 
-                candidates.remove(candidateId);
-                saveCandidates();
+                Candidate removed = candidates.remove(candidateId);
+                if (removed != null) candidateIndex.remove(removed);
+                changeLog.candidate(candidateId);
+                catalogView.publish();
+                dataVersions.candidatesChanged();
+                if (!saveCandidates()) return SAVE_FAILED_RESPONSE;
                 
                 return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
                        "{\"success\":true,\"message\":\"Candidate deleted successfully\"}";
@@ -720,15 +1504,18 @@ public class VotingSystemServer {
             }
         }
         
-        private String getSections() {
+        private Response getSections(HttpRequest request) {
+            String etag = dataVersions.sectionsTag();
+            if (request.matchesETag(etag)) return notModified(etag);
+            return Response.bytes(JSON_CACHED_HEAD + etag, SECTIONS_CACHE.get(0L, etag, this::sectionsJson));
+        }
+        
+        private String sectionsJson() {
             StringBuilder json = new StringBuilder();
-            json.append("HTTP/1.1 200 OK\r\n");
-            json.append("Content-Type: application/json\r\n");
-            json.append("Access-Control-Allow-Origin: *\r\n\r\n");
             json.append("{\"sections\":[");
             
             boolean first = true;
-            for (VotingSection section : sections.values()) {
+            for (VotingSection section : catalogView.get().sections) {
                 if (!first) json.append(",");
                 json.append("{\"id\":").append(section.getId()).append(",");
                 json.append("\"name\":\"").append(section.getName()).append("\",");
@@ -744,11 +1531,11 @@ public class VotingSystemServer {
             return json.toString();
         }
         
-        private String createSection(String body) {
-            String name = extractParameter(body, "name");
-            String description = extractParameter(body, "description");
-            String startDate = extractParameter(body, "startDate");
-            String endDate = extractParameter(body, "endDate");
+        private String createSection(HttpRequest request) {
+            String name = request.param("name");
+            String description = request.param("description");
+            String startDate = request.param("startDate");
+            String endDate = request.param("endDate");
             
             if (name == null || startDate == null || endDate == null) {
                 return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
@@ -760,14 +1547,17 @@ public class VotingSystemServer {
             long id = sectionIdCounter.getAndIncrement();
             VotingSection section = new VotingSection(id, name, description, startDate, endDate);
             sections.put(id, section);
-            saveSections();
+            changeLog.section(id);
+            catalogView.publish();
+            dataVersions.sectionsChanged();
+            if (!saveSections()) return SAVE_FAILED_RESPONSE;
             
             return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
                    "{\"success\":true,\"message\":\"Voting section created successfully\",\"sectionId\":" + id + "}";
         }
         
-        private String deleteSection(String body) {
-            String sectionIdStr = extractParameter(body, "sectionId");
+        private String deleteSection(HttpRequest request) {
+            String sectionIdStr = request.param("sectionId");
             
             if (sectionIdStr == null) {
                 return "HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
@@ -782,15 +1572,23 @@ public class VotingSystemServer {
                            "{\"success\":false,\"message\":\"Section not found\"}";
                 }
                 
-                // Delete all votes for this section (if any)
-                votes.entrySet().removeIf(entry -> {
-                    Vote v = entry.getValue();
-                    return v.getSectionId() == sectionId;
-                });
-                saveVotes();
+                // Delete all votes for this section (if any) by dropping its shard
+                try {
+                    voteStore.drop(sectionId);
+                } catch (IOException e) {
+                    System.err.println("Error deleting votes of section " + sectionId + ": " + e.getMessage());
+                }
+                ballots.dropSection(sectionId);
+                candidateIndex.ballotsRemoved(tally.removeSection(sectionId));
                 
                 sections.remove(sectionId);
-                saveSections();
+                // A follower drops the section's votes along with it
+                changeLog.section(sectionId);
+                catalogView.publish();
+                dataVersions.votesRemoved(sectionId);
+                RESULTS_CACHE.remove(sectionId);
+                dataVersions.sectionsChanged();
+                if (!saveSections()) return SAVE_FAILED_RESPONSE;
                 
                 return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
                        "{\"success\":true,\"message\":\"Voting section deleted successfully\"}";
@@ -800,116 +1598,5171 @@ public class VotingSystemServer {
             }
         }
         
-        private String serveStaticFile(String path) {
+        private static final StaticAsset INDEX_PAGE =
+                new StaticAsset(Paths.get("index.html"), "text/html; charset=UTF-8", STATIC_MAX_CACHED_BYTES);
+        
+        private Response serveStaticFile(HttpRequest request) {
+            String path = request.getPath();
             if (path.equals("/") || path.equals("/index.html")) {
-                return serveHTML();
+                return serveHTML(request);
             } else {
-                return "HTTP/1.1 404 Not Found\r\n\r\nFile not found";
+                return Response.of("HTTP/1.1 404 Not Found\r\n\r\nFile not found");
             }
         }
         
-        private String serveHTML() {
+        private Response serveHTML(HttpRequest request) {
             try {
-                StringBuilder html = new StringBuilder();
-                BufferedReader reader = new BufferedReader(new FileReader("index.html"));
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    html.append(line).append("\r\n");
-                }
-                reader.close();
-                
-                return "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n\r\n" + html.toString();
+                return INDEX_PAGE.serve(request);
             } catch (IOException e) {
-                return "HTTP/1.1 500 Internal Server Error\r\n\r\nError loading HTML file";
+                return Response.of("HTTP/1.1 500 Internal Server Error\r\n\r\nError loading HTML file");
             }
         }
+    }
+    
+    /**
+     * The voter roll, stored by column instead of as one object per voter. A voter's ID
+     * and name go into a shared UTF-8 byte arena, the age into a short column and the
+     * gender into a byte code for a small dictionary, so "male" and "female" are stored
+     * once for the whole roll. An open-addressing table on the hash of the ID bytes maps
+     * each ID to its record. Records are appended and never changed: replacing a voter
+     * appends a new record and removing one leaves a tombstone in the table, and either
+     * marks the old record dead; dead records are reclaimed only by clear(). Writers take
+     * the registry's lock. Lookups never do, since a record is complete before the table
+     * slot that points at it is set.
+     */
+    static class VoterRegistry {
+        private static final int PAGE_SHIFT = 16;
+        private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+        private static final int ARENA_SHIFT = 20;
+        private static final int ARENA_PAGE = 1 << ARENA_SHIFT;
+        private static final int MIN_CAPACITY = 1024;
+        private static final int TOMBSTONE = -1;
+        // Gender codes index the dictionary; past its last code the gender is stored after the name
+        private static final int SPILLED_GENDER = 255;
+        // In the age column for ages kept in Store.wideAges
+        private static final short WIDE_AGE = Short.MIN_VALUE;
         
-        private String extractParameter(String body, String paramName) {
-            String[] pairs = body.split("&");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=");
-                if (keyValue.length == 2 && keyValue[0].equals(paramName)) {
-                    try {
-                        return java.net.URLDecoder.decode(keyValue[1], "UTF-8");
-                    } catch (Exception e) {
-                        return keyValue[1];
+        /** One generation of records and the table over them; clear() starts a new one. */
+        private static final class Store {
+            // Table slots hold record + 1, 0 when empty or TOMBSTONE
+            volatile AtomicIntegerArray index = new AtomicIntegerArray(MIN_CAPACITY);
+            // Column pages of 64K records each: arena position, age and gender code
+            volatile long[][] positions = new long[0][];
+            volatile short[][] ages = new short[0][];
+            volatile byte[][] genders = new byte[0][];
+            volatile byte[][] arena = new byte[0][];
+            volatile String[] genderNames = new String[0];
+            final Map<Integer, Integer> wideAges = new ConcurrentHashMap<>();
+            final BallotLedger.Bits dead = new BallotLedger.Bits();
+            // Records appended so far, published after each record is complete
+            volatile int count;
+            // Under the registry lock: slots not empty, and the free bytes of the last arena page
+            int used;
+            int arenaUsed = ARENA_PAGE;
+            
+            int append(byte[] id, Voter voter) {
+                int record = count;
+                int page = record >>> PAGE_SHIFT;
+                if (page == positions.length) {
+                    positions = grow(positions, new long[1 << PAGE_SHIFT]);
+                    ages = grow(ages, new short[1 << PAGE_SHIFT]);
+                    genders = grow(genders, new byte[1 << PAGE_SHIFT]);
+                }
+                int slot = record & PAGE_MASK;
+                int code = genderCode(voter.getGender());
+                byte[] name = voter.getName().getBytes(StandardCharsets.UTF_8);
+                byte[] spilled = code == SPILLED_GENDER ? voter.getGender().getBytes(StandardCharsets.UTF_8) : null;
+                positions[page][slot] = write(id, name, spilled);
+                genders[page][slot] = (byte) code;
+                int age = voter.getAge();
+                if (age > WIDE_AGE && age <= Short.MAX_VALUE) {
+                    ages[page][slot] = (short) age;
+                } else {
+                    ages[page][slot] = WIDE_AGE;
+                    wideAges.put(record, age);
+                }
+                count = record + 1;
+                return record;
+            }
+            
+            private static <T> T[] grow(T[] directory, T page) {
+                T[] grown = Arrays.copyOf(directory, directory.length + 1);
+                grown[directory.length] = page;
+                return grown;
+            }
+            
+            private int genderCode(String gender) {
+                String[] names = genderNames;
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i].equals(gender)) return i;
+                }
+                if (names.length == SPILLED_GENDER) return SPILLED_GENDER;
+                genderNames = grow(names, gender);
+                return names.length;
+            }
+            
+            // Appends [length, bytes] for each field and returns where the first one starts
+            private long write(byte[] id, byte[] name, byte[] spilled) {
+                int length = 10 + id.length + name.length + (spilled == null ? 0 : 5 + spilled.length);
+                byte[][] pages = arena;
+                if (pages.length == 0 || arenaUsed + length > ARENA_PAGE) {
+                    // A record longer than a page gets a page of its own
+                    pages = grow(pages, new byte[Math.max(ARENA_PAGE, length)]);
+                    arena = pages;
+                    arenaUsed = 0;
+                }
+                int page = pages.length - 1;
+                long position = ((long) page << ARENA_SHIFT) | arenaUsed;
+                byte[] bytes = pages[page];
+                int at = putField(bytes, arenaUsed, id);
+                at = putField(bytes, at, name);
+                if (spilled != null) at = putField(bytes, at, spilled);
+                arenaUsed = at;
+                return position;
+            }
+            
+            private static int putField(byte[] bytes, int at, byte[] field) {
+                int length = field.length;
+                while (length >= 0x80) {
+                    bytes[at++] = (byte) (length | 0x80);
+                    length >>>= 7;
+                }
+                bytes[at++] = (byte) length;
+                System.arraycopy(field, 0, bytes, at, field.length);
+                return at + field.length;
+            }
+            
+            long position(int record) {
+                return positions[record >>> PAGE_SHIFT][record & PAGE_MASK];
+            }
+            
+            byte[] page(long position) {
+                return arena[(int) (position >>> ARENA_SHIFT)];
+            }
+            
+            /** Compares a record's ID bytes with key, unsigned, as String.compareTo does for ASCII. */
+            int compareId(int record, byte[] key) {
+                long position = position(record);
+                byte[] bytes = page(position);
+                long id = field(bytes, (int) (position & (ARENA_PAGE - 1)));
+                return Arrays.compareUnsigned(bytes, start(id), end(id), key, 0, key.length);
+            }
+            
+            int compareIds(int a, int b) {
+                long positionA = position(a);
+                long positionB = position(b);
+                byte[] bytesA = page(positionA);
+                byte[] bytesB = page(positionB);
+                long idA = field(bytesA, (int) (positionA & (ARENA_PAGE - 1)));
+                long idB = field(bytesB, (int) (positionB & (ARENA_PAGE - 1)));
+                return Arrays.compareUnsigned(bytesA, start(idA), end(idA), bytesB, start(idB), end(idB));
+            }
+            
+            int hashOf(int record) {
+                long position = position(record);
+                byte[] bytes = page(position);
+                long id = field(bytes, (int) (position & (ARENA_PAGE - 1)));
+                return hash(bytes, start(id), end(id) - start(id));
+            }
+            
+            // The field whose length prefix is at `at`, as its start and end packed into a long
+            private static long field(byte[] bytes, int at) {
+                int length = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = bytes[at++];
+                    length |= (b & 0x7F) << shift;
+                    if (b >= 0) break;
+                }
+                return ((long) at << 32) | (at + length);
+            }
+            
+            private static int start(long field) {
+                return (int) (field >>> 32);
+            }
+            
+            private static int end(long field) {
+                return (int) field;
+            }
+            
+            String id(int record) {
+                return readFields(record, 1)[0];
+            }
+            
+            Voter voter(int record) {
+                String[] fields = readFields(record, 3);
+                int page = record >>> PAGE_SHIFT;
+                int slot = record & PAGE_MASK;
+                int code = genders[page][slot] & 0xFF;
+                String gender = code == SPILLED_GENDER ? fields[2] : genderNames[code];
+                short age = ages[page][slot];
+                return new Voter(fields[0], fields[1], age == WIDE_AGE ? wideAges.get(record) : age, gender);
+            }
+            
+            // The first n fields stored for the record; a missing field reads as null
+            private String[] readFields(int record, int n) {
+                long position = position(record);
+                byte[] bytes = page(position);
+                int at = (int) (position & (ARENA_PAGE - 1));
+                String[] fields = new String[n];
+                boolean spilled = n == 3 && (genders[record >>> PAGE_SHIFT][record & PAGE_MASK] & 0xFF) == SPILLED_GENDER;
+                int stored = n == 3 && !spilled ? 2 : n;
+                for (int i = 0; i < stored; i++) {
+                    long field = field(bytes, at);
+                    fields[i] = new String(bytes, start(field), end(field) - start(field), StandardCharsets.UTF_8);
+                    at = end(field);
+                }
+                return fields;
+            }
+        }
+        
+        /**
+         * Live records sorted by voter ID as of one moment, which GET /api/voters pages
+         * through. Holds record numbers only; voters are read from the store on demand.
+         */
+        static final class Roll {
+            private final Store store;
+            private final int[] records;
+            // Records below this were considered when the roll was built
+            private final int upTo;
+            
+            Roll(Store store, int[] records, int upTo) {
+                this.store = store;
+                this.records = records;
+                this.upTo = upTo;
+            }
+            
+            public int size() {
+                return records.length;
+            }
+            
+            public String id(int i) {
+                return store.id(records[i]);
+            }
+            
+            public Voter voter(int i) {
+                return store.voter(records[i]);
+            }
+            
+            /** Index of the first voter whose ID sorts after the cursor. */
+            public int firstAfter(String after) {
+                byte[] key = after.getBytes(StandardCharsets.UTF_8);
+                int low = 0;
+                int high = records.length;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (store.compareId(records[mid], key) <= 0) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
                     }
                 }
+                return low;
             }
-            return null;
         }
-    }
-    
-    // Data classes
-    static class Voter {
-        private String voterId;
-        private String name;
-        private int age;
-        private String gender;
         
-        public Voter(String voterId, String name, int age, String gender) {
-            this.voterId = voterId;
-            this.name = name;
-            this.age = age;
-            this.gender = gender;
+        interface VoterAction {
+            void accept(Voter voter) throws IOException;
         }
         
-        public String getVoterId() { return voterId; }
-        public String getName() { return name; }
-        public int getAge() { return age; }
-        public String getGender() { return gender; }
-    }
-    
-    static class Candidate {
-        private long id;
-        private String name;
-        private String party;
-        private int age;
-        private String gender;
-        private long sectionId;
+        private volatile Store store = new Store();
+        private volatile int size;
+        // Only the thread building a roll touches this; see roll()
+        private Roll lastRoll;
         
-        public Candidate(long id, String name, String party, int age, String gender) {
-            this.id = id;
-            this.name = name;
-            this.party = party;
-            this.age = age;
-            this.gender = gender;
-            this.sectionId = 0;
+        public Voter get(String voterId) {
+            Store current = store;
+            int record = find(current, voterId.getBytes(StandardCharsets.UTF_8));
+            return record < 0 ? null : current.voter(record);
         }
         
-        public long getId() { return id; }
-        public String getName() { return name; }
-        public String getParty() { return party; }
-        public int getAge() { return age; }
-        public String getGender() { return gender; }
-        public long getSectionId() { return sectionId; }
-        public void setSectionId(long sectionId) { this.sectionId = sectionId; }
+        public boolean containsKey(String voterId) {
+            return find(store, voterId.getBytes(StandardCharsets.UTF_8)) >= 0;
+        }
+        
+        public int size() {
+            return size;
+        }
+        
+        /** Adds the voter, replacing any voter with the same ID. */
+        public synchronized void put(Voter voter) {
+            insert(voter, true);
+        }
+        
+        /** Adds the voter unless the ID is taken; false if it was. */
+        public synchronized boolean putIfAbsent(Voter voter) {
+            return insert(voter, false);
+        }
+        
+        public synchronized boolean remove(String voterId) {
+            Store current = store;
+            AtomicIntegerArray index = current.index;
+            int slot = probe(current, index, voterId.getBytes(StandardCharsets.UTF_8));
+            if (slot < 0) return false;
+            int record = index.get(slot) - 1;
+            index.set(slot, TOMBSTONE);
+            current.dead.set(record);
+            size--;
+            return true;
+        }
+        
+        public synchronized void clear() {
+            store = new Store();
+            size = 0;
+        }
+        
+        /** Every live voter, in the order they were added. */
+        public void forEach(VoterAction action) throws IOException {
+            Store current = store;
+            int count = current.count;
+            for (int record = 0; record < count; record++) {
+                if (!current.dead.get(record)) action.accept(current.voter(record));
+            }
+        }
+        
+        /**
+         * The live records sorted by ID. Only records appended since the previous roll are
+         * sorted, then merged into it minus the records that died since, so a publish after
+         * one change costs a pass over the roll rather than a sort. Callers must not run
+         * concurrently; PublishedView builds one value at a time.
+         */
+        public Roll roll() {
+            Store current = store;
+            Roll last = lastRoll;
+            if (last == null || last.store != current) last = new Roll(current, new int[0], 0);
+            int count = current.count;
+            int[] fresh = new int[count - last.upTo];
+            int n = 0;
+            for (int record = last.upTo; record < count; record++) {
+                if (!current.dead.get(record)) fresh[n++] = record;
+            }
+            fresh = sort(current, Arrays.copyOf(fresh, n));
+            
+            int[] previous = last.records;
+            int[] merged = new int[previous.length + fresh.length];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (i < previous.length || j < fresh.length) {
+                if (i < previous.length && current.dead.get(previous[i])) {
+                    i++;
+                } else if (j == fresh.length || (i < previous.length && current.compareIds(previous[i], fresh[j]) < 0)) {
+                    merged[k++] = previous[i++];
+                } else {
+                    merged[k++] = fresh[j++];
+                }
+            }
+            Roll roll = new Roll(current, k == merged.length ? merged : Arrays.copyOf(merged, k), count);
+            lastRoll = roll;
+            return roll;
+        }
+        
+        /** Approximate heap held by the registry: columns, arena, hash table and dead-record bits. */
+        public long bytes() {
+            Store current = store;
+            long bytes = (long) current.index.length() * Integer.BYTES;
+            bytes += (long) current.positions.length * (1 << PAGE_SHIFT) * (Long.BYTES + Short.BYTES + Byte.BYTES);
+            for (byte[] page : current.arena) bytes += page.length;
+            bytes += current.count / 8;
+            return bytes;
+        }
+        
+        private boolean insert(Voter voter, boolean replace) {
+            Store current = store;
+            AtomicIntegerArray index = current.index;
+            byte[] key = voter.getVoterId().getBytes(StandardCharsets.UTF_8);
+            int slot = probe(current, index, key);
+            if (slot >= 0 && !replace) return false;
+            int record = current.append(key, voter);
+            if (slot >= 0) {
+                int old = index.get(slot) - 1;
+                index.set(slot, record + 1);
+                current.dead.set(old);
+                return true;
+            }
+            int free = -slot - 1;
+            if (index.get(free) == 0) current.used++;
+            index.set(free, record + 1);
+            size++;
+            // At most three quarters of the slots in use, tombstones included, keeps probes short
+            if (current.used * 4L > index.length() * 3L) rehash(current);
+            return true;
+        }
+        
+        // Moves the live records to a table at most half full; lookups on the old one still finish
+        private void rehash(Store current) {
+            int capacity = MIN_CAPACITY;
+            while (capacity < size * 2L) capacity <<= 1;
+            int[] slots = new int[capacity];
+            AtomicIntegerArray index = current.index;
+            for (int i = 0; i < index.length(); i++) {
+                int value = index.get(i);
+                if (value <= 0) continue;
+                int slot = current.hashOf(value - 1) & (capacity - 1);
+                while (slots[slot] != 0) slot = (slot + 1) & (capacity - 1);
+                slots[slot] = value;
+            }
+            current.used = size;
+            current.index = new AtomicIntegerArray(slots);
+        }
+        
+        private static int find(Store store, byte[] key) {
+            AtomicIntegerArray index = store.index;
+            int mask = index.length() - 1;
+            for (int slot = hash(key, 0, key.length) & mask; ; slot = (slot + 1) & mask) {
+                int value = index.get(slot);
+                if (value == 0) return -1;
+                if (value != TOMBSTONE && store.compareId(value - 1, key) == 0) return value - 1;
+            }
+        }
+        
+        // The slot holding key, or -(slot to insert it at) - 1; under the lock only
+        private static int probe(Store store, AtomicIntegerArray index, byte[] key) {
+            int mask = index.length() - 1;
+            int free = -1;
+            for (int slot = hash(key, 0, key.length) & mask; ; slot = (slot + 1) & mask) {
+                int value = index.get(slot);
+                if (value == 0) return -(free >= 0 ? free : slot) - 1;
+                if (value == TOMBSTONE) {
+                    if (free < 0) free = slot;
+                } else if (store.compareId(value - 1, key) == 0) {
+                    return slot;
+                }
+            }
+        }
+        
+        private static int hash(byte[] bytes, int from, int length) {
+            int h = 0;
+            for (int i = from; i < from + length; i++) h = 31 * h + bytes[i];
+            // Spread the bits, as IDs often differ only in their last characters
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+        
+        // Sorts records by ID; bulk loads arrive sorted, so that case is one pass
+        private static int[] sort(Store store, int[] records) {
+            boolean sorted = true;
+            for (int i = 1; i < records.length && sorted; i++) sorted = store.compareIds(records[i - 1], records[i]) < 0;
+            if (sorted) return records;
+            int[] from = records;
+            int[] to = new int[records.length];
+            for (int width = 1; width < records.length; width <<= 1) {
+                for (int low = 0; low < records.length; low += 2 * width) {
+                    int mid = Math.min(low + width, records.length);
+                    int high = Math.min(low + 2 * width, records.length);
+                    int i = low;
+                    int j = mid;
+                    for (int k = low; k < high; k++) {
+                        to[k] = j >= high || (i < mid && store.compareIds(from[i], from[j]) <= 0) ? from[i++] : from[j++];
+                    }
+                }
+                int[] swap = from;
+                from = to;
+                to = swap;
+            }
+            return from;
+        }
     }
     
-    static class Vote {
-        private String voterId;
-        private long candidateId;
-        private long sectionId;
-        private String timestamp;
+    /**
+     * Which voters have voted in which section. Each voter who casts a ballot gets a dense
+     * integer index, and each section keeps a bitset over those indexes. Setting a bit is a
+     * compare-and-set, which makes the check and the record a single atomic step: of two
+     * racing ballots from one voter in one section exactly one wins. Derived from the vote
+     * store at startup.
+     *
+     * A per-index count of the sections the voter has voted in answers "has this voter
+     * voted at all" with one lookup instead of a walk over every section.
+     *
+     * Per voter who has voted, the index costs 11 to 21 bytes (see Indexes; the ID string
+     * itself is the one the voter's Vote holds), the count 4 bytes, and each section one bit.
+     */
+    static class BallotLedger {
+        private final Indexes indexes = new Indexes();
+        private final ConcurrentHashMap<Long, Bits> sections = new ConcurrentHashMap<>();
+        private final Counts voted = new Counts();
         
-        public Vote(String voterId, long candidateId, String timestamp) {
-            this.voterId = voterId;
-            this.candidateId = candidateId;
-            this.sectionId = 0;
-            this.timestamp = timestamp;
+        /** Records a ballot; false if the voter had already voted in the section. */
+        public boolean record(String voterId, long sectionId) {
+            int index = indexes.getOrAdd(voterId);
+            if (!sections.computeIfAbsent(sectionId, id -> new Bits()).set(index)) return false;
+            voted.add(index, 1);
+            return true;
         }
-
-        public Vote(String voterId, long candidateId, long sectionId, String timestamp) {
+        
+        /** Takes back a ballot that could not be persisted. */
+        public void revoke(String voterId, long sectionId) {
+            int index = indexes.get(voterId);
+            Bits bits = sections.get(sectionId);
+            if (index >= 0 && bits != null && bits.clear(index)) voted.add(index, -1);
+        }
+        
+        public boolean hasVoted(String voterId, long sectionId) {
+            int index = indexes.get(voterId);
+            Bits bits = sections.get(sectionId);
+            return index >= 0 && bits != null && bits.get(index);
+        }
+        
+        /** Whether the voter has voted in any section. */
+        public boolean hasVoted(String voterId) {
+            int index = indexes.get(voterId);
+            return index >= 0 && voted.get(index) > 0;
+        }
+        
+        public List<Long> sectionsVoted(String voterId) {
+            List<Long> voted = new ArrayList<>();
+            int index = indexes.get(voterId);
+            if (index < 0) return voted;
+            for (Map.Entry<Long, Bits> entry : sections.entrySet()) {
+                if (entry.getValue().get(index)) voted.add(entry.getKey());
+            }
+            Collections.sort(voted);
+            return voted;
+        }
+        
+        public void dropSection(long sectionId) {
+            Bits bits = sections.remove(sectionId);
+            if (bits != null) bits.forEachSet(index -> voted.add(index, -1));
+        }
+        
+        public void clear() {
+            sections.clear();
+            voted.clear();
+            indexes.clear();
+        }
+        
+        /** Replaces the ledger with the ballots held in the given shards, a shard per thread. */
+        public void rebuild(Collection<VoteStore.Shard> shards) {
+            clear();
+            shards.parallelStream().forEach(shard -> {
+                for (Vote vote : shard.votes.values()) record(vote.getVoterId(), shard.sectionId);
+            });
+        }
+        
+        /**
+         * Voter ID -> dense index, by open addressing over an array of IDs and a parallel
+         * int[] of indexes. The table is split into stripes by hash; a stripe is grown and
+         * written under its own lock, and its arrays are swapped in whole, so finding a voter
+         * who has an index never locks, and only a voter's first ballot takes a stripe lock.
+         * A slot costs 8 bytes and tables stay 3/8 to 3/4 full, which is 11 to 21 bytes per
+         * voter, against about 56 for a ConcurrentHashMap node and a boxed Integer.
+         */
+        static final class Indexes {
+            private static final int STRIPE_BITS = 6;
+            
+            private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+            private final AtomicInteger next = new AtomicInteger();
+            
+            Indexes() {
+                for (int i = 0; i < stripes.length; i++) stripes[i] = new Stripe();
+            }
+            
+            /** The voter's index, or -1 if it has none. */
+            int get(String voterId) {
+                int hash = hash(voterId);
+                return stripes[hash & (stripes.length - 1)].table.find(voterId, hash >>> STRIPE_BITS);
+            }
+            
+            int getOrAdd(String voterId) {
+                int hash = hash(voterId);
+                Stripe stripe = stripes[hash & (stripes.length - 1)];
+                int index = stripe.table.find(voterId, hash >>> STRIPE_BITS);
+                return index >= 0 ? index : stripe.add(voterId, hash >>> STRIPE_BITS, next);
+            }
+            
+            void clear() {
+                for (Stripe stripe : stripes) stripe.clear();
+                next.set(0);
+            }
+            
+            private static int hash(String voterId) {
+                int h = voterId.hashCode() * 0x9E3779B9;
+                return h ^ (h >>> 16);
+            }
+            
+            private static final class Stripe {
+                volatile Table table = new Table(16);
+                
+                synchronized int add(String voterId, int hash, AtomicInteger next) {
+                    Table current = table;
+                    int index = current.find(voterId, hash);
+                    if (index >= 0) return index;
+                    if ((current.size + 1) * 4L > current.indexes.length * 3L) {
+                        current = current.grown();
+                        table = current;
+                    }
+                    index = next.getAndIncrement();
+                    current.insert(voterId, hash, index);
+                    return index;
+                }
+                
+                synchronized void clear() {
+                    table = new Table(16);
+                }
+            }
+            
+            private static final class Table {
+                // A slot's index is written before its ID, so a reader that sees the ID sees the index
+                final AtomicReferenceArray<String> ids;
+                final int[] indexes;
+                // Written under the stripe lock only
+                int size;
+                
+                Table(int capacity) {
+                    ids = new AtomicReferenceArray<>(capacity);
+                    indexes = new int[capacity];
+                }
+                
+                int find(String voterId, int hash) {
+                    int mask = indexes.length - 1;
+                    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                        String id = ids.get(slot);
+                        if (id == null) return -1;
+                        if (id.equals(voterId)) return indexes[slot];
+                    }
+                }
+                
+                void insert(String voterId, int hash, int index) {
+                    int mask = indexes.length - 1;
+                    int slot = hash & mask;
+                    while (ids.get(slot) != null) slot = (slot + 1) & mask;
+                    indexes[slot] = index;
+                    ids.set(slot, voterId);
+                    size++;
+                }
+                
+                Table grown() {
+                    Table bigger = new Table(indexes.length * 2);
+                    for (int slot = 0; slot < indexes.length; slot++) {
+                        String id = ids.get(slot);
+                        if (id != null) bigger.insert(id, hash(id) >>> STRIPE_BITS, indexes[slot]);
+                    }
+                    return bigger;
+                }
+            }
+        }
+        
+        /**
+         * Growable concurrent bitset. Bits live in 8 KB pages that are allocated on first
+         * use; the page directory is copied on growth, which happens once per 64K voters, so
+         * reads and bit updates never lock.
+         */
+        static final class Bits {
+            private static final int PAGE_SHIFT = 16;
+            private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+            
+            private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+            
+            boolean get(int index) {
+                AtomicLongArray[] directory = pages;
+                int page = index >>> PAGE_SHIFT;
+                if (page >= directory.length || directory[page] == null) return false;
+                return (directory[page].get((index & PAGE_MASK) >>> 6) & (1L << index)) != 0;
+            }
+            
+            /** Sets the bit, returning false if it was already set. */
+            boolean set(int index) {
+                AtomicLongArray words = page(index >>> PAGE_SHIFT);
+                int word = (index & PAGE_MASK) >>> 6;
+                long bit = 1L << index;
+                while (true) {
+                    long current = words.get(word);
+                    if ((current & bit) != 0) return false;
+                    if (words.compareAndSet(word, current, current | bit)) return true;
+                }
+            }
+            
+            /** Clears the bit, returning false if it was not set. */
+            boolean clear(int index) {
+                AtomicLongArray[] directory = pages;
+                int page = index >>> PAGE_SHIFT;
+                if (page >= directory.length || directory[page] == null) return false;
+                AtomicLongArray words = directory[page];
+                int word = (index & PAGE_MASK) >>> 6;
+                long bit = 1L << index;
+                while (true) {
+                    long current = words.get(word);
+                    if ((current & bit) == 0) return false;
+                    if (words.compareAndSet(word, current, current & ~bit)) return true;
+                }
+            }
+            
+            void forEachSet(IntConsumer action) {
+                AtomicLongArray[] directory = pages;
+                for (int page = 0; page < directory.length; page++) {
+                    AtomicLongArray words = directory[page];
+                    if (words == null) continue;
+                    for (int word = 0; word < words.length(); word++) {
+                        long bits = words.get(word);
+                        while (bits != 0) {
+                            action.accept((page << PAGE_SHIFT) | (word << 6) | Long.numberOfTrailingZeros(bits));
+                            bits &= bits - 1;
+                        }
+                    }
+                }
+            }
+            
+            private AtomicLongArray page(int page) {
+                AtomicLongArray[] directory = pages;
+                if (page < directory.length && directory[page] != null) return directory[page];
+                synchronized (this) {
+                    directory = pages;
+                    if (page >= directory.length) directory = Arrays.copyOf(directory, page + 1);
+                    else if (directory[page] != null) return directory[page];
+                    else directory = directory.clone();
+                    directory[page] = new AtomicLongArray(1 << (PAGE_SHIFT - 6));
+                    pages = directory;
+                    return directory[page];
+                }
+            }
+        }
+        
+        /** Growable concurrent array of counters, paged like Bits: 256 KB per 64K voters. */
+        static final class Counts {
+            private static final int PAGE_SHIFT = 16;
+            private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+            
+            private volatile AtomicIntegerArray[] pages = new AtomicIntegerArray[0];
+            
+            int get(int index) {
+                AtomicIntegerArray[] directory = pages;
+                int page = index >>> PAGE_SHIFT;
+                if (page >= directory.length || directory[page] == null) return 0;
+                return directory[page].get(index & PAGE_MASK);
+            }
+            
+            void add(int index, int delta) {
+                page(index >>> PAGE_SHIFT).addAndGet(index & PAGE_MASK, delta);
+            }
+            
+            synchronized void clear() {
+                pages = new AtomicIntegerArray[0];
+            }
+            
+            private AtomicIntegerArray page(int page) {
+                AtomicIntegerArray[] directory = pages;
+                if (page < directory.length && directory[page] != null) return directory[page];
+                synchronized (this) {
+                    directory = pages;
+                    if (page >= directory.length) directory = Arrays.copyOf(directory, page + 1);
+                    else if (directory[page] != null) return directory[page];
+                    else directory = directory.clone();
+                    directory[page] = new AtomicIntegerArray(1 << PAGE_SHIFT);
+                    pages = directory;
+                    return directory[page];
+                }
+            }
+        }
+    }
+    
+    /**
+     * Votes partitioned by section. Each shard has its own sorted map and its own journal,
+     * votes/section-<id>.csv, so reading or deleting one section touches only its shard and
+     * shards load in parallel at startup. Votes cast without a section go to shard 0.
+     */
+    static class VoteStore {
+        private static final String SHARD_PREFIX = "section-";
+        private static final String SHARD_SUFFIX = ".csv";
+        
+        static class Shard {
+            final long sectionId;
+            final Path file;
+            // Replaced wholesale only while loading, before any request is served
+            ConcurrentSkipListMap<String, Vote> votes = new ConcurrentSkipListMap<>();
+            volatile VoteJournal journal;
+            // Requests voting into the shard right now; RETIRED is added once it is being dropped
+            private final AtomicInteger users = new AtomicInteger();
+            
+            Shard(long sectionId, Path file) {
+                this.sectionId = sectionId;
+                this.file = file;
+            }
+            
+            boolean enter() {
+                while (true) {
+                    int n = users.get();
+                    if (n < 0) return false;
+                    if (users.compareAndSet(n, n + 1)) return true;
+                }
+            }
+            
+            void exit() {
+                users.decrementAndGet();
+            }
+        }
+        
+        private static final int RETIRED = Integer.MIN_VALUE;
+        
+        private final Path dir;
+        private final long flushIntervalMillis;
+        private final int maxBatch;
+        private final ConcurrentHashMap<Long, Shard> shards = new ConcurrentHashMap<>();
+        // Dropped sections; their shards are never created again (section IDs are not reused)
+        private final Set<Long> dropped = ConcurrentHashMap.newKeySet();
+        // Once journals are open, a shard created for a new section opens its journal at once
+        private volatile boolean open;
+        
+        public VoteStore(Path dir, long flushIntervalMillis, int maxBatch) {
+            this.dir = dir;
+            this.flushIntervalMillis = flushIntervalMillis;
+            this.maxBatch = maxBatch;
+        }
+        
+        public Path fileFor(long sectionId) {
+            return dir.resolve(SHARD_PREFIX + sectionId + SHARD_SUFFIX);
+        }
+        
+        /**
+         * The section's shard, created on first use, or null once the section was dropped;
+         * throws UncheckedIOException if its journal cannot be opened.
+         */
+        public Shard shard(long sectionId) {
+            return shards.computeIfAbsent(sectionId, id -> {
+                if (dropped.contains(id)) return null;
+                Shard shard = new Shard(id, fileFor(id));
+                if (open) {
+                    try {
+                        shard.journal = new VoteJournal(shard.file.toString(), flushIntervalMillis, maxBatch);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return shard;
+            });
+        }
+        
+        /**
+         * The section's shard, entered so drop() waits for the caller's vote to finish, or
+         * null if the section is dropped or being dropped. The caller must exit() it.
+         */
+        public Shard enter(long sectionId) {
+            Shard shard = shard(sectionId);
+            return shard != null && shard.enter() ? shard : null;
+        }
+        
+        public Shard find(long sectionId) {
+            return shards.get(sectionId);
+        }
+        
+        public Collection<Shard> shards() {
+            return shards.values();
+        }
+        
+        public int size() {
+            int n = 0;
+            for (Shard shard : shards.values()) n += shard.votes.size();
+            return n;
+        }
+        
+        /** Votes queued across every journal and not yet written. */
+        public int queued() {
+            int n = 0;
+            for (Shard shard : shards.values()) {
+                VoteJournal journal = shard.journal;
+                if (journal != null) n += journal.queued();
+            }
+            return n;
+        }
+        
+        public List<Collection<Vote>> parts() {
+            List<Collection<Vote>> parts = new ArrayList<>();
+            for (Shard shard : shards.values()) parts.add(shard.votes.values());
+            return parts;
+        }
+        
+        /**
+         * Votes merged across shards in (voter ID, section ID) order, starting after the given
+         * position, or from the start when the voter ID is null.
+         */
+        public Iterator<Vote> iterator(String afterVoter, long afterSection) {
+            PriorityQueue<Map.Entry<Vote, Iterator<Vote>>> heads = new PriorityQueue<>(
+                    Comparator.comparing((Map.Entry<Vote, Iterator<Vote>> e) -> e.getKey().getVoterId())
+                            .thenComparingLong(e -> e.getKey().getSectionId()));
+            for (Shard shard : shards.values()) {
+                NavigableMap<String, Vote> view = afterVoter == null ? shard.votes
+                        : shard.votes.tailMap(afterVoter, shard.sectionId > afterSection);
+                Iterator<Vote> it = view.values().iterator();
+                if (it.hasNext()) heads.add(new AbstractMap.SimpleEntry<>(it.next(), it));
+            }
+            return new Iterator<Vote>() {
+                @Override
+                public boolean hasNext() {
+                    return !heads.isEmpty();
+                }
+                
+                @Override
+                public Vote next() {
+                    Map.Entry<Vote, Iterator<Vote>> head = heads.poll();
+                    if (head == null) throw new NoSuchElementException();
+                    Iterator<Vote> rest = head.getValue();
+                    if (rest.hasNext()) heads.add(new AbstractMap.SimpleEntry<>(rest.next(), rest));
+                    return head.getKey();
+                }
+            };
+        }
+        
+        /** Opens a journal for every shard; from here on votes can be appended. */
+        public void open() throws IOException {
+            Files.createDirectories(dir);
+            for (Shard shard : shards.values()) {
+                shard.journal = new VoteJournal(shard.file.toString(), flushIntervalMillis, maxBatch);
+            }
+            open = true;
+        }
+        
+        public void close() {
+            open = false;
+            for (Shard shard : shards.values()) {
+                if (shard.journal != null) shard.journal.close();
+            }
+        }
+        
+        /**
+         * Drops a section's votes and deletes its file, after the votes already in the shard
+         * have finished. No shard is created for the section afterwards.
+         */
+        public void drop(long sectionId) throws IOException {
+            dropped.add(sectionId);
+            // Through the map's lock for the key, so a shard() that missed the tombstone has finished
+            Shard shard = shards.computeIfPresent(sectionId, (id, existing) -> existing);
+            if (shard == null) return;
+            shard.users.addAndGet(RETIRED);
+            // Bounded by the journal ack timeout of the slowest vote in flight
+            while (shard.users.get() != RETIRED) {
+                java.util.concurrent.locks.LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            shards.remove(sectionId, shard);
+            if (shard.journal != null) shard.journal.close();
+            Files.deleteIfExists(shard.file);
+        }
+        
+        /** Forgets a section's votes but leaves its file alone, for a follower, which has no files. */
+        public void evict(long sectionId) {
+            shards.remove(sectionId);
+        }
+        
+        /** Forgets the in-memory votes; files are left alone. */
+        public void clear() {
+            shards.clear();
+        }
+        
+        /** Section IDs that have a shard file on disk. */
+        public List<Long> sectionsOnDisk() throws IOException {
+            List<Long> ids = new ArrayList<>();
+            if (!Files.isDirectory(dir)) return ids;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SHARD_PREFIX + "*" + SHARD_SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    try {
+                        ids.add(Long.parseLong(name.substring(SHARD_PREFIX.length(), name.length() - SHARD_SUFFIX.length())));
+                    } catch (NumberFormatException ignore) {}
+                }
+            }
+            return ids;
+        }
+        
+        /** Reads a shard's whole file into its map, returning how many records were read. */
+        public long load(Shard shard) throws IOException {
+            return replayVotes(shard.file.toString(), 0, vote -> shard.votes.put(vote.getVoterId(), vote));
+        }
+        
+        /** Loads every shard file, in parallel, into a freshly cleared store. */
+        public void loadAll() throws IOException {
+            clear();
+            List<Long> ids = sectionsOnDisk();
+            ids.parallelStream().forEach(id -> {
+                try {
+                    load(shard(id));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        
+        /**
+         * Splits a single pre-sharding votes file into shard files, then renames it out of
+         * the way so it is not read again. Does nothing if shards already exist.
+         */
+        public void migrate(Path legacy) throws IOException {
+            if (!Files.exists(legacy) || !sectionsOnDisk().isEmpty()) return;
+            Map<Long, StringBuilder> lines = new HashMap<>();
+            long records = replayVotes(legacy.toString(), 0,
+                    vote -> lines.computeIfAbsent(vote.getSectionId(), k -> new StringBuilder()).append(formatVote(vote)));
+            Files.createDirectories(dir);
+            for (Map.Entry<Long, StringBuilder> entry : lines.entrySet()) {
+                Path file = fileFor(entry.getKey());
+                try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(entry.getValue().toString().getBytes(StandardCharsets.UTF_8));
+                    while (buffer.hasRemaining()) out.write(buffer);
+                    out.force(true);
+                }
+            }
+            Files.move(legacy, legacy.resolveSibling(legacy.getFileName() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Split " + records + " records from " + legacy + " into " + lines.size() + " section files under " + dir);
+        }
+    }
+    
+    /**
+     * Append-only journal for one vote shard file. Callers enqueue records and a single writer
+     * thread groups everything that arrives within the flush interval (up to maxBatch
+     * records) into one write and one fsync, then completes every future in the batch.
+     */
+    static class VoteJournal {
+        private final Path path;
+        private final long flushIntervalMillis;
+        private final int maxBatch;
+        private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+        private final Thread writer;
+        private FileChannel channel;
+        private volatile boolean closed;
+        
+        // Votes to append, a request to rewrite the file from a snapshot, or (with neither) a position mark
+        private static class Entry {
+            final String line;
+            final int records;
+            final java.util.function.Supplier<Collection<Vote>> snapshot;
+            final Pending done = new Pending();
+            Position position;
+            
+            Entry(String line, int records, java.util.function.Supplier<Collection<Vote>> snapshot) {
+                this.line = line;
+                this.records = records;
+                this.snapshot = snapshot;
+            }
+        }
+        
+        /** Completion of one record; whoever claims it first, the writer or a timed-out caller, decides its fate. */
+        private static class Pending extends CompletableFuture<Void> {
+            private final AtomicBoolean claimed = new AtomicBoolean();
+            
+            boolean claim() {
+                return claimed.compareAndSet(false, true);
+            }
+        }
+        
+        /** A record boundary in the journal file and a checksum of the bytes just before it. */
+        static class Position {
+            final long offset;
+            final long tailChecksum;
+            
+            Position(long offset, long tailChecksum) {
+                this.offset = offset;
+                this.tailChecksum = tailChecksum;
+            }
+        }
+        
+        public VoteJournal(String fileName, long flushIntervalMillis, int maxBatch) throws IOException {
+            this.path = Paths.get(fileName);
+            this.flushIntervalMillis = Math.max(0, flushIntervalMillis);
+            this.maxBatch = Math.max(1, maxBatch);
+            this.channel = openForAppend(path);
+            this.writer = new Thread(this::writeLoop, "vote-journal-" + path.getFileName());
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+        
+        public CompletableFuture<Void> append(Vote vote) {
+            return enqueue(new Entry(formatVote(vote), 1, null));
+        }
+        
+        /** Appends several votes as one record of the queue, so they share a write and an fsync. */
+        public CompletableFuture<Void> appendAll(Collection<Vote> votes) {
+            StringBuilder lines = new StringBuilder(votes.size() * 48);
+            for (Vote vote : votes) lines.append(formatVote(vote));
+            return enqueue(new Entry(lines.toString(), votes.size(), null));
+        }
+        
+        /** Rewrites the journal from the snapshot, ordered after every append queued so far. */
+        public CompletableFuture<Void> compact(java.util.function.Supplier<Collection<Vote>> snapshot) {
+            return enqueue(new Entry(null, 0, snapshot));
+        }
+        
+        /**
+         * The journal's end once every record queued so far is on disk. Records past the
+         * offset can be replayed on top of a state that already holds everything before it.
+         */
+        public CompletableFuture<Position> mark() {
+            Entry entry = new Entry(null, 0, null);
+            return enqueue(entry).thenApply(v -> entry.position);
+        }
+        
+        /**
+         * Fails a record the writer has not picked up yet, so it will never reach the file.
+         * False once the writer has claimed it; the record is then written (or fails) as usual.
+         */
+        static boolean withdraw(CompletableFuture<Void> written) {
+            if (!(written instanceof Pending) || !((Pending) written).claim()) return false;
+            written.completeExceptionally(new IOException("Vote journal write withdrawn"));
+            return true;
+        }
+        
+        // Checked and added under the lock close() takes, so no record lands after the writer's last look
+        private CompletableFuture<Void> enqueue(Entry entry) {
+            synchronized (queue) {
+                if (!closed) {
+                    queue.add(entry);
+                    return entry.done;
+                }
+            }
+            entry.done.completeExceptionally(new IOException("Vote journal is closed"));
+            return entry.done;
+        }
+        
+        /** Stops accepting records and waits for the writer to flush what is queued. */
+        public void close() {
+            synchronized (queue) {
+                closed = true;
+            }
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        private void writeLoop() {
+            List<Entry> batch = new ArrayList<>(maxBatch);
+            while (!closed || !queue.isEmpty()) {
+                try {
+                    // Poll rather than take so close() never has to interrupt a channel write
+                    Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    // Give concurrent voters a short window to join this fsync
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                    while (batch.size() < maxBatch && first.line != null) {
+                        queue.drainTo(batch, maxBatch - batch.size());
+                        long remaining = deadline - System.nanoTime();
+                        if (batch.size() >= maxBatch || remaining <= 0 || closed) break;
+                        Entry next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                        batch.add(next);
+                    }
+                } catch (InterruptedException e) {
+                    // Nobody else owns this thread; treat it as a shutdown and drain
+                    synchronized (queue) {
+                        closed = true;
+                    }
+                }
+                // Records withdrawn by a timed-out caller stay out of the file
+                batch.removeIf(entry -> !entry.done.claim());
+                flush(batch);
+                batch.clear();
+            }
+            // Nothing can be queued once closed is set, but never leave a caller waiting on a record
+            for (Entry entry; (entry = queue.poll()) != null; ) {
+                if (entry.done.claim()) entry.done.completeExceptionally(new IOException("Vote journal is closed"));
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing vote journal: " + e.getMessage());
+            }
+        }
+        
+        private void flush(List<Entry> batch) {
+            int start = 0;
+            while (start < batch.size()) {
+                Entry entry = batch.get(start);
+                if (entry.snapshot != null) {
+                    complete(batch.subList(start, start + 1), rewrite(entry.snapshot.get()));
+                    start++;
+                    continue;
+                }
+                if (entry.line == null) {
+                    complete(batch.subList(start, start + 1), mark(entry));
+                    start++;
+                    continue;
+                }
+                int end = start;
+                while (end < batch.size() && batch.get(end).line != null) end++;
+                complete(batch.subList(start, end), appendLines(batch.subList(start, end)));
+                start = end;
+            }
+        }
+        
+        private IOException appendLines(List<Entry> entries) {
+            StringBuilder sb = new StringBuilder(entries.size() * 48);
+            int records = 0;
+            for (Entry entry : entries) {
+                sb.append(entry.line);
+                records += entry.records;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            long started = System.nanoTime();
+            try {
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(false);
+                Metrics.journalFlush.record(System.nanoTime() - started);
+                Metrics.journalVotes.add(records);
+                return null;
+            } catch (IOException e) {
+                return e;
+            }
+        }
+        
+        private IOException rewrite(Collection<Vote> snapshot) {
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try {
+                try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    StringBuilder sb = new StringBuilder();
+                    for (Vote vote : snapshot) sb.append(formatVote(vote));
+                    ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+                    while (buffer.hasRemaining()) out.write(buffer);
+                    out.force(true);
+                }
+                channel.close();
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                channel = openForAppend(path);
+                return null;
+            } catch (IOException e) {
+                try {
+                    if (!channel.isOpen()) channel = openForAppend(path);
+                } catch (IOException reopen) {
+                    System.err.println("Error reopening vote journal: " + reopen.getMessage());
+                }
+                return e;
+            }
+        }
+        
+        private IOException mark(Entry entry) {
+            try {
+                long offset = channel.size();
+                entry.position = new Position(offset, tailChecksum(path, offset));
+                return null;
+            } catch (IOException e) {
+                return e;
+            }
+        }
+        
+        /** CRC32 of up to the last 4 KB before offset, or -1 when the file is shorter than that. */
+        static long tailChecksum(Path path, long offset) throws IOException {
+            if (offset == 0) return 0;
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (in.size() < offset) return -1;
+                ByteBuffer tail = ByteBuffer.allocate((int) Math.min(offset, 4096));
+                long pos = offset - tail.capacity();
+                while (tail.hasRemaining()) {
+                    int n = in.read(tail, pos + tail.position());
+                    if (n < 0) return -1;
+                }
+                tail.flip();
+                CRC32 crc = new CRC32();
+                crc.update(tail);
+                return crc.getValue();
+            }
+        }
+        
+        private static void complete(List<Entry> entries, IOException error) {
+            for (Entry entry : entries) {
+                if (error == null) {
+                    entry.done.complete(null);
+                } else {
+                    entry.done.completeExceptionally(error);
+                }
+            }
+        }
+        
+        /** Records queued and not yet written. */
+        public int queued() {
+            return queue.size();
+        }
+        
+        private static FileChannel openForAppend(Path path) throws IOException {
+            return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }
+    
+    /**
+     * Writes the CSV tables (voters, candidates, sections) from one thread, so two saves
+     * never race on the same file. A save is queued and, by the table's mode, waited for:
+     * sync until a rewrite started at once, group until one started after the group
+     * window, shared by every save arriving meanwhile, and async not at all, the rewrite
+     * following within the async window. A rewrite covers every save of its table queued
+     * before it started. It goes to a temp file that is fsynced and renamed over the
+     * table, so a crash leaves either the old file or the new one.
+     */
+    static class Persistence {
+        static final String SYNC = "sync";
+        static final String GROUP = "group";
+        static final String ASYNC = "async";
+        
+        /** One CSV file and how to write its rows. */
+        static class Table {
+            final String name;
+            final Path path;
+            final String mode;
+            final Consumer<PrintWriter> rows;
+            final Metrics.Histogram flushes = new Metrics.Histogram();
+            // Writer thread only: saves waiting for the next rewrite, and when it is due
+            private final List<CompletableFuture<Void>> waiting = new ArrayList<>();
+            private long dueAt;
+            
+            Table(String name, Path path, String mode, Consumer<PrintWriter> rows) {
+                this.name = name;
+                this.path = path;
+                this.mode = mode;
+                this.rows = rows;
+            }
+        }
+        
+        private static class Save {
+            final Table table;
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+            
+            Save(Table table) {
+                this.table = table;
+            }
+        }
+        
+        private final long groupWindowNanos;
+        private final long asyncFlushNanos;
+        private final List<Table> tables = new CopyOnWriteArrayList<>();
+        private final BlockingQueue<Save> queue = new LinkedBlockingQueue<>();
+        // Saves queued or waiting for their rewrite
+        private final AtomicInteger pending = new AtomicInteger();
+        private final LongAdder failures = new LongAdder();
+        private final Thread writer;
+        private volatile boolean closed;
+        
+        public Persistence(long groupWindowMillis, long asyncFlushMillis) {
+            this.groupWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, groupWindowMillis));
+            this.asyncFlushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, asyncFlushMillis));
+            this.writer = new Thread(this::writeLoop, "persistence-writer");
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+        
+        /** The mode named by a -Dvoting.persist.* property, or group for anything else. */
+        static String mode(String table, String requested) {
+            if (requested.equals(SYNC) || requested.equals(GROUP) || requested.equals(ASYNC)) return requested;
+            System.out.println("Unknown durability mode '" + requested + "' for " + table + ", using group");
+            return GROUP;
+        }
+        
+        public Table table(String name, String file, String mode, Consumer<PrintWriter> rows) {
+            Table table = new Table(name, Paths.get(file), mode, rows);
+            tables.add(table);
+            return table;
+        }
+        
+        /** Queues a rewrite of the table; the future completes as the table's mode promises. */
+        public CompletableFuture<Void> save(Table table) {
+            Save save = new Save(table);
+            // Checked and added under the lock close() takes, so no save lands after the writer's last look
+            synchronized (queue) {
+                if (!closed) {
+                    pending.incrementAndGet();
+                    queue.add(save);
+                    return table.mode.equals(ASYNC) ? CompletableFuture.completedFuture(null) : save.done;
+                }
+            }
+            System.err.println("Error saving " + table.name + ": persistence is closed");
+            save.done.completeExceptionally(new IOException("Persistence is closed"));
+            return save.done;
+        }
+        
+        public int pending() {
+            return pending.get();
+        }
+        
+        public long failures() {
+            return failures.sum();
+        }
+        
+        public List<Table> tables() {
+            return tables;
+        }
+        
+        /** Stops accepting saves and waits for every waiting table to be written. */
+        public void close() {
+            synchronized (queue) {
+                closed = true;
+            }
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        private void writeLoop() {
+            List<Save> arrived = new ArrayList<>();
+            while (true) {
+                try {
+                    long wait = untilDue(System.nanoTime());
+                    // Poll rather than take so close() never has to interrupt a file write
+                    Save save = wait > 0 ? queue.poll(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(100)), TimeUnit.NANOSECONDS) : null;
+                    if (save != null) arrived.add(save);
+                } catch (InterruptedException e) {
+                    // Nobody else owns this thread; treat it as a shutdown and drain
+                    synchronized (queue) {
+                        closed = true;
+                    }
+                }
+                // Everything queued by now is in the tables, so the rewrites below cover it
+                queue.drainTo(arrived);
+                long now = System.nanoTime();
+                for (Save save : arrived) {
+                    Table table = save.table;
+                    if (table.waiting.isEmpty()) table.dueAt = now + delay(table.mode);
+                    table.waiting.add(save.done);
+                }
+                arrived.clear();
+                boolean idle = true;
+                for (Table table : tables) {
+                    if (table.waiting.isEmpty()) continue;
+                    if (closed || now - table.dueAt >= 0) {
+                        write(table);
+                    } else {
+                        idle = false;
+                    }
+                }
+                if (closed && idle && queue.isEmpty()) return;
+            }
+        }
+        
+        private long delay(String mode) {
+            if (mode.equals(SYNC)) return 0;
+            return mode.equals(ASYNC) ? asyncFlushNanos : groupWindowNanos;
+        }
+        
+        // Nanoseconds until the earliest waiting table is due, or Long.MAX_VALUE with none waiting
+        private long untilDue(long now) {
+            if (closed) return 0;
+            long wait = Long.MAX_VALUE;
+            for (Table table : tables) {
+                if (!table.waiting.isEmpty()) wait = Math.min(wait, table.dueAt - now);
+            }
+            return wait;
+        }
+        
+        private void write(Table table) {
+            long started = System.nanoTime();
+            Path tmp = table.path.resolveSibling(table.path.getFileName() + ".tmp");
+            IOException error = null;
+            try {
+                try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    // The platform charset, as FileReader in the loaders expects, replacing what it cannot encode
+                    PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(out)), 64 * 1024));
+                    table.rows.accept(writer);
+                    writer.flush();
+                    if (writer.checkError()) throw new IOException("write to " + tmp + " failed");
+                    out.force(true);
+                }
+                Files.move(tmp, table.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                table.flushes.record(System.nanoTime() - started);
+            } catch (IOException e) {
+                error = e;
+                failures.increment();
+                System.err.println("Error saving " + table.name + ": " + e.getMessage());
+            }
+            for (CompletableFuture<Void> done : table.waiting) {
+                if (error == null) {
+                    done.complete(null);
+                } else {
+                    done.completeExceptionally(error);
+                }
+            }
+            pending.addAndGet(-table.waiting.size());
+            table.waiting.clear();
+        }
+    }
+    
+    /**
+     * Binary image of voters, candidates, sections and votes for fast restarts. A fixed
+     * header (magic, version, the size and mtime of each CSV) is followed by one block per
+     * table, and one per vote shard, each with its own record count and CRC32. A shard's
+     * block starts with its section ID and the journal position its votes were taken at.
+     * Blocks are memory-mapped on load. A table whose CSV changed after the snapshot is
+     * parsed from the CSV instead, and journal records past a shard's mark are replayed on
+     * top of the snapshot's votes; shards are restored in parallel.
+     */
+    static class DataSnapshot {
+        private static final int MAGIC = 0x56534E50; // "VSNP"
+        private static final int VERSION = 3;
+        // magic, version, created, three file stamps, two id counters, header CRC
+        private static final int HEADER_BYTES = 4 + 4 + 8 + 3 * 16 + 16 + 8;
+        // tag, record count, payload length, payload CRC
+        private static final int BLOCK_HEADER_BYTES = 4 + 4 + 8 + 8;
+        private static final int VOTERS = 1;
+        private static final int CANDIDATES = 2;
+        private static final int SECTIONS = 3;
+        private static final int VOTES = 4;
+        
+        // Stamps and journal offset of the last snapshot written, to skip unchanged rewrites
+        private static String lastWritten;
+        
+        private interface RecordWriter {
+            int write(DataOutputStream out) throws IOException;
+        }
+        
+        /** Size and modification time of a file; a missing file has size -1. */
+        private static class FileStamp {
+            final long size;
+            final long modified;
+            
+            FileStamp(long size, long modified) {
+                this.size = size;
+                this.modified = modified;
+            }
+            
+            static FileStamp of(String fileName) throws IOException {
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(Paths.get(fileName), BasicFileAttributes.class);
+                    return new FileStamp(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.MICROSECONDS));
+                } catch (NoSuchFileException e) {
+                    return new FileStamp(-1, 0);
+                }
+            }
+            
+            boolean matches(String fileName) throws IOException {
+                FileStamp current = of(fileName);
+                return current.size == size && current.modified == modified;
+            }
+            
+            @Override
+            public String toString() {
+                return size + "@" + modified;
+            }
+        }
+        
+        /**
+         * Writes a snapshot next to path and moves it into place once it is on disk.
+         * Returns false when nothing changed since the last snapshot.
+         */
+        public static synchronized boolean write(Path path, VoteStore store) throws IOException, InterruptedException, ExecutionException {
+            // Stamp the CSVs before reading the maps: a save racing with us leaves a stale stamp, never stale data
+            FileStamp voterStamp = FileStamp.of(VOTERS_FILE);
+            FileStamp candidateStamp = FileStamp.of(CANDIDATES_FILE);
+            FileStamp sectionStamp = FileStamp.of(SECTIONS_FILE);
+            // Every vote journaled before a shard's mark was put in its map before it was journaled
+            Map<VoteStore.Shard, CompletableFuture<VoteJournal.Position>> pending = new LinkedHashMap<>();
+            for (VoteStore.Shard shard : store.shards()) {
+                if (shard.journal != null) pending.put(shard, shard.journal.mark());
+            }
+            Map<VoteStore.Shard, VoteJournal.Position> marks = new LinkedHashMap<>();
+            StringBuilder stamps = new StringBuilder(voterStamp + "," + candidateStamp + "," + sectionStamp);
+            for (Map.Entry<VoteStore.Shard, CompletableFuture<VoteJournal.Position>> entry : pending.entrySet()) {
+                VoteJournal.Position mark = entry.getValue().get();
+                marks.put(entry.getKey(), mark);
+                stamps.append(',').append(entry.getKey().sectionId).append('@').append(mark.offset).append('/').append(mark.tailChecksum);
+            }
+            if (stamps.toString().equals(lastWritten) && Files.exists(path)) return false;
+            
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                out.position(HEADER_BYTES);
+                writeBlock(out, VOTERS, data -> {
+                    int n = 0;
+                    VoterRegistry.Roll roll = voterView.get();
+                    for (int i = 0; i < roll.size(); i++) {
+                        Voter voter = roll.voter(i);
+                        writeString(data, voter.getVoterId());
+                        writeString(data, voter.getName());
+                        data.writeInt(voter.getAge());
+                        writeString(data, voter.getGender());
+                        n++;
+                    }
+                    return n;
+                });
+                writeBlock(out, CANDIDATES, data -> {
+                    int n = 0;
+                    for (Candidate candidate : candidates.values()) {
+                        data.writeLong(candidate.getId());
+                        writeString(data, candidate.getName());
+                        writeString(data, candidate.getParty());
+                        data.writeInt(candidate.getAge());
+                        writeString(data, candidate.getGender());
+                        data.writeLong(candidate.getSectionId());
+                        n++;
+                    }
+                    return n;
+                });
+                writeBlock(out, SECTIONS, data -> {
+                    int n = 0;
+                    for (VotingSection section : sections.values()) {
+                        data.writeLong(section.getId());
+                        writeString(data, section.getName());
+                        writeString(data, section.getDescription());
+                        writeString(data, section.getStartDate());
+                        writeString(data, section.getEndDate());
+                        n++;
+                    }
+                    return n;
+                });
+                for (Map.Entry<VoteStore.Shard, VoteJournal.Position> entry : marks.entrySet()) {
+                    VoteStore.Shard shard = entry.getKey();
+                    VoteJournal.Position mark = entry.getValue();
+                    writeBlock(out, VOTES, data -> {
+                        data.writeLong(shard.sectionId);
+                        data.writeLong(mark.offset);
+                        data.writeLong(mark.tailChecksum);
+                        int n = 0;
+                        for (Vote vote : shard.votes.values()) {
+                            writeString(data, vote.getVoterId());
+                            data.writeLong(vote.getCandidateId());
+                            data.writeLong(vote.getSectionId());
+                            writeString(data, vote.getTimestamp());
+                            writeString(data, vote.getKey());
+                            n++;
+                        }
+                        return n;
+                    });
+                }
+                
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+                for (FileStamp stamp : new FileStamp[] { voterStamp, candidateStamp, sectionStamp }) {
+                    header.putLong(stamp.size).putLong(stamp.modified);
+                }
+                header.putLong(candidateIdCounter.get()).putLong(sectionIdCounter.get());
+                header.putLong(checksum(header, 0, HEADER_BYTES - 8));
+                header.flip();
+                writeFully(out, header, 0);
+                out.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastWritten = stamps.toString();
+            return true;
+        }
+        
+        private static void writeBlock(FileChannel out, int tag, RecordWriter records) throws IOException {
+            long start = out.position();
+            out.position(start + BLOCK_HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            // Not closed: that would close the file channel underneath
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(out), crc), 1 << 16));
+            int count = records.write(data);
+            data.flush();
+            long length = out.position() - start - BLOCK_HEADER_BYTES;
+            ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+            blockHeader.putInt(tag).putInt(count).putLong(length).putLong(crc.getValue());
+            blockHeader.flip();
+            writeFully(out, blockHeader, start);
+        }
+        
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        
+        private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+        }
+        
+        /**
+         * Fills the in-memory tables from the snapshot at path, falling back to the CSV for any
+         * table the snapshot no longer covers. Returns a description of where the data came
+         * from, or null (with the tables possibly half-filled) when the snapshot is unusable.
+         */
+        public static String load(Path path) {
+            if (!Files.exists(path)) return null;
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                long fileSize = in.size();
+                if (fileSize < HEADER_BYTES) throw new IOException("truncated header");
+                ByteBuffer header = in.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+                if (header.getInt() != MAGIC) throw new IOException("not a snapshot file");
+                int version = header.getInt();
+                if (version != VERSION) throw new IOException("unsupported version " + version);
+                if (checksum(header, 0, HEADER_BYTES - 8) != header.getLong(HEADER_BYTES - 8)) {
+                    throw new IOException("header checksum mismatch");
+                }
+                header.getLong(); // created
+                FileStamp voterStamp = new FileStamp(header.getLong(), header.getLong());
+                FileStamp candidateStamp = new FileStamp(header.getLong(), header.getLong());
+                FileStamp sectionStamp = new FileStamp(header.getLong(), header.getLong());
+                long candidateCounter = header.getLong();
+                long sectionCounter = header.getLong();
+                
+                // Map and verify every block before touching the tables
+                Map<Integer, ByteBuffer> blocks = new HashMap<>();
+                Map<Integer, Integer> counts = new HashMap<>();
+                List<ByteBuffer> shardBlocks = new ArrayList<>();
+                List<Integer> shardCounts = new ArrayList<>();
+                ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+                long position = HEADER_BYTES;
+                while (position < fileSize) {
+                    blockHeader.clear();
+                    while (blockHeader.hasRemaining()) {
+                        if (in.read(blockHeader, position + blockHeader.position()) < 0) throw new IOException("truncated block header");
+                    }
+                    int tag = blockHeader.getInt(0);
+                    int count = blockHeader.getInt(4);
+                    long length = blockHeader.getLong(8);
+                    long crc = blockHeader.getLong(16);
+                    position += BLOCK_HEADER_BYTES;
+                    if (length < 0 || position + length > fileSize) throw new IOException("truncated block " + tag);
+                    ByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                    if (checksum(data, 0, (int) length) != crc) throw new IOException("checksum mismatch in block " + tag);
+                    if (tag == VOTES) {
+                        shardBlocks.add(data);
+                        shardCounts.add(count);
+                    } else {
+                        blocks.put(tag, data);
+                        counts.put(tag, count);
+                    }
+                    position += length;
+                }
+                for (int tag = VOTERS; tag <= SECTIONS; tag++) {
+                    if (!blocks.containsKey(tag)) throw new IOException("missing block " + tag);
+                }
+                
+                List<String> fromSnapshot = new ArrayList<>();
+                List<String> fromCsv = new ArrayList<>();
+                if (voterStamp.matches(VOTERS_FILE)) {
+                    readVoters(new BlockReader(blocks.get(VOTERS)), counts.get(VOTERS));
+                    fromSnapshot.add("voters");
+                } else {
+                    loadVoters();
+                    fromCsv.add("voters");
+                }
+                if (candidateStamp.matches(CANDIDATES_FILE)) {
+                    readCandidates(new BlockReader(blocks.get(CANDIDATES)), counts.get(CANDIDATES));
+                    candidateIdCounter.set(Math.max(candidateIdCounter.get(), candidateCounter));
+                    fromSnapshot.add("candidates");
+                } else {
+                    loadCandidates();
+                    fromCsv.add("candidates");
+                }
+                if (sectionStamp.matches(SECTIONS_FILE)) {
+                    readSections(new BlockReader(blocks.get(SECTIONS)), counts.get(SECTIONS));
+                    sectionIdCounter.set(Math.max(sectionIdCounter.get(), sectionCounter));
+                    fromSnapshot.add("sections");
+                } else {
+                    loadSections();
+                    fromCsv.add("sections");
+                }
+                String shardSources = loadShards(shardBlocks, shardCounts);
+                fromSnapshot.add("votes + " + shardSources);
+                
+                String source = "snapshot (" + String.join(", ", fromSnapshot) + ")";
+                return fromCsv.isEmpty() ? source : source + " and CSV (" + String.join(", ", fromCsv) + ")";
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Snapshot not usable (" + e.getMessage() + "), loading CSV files");
+                return null;
+            }
+        }
+        
+        /**
+         * Restores every vote shard in parallel: from its snapshot block plus the journal tail
+         * when the shard file still starts with what the snapshot saw, else from the file
+         * alone. Shard files the snapshot does not know are read in full. Sections are loaded
+         * by now, so blocks and files of sections deleted since the snapshot are skipped.
+         */
+        private static String loadShards(List<ByteBuffer> shardBlocks, List<Integer> shardCounts) throws IOException {
+            voteStore.clear();
+            Map<Long, Integer> blockFor = new HashMap<>();
+            for (int i = 0; i < shardBlocks.size(); i++) blockFor.put(shardBlocks.get(i).getLong(0), i);
+            Set<Long> ids = new TreeSet<>(voteStore.sectionsOnDisk());
+            ids.addAll(blockFor.keySet());
+            // Shard 0 holds the votes cast without a section
+            ids.removeIf(id -> id != 0 && !sections.containsKey(id));
+            
+            LongAdder replayed = new LongAdder();
+            LongAdder fromFiles = new LongAdder();
+            ids.parallelStream().forEach(id -> {
+                VoteStore.Shard shard = voteStore.shard(id);
+                Integer block = blockFor.get(id);
+                try {
+                    if (block != null) {
+                        BlockReader in = new BlockReader(shardBlocks.get(block).duplicate());
+                        in.buffer.position(8);
+                        long offset = in.buffer.getLong();
+                        long tail = in.buffer.getLong();
+                        // The shard file prefix must still be the one the votes were taken from
+                        boolean current = Files.exists(shard.file)
+                                ? VoteJournal.tailChecksum(shard.file, offset) == tail
+                                : offset == 0;
+                        if (current) {
+                            shard.votes = readVotes(in, shardCounts.get(block));
+                            if (Files.exists(shard.file)) {
+                                replayed.add(replayVotes(shard.file.toString(), offset, vote -> shard.votes.put(vote.getVoterId(), vote)));
+                            }
+                            return;
+                        }
+                    }
+                    voteStore.load(shard);
+                    fromFiles.increment();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            String source = replayed.sum() + " journal records";
+            return fromFiles.sum() == 0 ? source : source + ", " + fromFiles.sum() + " shards from their files";
+        }
+        
+        private static void readVoters(BlockReader in, int count) {
+            for (int i = 0; i < count; i++) {
+                voters.put(new Voter(in.string(), in.string(), in.buffer.getInt(), in.string()));
+            }
+        }
+        
+        private static void readCandidates(BlockReader in, int count) {
+            for (int i = 0; i < count; i++) {
+                Candidate candidate = new Candidate(in.buffer.getLong(), in.string(), in.string(), in.buffer.getInt(), in.string());
+                candidate.setSectionId(in.buffer.getLong());
+                candidates.put(candidate.getId(), candidate);
+                candidateIdCounter.set(Math.max(candidateIdCounter.get(), candidate.getId() + 1));
+            }
+        }
+        
+        private static void readSections(BlockReader in, int count) {
+            for (int i = 0; i < count; i++) {
+                VotingSection section = new VotingSection(in.buffer.getLong(), in.string(), in.string(), in.string(), in.string());
+                sections.put(section.getId(), section);
+                sectionIdCounter.set(Math.max(sectionIdCounter.get(), section.getId() + 1));
+            }
+        }
+        
+        private static ConcurrentSkipListMap<String, Vote> readVotes(BlockReader in, int count) {
+            SortedRun<Vote> run = new SortedRun<>(count);
+            for (int i = 0; i < count; i++) {
+                Vote vote = new Vote(in.string(), in.buffer.getLong(), in.buffer.getLong(), in.string(), in.string());
+                run.add(vote.getVoterId(), vote);
+            }
+            return new ConcurrentSkipListMap<>(run);
+        }
+        
+        /**
+         * A read-only sorted map over entries added in strictly ascending key order, as the
+         * snapshot writes them, held in a pair of arrays. Handed to the ConcurrentSkipListMap
+         * sorted-map constructor, which links the nodes in one pass instead of searching from
+         * the head for every put. Lookups and views binary-search the arrays; views share them.
+         */
+        private static final class SortedRun<V> extends AbstractMap<String, V> implements SortedMap<String, V> {
+            private final String[] keys;
+            private final Object[] values;
+            private final int from;
+            // Grows as entries are added to the run itself; fixed for a view
+            private int to;
+            
+            SortedRun(int capacity) {
+                this(new String[capacity], new Object[capacity], 0, 0);
+            }
+            
+            private SortedRun(String[] keys, Object[] values, int from, int to) {
+                this.keys = keys;
+                this.values = values;
+                this.from = from;
+                this.to = to;
+            }
+            
+            void add(String key, V value) {
+                if (to > from && keys[to - 1].compareTo(key) >= 0) {
+                    throw new IllegalStateException("keys out of order at " + key);
+                }
+                keys[to] = key;
+                values[to++] = value;
+            }
+            
+            // Index of key in [from, to), or -(insertion point) - 1 as Arrays.binarySearch returns
+            private int search(Object key) {
+                return Arrays.binarySearch(keys, from, to, key);
+            }
+            
+            // First index in [from, to] whose key is not below key
+            private int bound(String key) {
+                int i = search(key);
+                return i >= 0 ? i : -i - 1;
+            }
+            
+            @Override
+            public int size() {
+                return to - from;
+            }
+            
+            @Override
+            public boolean containsKey(Object key) {
+                return key instanceof String && search(key) >= 0;
+            }
+            
+            @Override
+            @SuppressWarnings("unchecked")
+            public V get(Object key) {
+                int i = key instanceof String ? search(key) : -1;
+                return i >= 0 ? (V) values[i] : null;
+            }
+            
+            @Override
+            public Set<Map.Entry<String, V>> entrySet() {
+                return new AbstractSet<Map.Entry<String, V>>() {
+                    @Override
+                    public Iterator<Map.Entry<String, V>> iterator() {
+                        return new Iterator<Map.Entry<String, V>>() {
+                            private int next = from;
+                            
+                            @Override
+                            public boolean hasNext() {
+                                return next < to;
+                            }
+                            
+                            @Override
+                            @SuppressWarnings("unchecked")
+                            public Map.Entry<String, V> next() {
+                                if (next >= to) throw new NoSuchElementException();
+                                int i = next++;
+                                return new AbstractMap.SimpleImmutableEntry<>(keys[i], (V) values[i]);
+                            }
+                        };
+                    }
+                    
+                    @Override
+                    public int size() {
+                        return to - from;
+                    }
+                };
+            }
+            
+            @Override
+            public Comparator<? super String> comparator() {
+                return null;
+            }
+            
+            @Override
+            public String firstKey() {
+                if (to == from) throw new NoSuchElementException();
+                return keys[from];
+            }
+            
+            @Override
+            public String lastKey() {
+                if (to == from) throw new NoSuchElementException();
+                return keys[to - 1];
+            }
+            
+            @Override
+            public SortedMap<String, V> subMap(String fromKey, String toKey) {
+                if (fromKey.compareTo(toKey) > 0) throw new IllegalArgumentException("fromKey > toKey");
+                return new SortedRun<>(keys, values, bound(fromKey), bound(toKey));
+            }
+            
+            @Override
+            public SortedMap<String, V> headMap(String toKey) {
+                return new SortedRun<>(keys, values, from, bound(toKey));
+            }
+            
+            @Override
+            public SortedMap<String, V> tailMap(String fromKey) {
+                return new SortedRun<>(keys, values, bound(fromKey), to);
+            }
+        }
+        
+        /** Decodes length-prefixed UTF-8 strings through one reusable scratch array. */
+        private static class BlockReader {
+            final ByteBuffer buffer;
+            private byte[] scratch = new byte[64];
+            
+            BlockReader(ByteBuffer buffer) {
+                this.buffer = buffer;
+            }
+            
+            String string() {
+                int length = buffer.getInt();
+                if (length < 0) return null;
+                if (length > scratch.length) scratch = new byte[Math.max(length, scratch.length * 2)];
+                buffer.get(scratch, 0, length);
+                return new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+        }
+        
+        private static long checksum(ByteBuffer buffer, int offset, int length) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(offset + length).position(offset);
+            CRC32 crc = new CRC32();
+            crc.update(slice);
+            return crc.getValue();
+        }
+    }
+    
+    /**
+     * The primary's side of replication: an ordered log of changes, shipped over TCP to each
+     * follower that connects. An entry names the record that changed (a voter, candidate,
+     * section or vote), not its new value. Handlers append once their change is made, and
+     * the sender reads the record's current value as it ships the entry, so a follower that
+     * applies entries in order converges on the primary's data even when two changes to one
+     * record race; a record that is gone is shipped as a removal. The last capacity entries
+     * are kept for followers that reconnect. A new follower, or one that fell further behind
+     * or last followed an earlier run of the primary, first gets a full copy of the tables,
+     * taken after reading the log position it continues from.
+     */
+    static class ChangeLog {
+        static final int MAGIC = 0x564F5445;
+        static final int PROTOCOL_VERSION = 1;
+        // Entry types, which are also frame types on the stream
+        static final byte VOTER = 1;
+        static final byte CANDIDATE = 2;
+        static final byte SECTION = 3;
+        static final byte VOTE = 4;
+        // Other frames: a full copy is sent between DUMP_BEGIN and DUMP_END, and a HEARTBEAT
+        // with the log position follows every batch of entries, or a quiet heartbeat interval
+        static final byte DUMP_BEGIN = 10;
+        static final byte DUMP_END = 11;
+        static final byte HEARTBEAT = 12;
+        private static final int BATCH = 1024;
+        
+        /** A connected follower, as seen from the primary. */
+        static class Link {
+            final String address;
+            final long connectedAt = System.currentTimeMillis();
+            // Sequence number of the last entry written to it
+            volatile long shipped;
+            volatile long dumps;
+            
+            Link(String address) {
+                this.address = address;
+            }
+        }
+        
+        // Names this run of the primary; sequence numbers start again at 1 with every run
+        final String runId = Long.toHexString(System.currentTimeMillis()) + "-" + Integer.toHexString(new Random().nextInt());
+        private final int capacity;
+        private final long heartbeatMillis;
+        private final List<Link> links = new CopyOnWriteArrayList<>();
+        private volatile boolean enabled;
+        private int httpPort;
+        // Ring of the last capacity entries, slot = seq % capacity; guarded by this
+        private byte[] types;
+        private long[] ids;
+        private String[] keys;
+        private long[] loggedAt;
+        private long head;
+        private int waiting;
+        
+        public ChangeLog(int capacity, long heartbeatMillis) {
+            this.capacity = Math.max(BATCH, capacity);
+            this.heartbeatMillis = Math.max(1, heartbeatMillis);
+        }
+        
+        /** Starts recording changes and accepting followers on the replication port. */
+        public void start(int port, int httpPort) throws IOException {
+            ServerSocket listener = new ServerSocket(port);
+            synchronized (this) {
+                this.httpPort = httpPort;
+                types = new byte[capacity];
+                ids = new long[capacity];
+                keys = new String[capacity];
+                loggedAt = new long[capacity];
+            }
+            enabled = true;
+            Thread acceptor = new Thread(() -> {
+                while (true) {
+                    try {
+                        Socket socket = listener.accept();
+                        Thread sender = new Thread(() -> serve(socket), "replication-sender-" + socket.getRemoteSocketAddress());
+                        sender.setDaemon(true);
+                        sender.start();
+                    } catch (IOException e) {
+                        System.err.println("Replication accept error: " + e.getMessage());
+                    }
+                }
+            }, "replication-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void voter(String voterId) {
+            append(VOTER, 0, voterId);
+        }
+        
+        public void candidate(long candidateId) {
+            append(CANDIDATE, candidateId, null);
+        }
+        
+        public void section(long sectionId) {
+            append(SECTION, sectionId, null);
+        }
+        
+        public void vote(String voterId, long sectionId) {
+            append(VOTE, sectionId, voterId);
+        }
+        
+        private void append(byte type, long id, String key) {
+            if (!enabled) return;
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                int slot = (int) (++head % capacity);
+                types[slot] = type;
+                ids[slot] = id;
+                keys[slot] = key;
+                loggedAt[slot] = now;
+                if (waiting > 0) notifyAll();
+            }
+        }
+        
+        public synchronized long head() {
+            return head;
+        }
+        
+        /**
+         * Copies up to BATCH entries starting at seq into the arrays, waiting up to a heartbeat
+         * for one to arrive. Returns how many were copied, or -1 if seq is no longer kept.
+         */
+        private synchronized int read(long seq, byte[] t, long[] id, String[] key, long[] at) throws InterruptedException {
+            if (seq > head) {
+                waiting++;
+                try {
+                    wait(heartbeatMillis);
+                } finally {
+                    waiting--;
+                }
+            }
+            if (seq <= head - capacity) return -1;
+            int n = (int) Math.min(BATCH, head - seq + 1);
+            for (int i = 0; i < n; i++) {
+                int slot = (int) ((seq + i) % capacity);
+                t[i] = types[slot];
+                id[i] = ids[slot];
+                key[i] = keys[slot];
+                at[i] = loggedAt[slot];
+            }
+            return n;
+        }
+        
+        // One sender thread per follower; it ends when the follower goes away
+        private void serve(Socket socket) {
+            Link link = new Link(String.valueOf(socket.getRemoteSocketAddress()));
+            try (Socket s = socket;
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024))) {
+                s.setTcpNoDelay(true);
+                s.setSoTimeout((int) Math.max(1000, 3 * heartbeatMillis));
+                if (in.readInt() != MAGIC || in.readInt() != PROTOCOL_VERSION) {
+                    System.err.println("Replication: " + link.address + " is not a follower of this version");
+                    return;
+                }
+                String followedRun = in.readUTF();
+                long applied = in.readLong();
+                out.writeInt(MAGIC);
+                out.writeUTF(runId);
+                out.writeInt(httpPort);
+                out.flush();
+                links.add(link);
+                System.out.println("Follower " + link.address + " connected at position " + applied);
+                
+                // Resume only within this run's log; -1 sends a full copy first
+                long next = followedRun.equals(runId) && applied <= head() ? applied + 1 : -1;
+                byte[] t = new byte[BATCH];
+                long[] id = new long[BATCH];
+                String[] key = new String[BATCH];
+                long[] at = new long[BATCH];
+                while (true) {
+                    int n = next < 0 ? -1 : read(next, t, id, key, at);
+                    if (n < 0) {
+                        next = dump(out) + 1;
+                        link.dumps++;
+                        n = 0;
+                    }
+                    for (int i = 0; i < n; i++) {
+                        writeEntry(out, t[i], next + i, at[i], id[i], key[i]);
+                    }
+                    next += n;
+                    out.writeByte(HEARTBEAT);
+                    out.writeLong(head());
+                    out.flush();
+                    link.shipped = next - 1;
+                }
+            } catch (IOException e) {
+                System.out.println("Follower " + link.address + " disconnected: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                links.remove(link);
+            }
+        }
+        
+        /**
+         * Writes every table at the current position and returns that position. Anything
+         * logged up to it was changed before the tables are read, so the copy includes it.
+         */
+        private long dump(DataOutputStream out) throws IOException {
+            long seq = head();
+            long now = System.currentTimeMillis();
+            out.writeByte(DUMP_BEGIN);
+            out.writeLong(seq);
+            // Sections and candidates first, so votes arrive for known ones
+            for (VotingSection section : sections.values()) writeSection(out, seq, now, section.getId(), section);
+            for (Candidate candidate : candidates.values()) writeCandidate(out, seq, now, candidate.getId(), candidate);
+            // Live records rather than the roll, which an import publishes only after logging every row
+            voters.forEach(voter -> writeVoter(out, seq, now, voter.getVoterId(), voter));
+            for (VoteStore.Shard shard : voteStore.shards()) {
+                for (Vote vote : shard.votes.values()) writeVote(out, seq, now, shard.sectionId, vote.getVoterId(), vote);
+            }
+            out.writeByte(DUMP_END);
+            out.writeLong(seq);
+            return seq;
+        }
+        
+        // The record's current value, or a removal if it is gone
+        private static void writeEntry(DataOutputStream out, byte type, long seq, long at, long id, String key) throws IOException {
+            switch (type) {
+                case VOTER:
+                    writeVoter(out, seq, at, key, voters.get(key));
+                    break;
+                case CANDIDATE:
+                    writeCandidate(out, seq, at, id, candidates.get(id));
+                    break;
+                case SECTION:
+                    writeSection(out, seq, at, id, sections.get(id));
+                    break;
+                case VOTE:
+                    VoteStore.Shard shard = voteStore.find(id);
+                    writeVote(out, seq, at, id, key, shard == null ? null : shard.votes.get(key));
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown change type " + type);
+            }
+        }
+        
+        private static void writeVoter(DataOutputStream out, long seq, long at, String voterId, Voter voter) throws IOException {
+            out.writeByte(VOTER);
+            out.writeLong(seq);
+            out.writeLong(at);
+            out.writeUTF(voterId);
+            out.writeBoolean(voter != null);
+            if (voter == null) return;
+            out.writeUTF(voter.getName());
+            out.writeInt(voter.getAge());
+            out.writeUTF(voter.getGender());
+        }
+        
+        private static void writeCandidate(DataOutputStream out, long seq, long at, long id, Candidate candidate) throws IOException {
+            out.writeByte(CANDIDATE);
+            out.writeLong(seq);
+            out.writeLong(at);
+            out.writeLong(id);
+            out.writeBoolean(candidate != null);
+            if (candidate == null) return;
+            out.writeUTF(candidate.getName());
+            out.writeUTF(candidate.getParty());
+            out.writeInt(candidate.getAge());
+            out.writeUTF(candidate.getGender());
+            out.writeLong(candidate.getSectionId());
+        }
+        
+        private static void writeSection(DataOutputStream out, long seq, long at, long id, VotingSection section) throws IOException {
+            out.writeByte(SECTION);
+            out.writeLong(seq);
+            out.writeLong(at);
+            out.writeLong(id);
+            out.writeBoolean(section != null);
+            if (section == null) return;
+            out.writeUTF(section.getName());
+            out.writeUTF(section.getDescription());
+            out.writeUTF(section.getStartDate());
+            out.writeUTF(section.getEndDate());
+            out.writeInt(section.getVoteCount());
+        }
+        
+        private static void writeVote(DataOutputStream out, long seq, long at, long sectionId, String voterId, Vote vote) throws IOException {
+            out.writeByte(VOTE);
+            out.writeLong(seq);
+            out.writeLong(at);
+            out.writeLong(sectionId);
+            out.writeUTF(voterId);
+            out.writeBoolean(vote != null);
+            if (vote == null) return;
+            out.writeLong(vote.getCandidateId());
+            out.writeUTF(vote.getTimestamp());
+            out.writeBoolean(vote.getKey() != null);
+            if (vote.getKey() != null) out.writeUTF(vote.getKey());
+        }
+        
+        public List<Link> links() {
+            return links;
+        }
+        
+        public String statusJson() {
+            long position = head();
+            StringBuilder json = new StringBuilder();
+            json.append("{\"role\":\"primary\",\"runId\":\"").append(runId).append("\",");
+            json.append("\"position\":").append(position).append(",\"followers\":[");
+            boolean first = true;
+            long now = System.currentTimeMillis();
+            for (Link link : links) {
+                if (!first) json.append(",");
+                json.append("{\"address\":\"").append(link.address).append("\",");
+                json.append("\"shipped\":").append(link.shipped).append(",");
+                json.append("\"behind\":").append(Math.max(0, position - link.shipped)).append(",");
+                json.append("\"fullCopies\":").append(link.dumps).append(",");
+                json.append("\"connectedMillis\":").append(now - link.connectedAt).append("}");
+                first = false;
+            }
+            json.append("]}");
+            return json.toString();
+        }
+    }
+    
+    /**
+     * The follower's side of replication. One thread connects to the primary, applies its
+     * stream to the in-memory tables in order, the same way the handlers would have, and
+     * reconnects with its position when the stream breaks. A follower keeps no files, so a
+     * new process starts from the primary's full copy; until that is in, requests for data
+     * get 503. Writes are refused with 403 and the primary's address.
+     */
+    static class Follower {
+        private final String host;
+        private final int port;
+        private final long heartbeatMillis;
+        // Written by the follower thread only
+        private volatile String state = "connecting";
+        private volatile boolean ready;
+        private volatile String runId = "";
+        private volatile String primaryUrl;
+        private volatile long applied;
+        private volatile long primaryPosition;
+        private volatile long lagMillis;
+        private volatile long lastContact;
+        private volatile long fullCopies;
+        // Follower thread only: what changed since the last flush
+        private boolean candidatesChanged;
+        private boolean sectionsChanged;
+        private boolean votersChanged;
+        private final Set<Long> votedSections = new HashSet<>();
+        
+        Follower(String host, int port, long heartbeatMillis) {
+            this.host = host;
+            this.port = port;
+            this.heartbeatMillis = Math.max(1, heartbeatMillis);
+        }
+        
+        /** Follows the primary at host:port. */
+        static Follower create(String primary, long heartbeatMillis) {
+            int colon = primary.lastIndexOf(':');
+            if (colon < 0) return new Follower(primary, REPLICATION_PORT, heartbeatMillis);
+            return new Follower(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)), heartbeatMillis);
+        }
+        
+        public void start() {
+            Thread thread = new Thread(this::run, "replication-follower");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        public boolean isReady() {
+            return ready;
+        }
+        
+        private void run() {
+            while (true) {
+                state = "connecting";
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(host, port), (int) Math.max(1000, 3 * heartbeatMillis));
+                    socket.setTcpNoDelay(true);
+                    // The primary sends at least a heartbeat per interval, so silence means it is gone
+                    socket.setSoTimeout((int) Math.max(1000, 3 * heartbeatMillis));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    out.writeInt(ChangeLog.MAGIC);
+                    out.writeInt(ChangeLog.PROTOCOL_VERSION);
+                    out.writeUTF(runId);
+                    out.writeLong(applied);
+                    out.flush();
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                    if (in.readInt() != ChangeLog.MAGIC) throw new IOException("not a voting server replication port");
+                    String primaryRun = in.readUTF();
+                    primaryUrl = "http://" + host + ":" + in.readInt();
+                    if (!primaryRun.equals(runId)) System.out.println("Following primary run " + primaryRun + " at " + host + ":" + port);
+                    runId = primaryRun;
+                    state = "streaming";
+                    follow(in);
+                } catch (IOException e) {
+                    System.err.println("Replication stream from " + host + ":" + port + " lost: " + e.getMessage());
+                }
+                try {
+                    Thread.sleep(heartbeatMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+        
+        private void follow(DataInputStream in) throws IOException {
+            long copyStarted = 0;
+            while (true) {
+                byte type = in.readByte();
+                long now = System.currentTimeMillis();
+                lastContact = now;
+                if (type == ChangeLog.HEARTBEAT) {
+                    primaryPosition = in.readLong();
+                    // The primary sends one after every batch of entries
+                    flush();
+                    if (applied >= primaryPosition) lagMillis = 0;
+                } else if (type == ChangeLog.DUMP_BEGIN) {
+                    long position = in.readLong();
+                    state = "copying";
+                    ready = false;
+                    fullCopies++;
+                    copyStarted = now;
+                    clearData();
+                    tally.rebuild(Collections.emptyList());
+                    System.out.println("Copying data from the primary at position " + position);
+                } else if (type == ChangeLog.DUMP_END) {
+                    applied = in.readLong();
+                    // Every cached body and ETag is stale now
+                    publishViews();
+                    dataVersions.sectionsChanged();
+                    candidatesChanged = sectionsChanged = votersChanged = false;
+                    votedSections.clear();
+                    state = "streaming";
+                    ready = true;
+                    System.out.println("Copied " + voters.size() + " voters, " + candidates.size() + " candidates, " + voteStore.size() + " votes, " + sections.size() + " sections in " + (now - copyStarted) + " ms");
+                } else {
+                    long seq = in.readLong();
+                    long loggedAt = in.readLong();
+                    apply(type, in);
+                    // Entries inside a full copy all carry its position; DUMP_END moves past them
+                    if (!state.equals("copying")) {
+                        applied = seq;
+                        lagMillis = Math.max(0, now - loggedAt);
+                    }
+                }
+            }
+        }
+        
+        private void apply(byte type, DataInputStream in) throws IOException {
+            switch (type) {
+                case ChangeLog.VOTER: {
+                    String voterId = in.readUTF();
+                    if (in.readBoolean()) {
+                        String name = in.readUTF();
+                        int age = in.readInt();
+                        voters.put(new Voter(voterId, name, age, in.readUTF()));
+                    } else {
+                        voters.remove(voterId);
+                    }
+                    votersChanged = true;
+                    break;
+                }
+                case ChangeLog.CANDIDATE: {
+                    long id = in.readLong();
+                    if (in.readBoolean()) {
+                        String name = in.readUTF();
+                        String party = in.readUTF();
+                        int age = in.readInt();
+                        Candidate candidate = new Candidate(id, name, party, age, in.readUTF());
+                        candidate.setSectionId(in.readLong());
+                        candidates.put(id, candidate);
+                        candidateIndex.add(candidate);
+                    } else {
+                        Candidate removed = candidates.remove(id);
+                        if (removed != null) candidateIndex.remove(removed);
+                    }
+                    candidatesChanged = true;
+                    break;
+                }
+                case ChangeLog.SECTION: {
+                    long id = in.readLong();
+                    if (in.readBoolean()) {
+                        VotingSection section = new VotingSection(id, in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+                        section.setVoteCount(in.readInt());
+                        sections.put(id, section);
+                    } else {
+                        // As deleteSection does, minus the file
+                        ballots.dropSection(id);
+                        voteStore.evict(id);
+                        candidateIndex.ballotsRemoved(tally.removeSection(id));
+                        sections.remove(id);
+                        votedSections.remove(id);
+                        if (!state.equals("copying")) {
+                            catalogView.publish();
+                            dataVersions.votesRemoved(id);
+                        }
+                        ClientHandler.RESULTS_CACHE.remove(id);
+                    }
+                    sectionsChanged = true;
+                    break;
+                }
+                case ChangeLog.VOTE: {
+                    long sectionId = in.readLong();
+                    String voterId = in.readUTF();
+                    Vote vote = null;
+                    if (in.readBoolean()) {
+                        long candidateId = in.readLong();
+                        String timestamp = in.readUTF();
+                        vote = new Vote(voterId, candidateId, sectionId, timestamp, in.readBoolean() ? in.readUTF() : null);
+                    }
+                    applyVote(sectionId, voterId, vote);
+                    break;
+                }
+                default:
+                    throw new IOException("unknown frame type " + type);
+            }
+        }
+        
+        // Votes are shipped again whenever their entry is, so an unchanged one is skipped
+        private void applyVote(long sectionId, String voterId, Vote vote) {
+            VoteStore.Shard shard = vote == null ? voteStore.find(sectionId) : voteStore.shard(sectionId);
+            if (shard == null) return;
+            Vote old = shard.votes.get(voterId);
+            if (old != null) {
+                if (vote != null && old.getCandidateId() == vote.getCandidateId()) return;
+                shard.votes.remove(voterId);
+                ballots.revoke(voterId, sectionId);
+                candidateIndex.releaseBallot(old.getCandidateId());
+                tally.remove(old);
+                resultsFeed.voteRecorded(sectionId, old.getCandidateId());
+            } else if (vote == null) {
+                return;
+            }
+            if (vote != null) {
+                shard.votes.put(voterId, vote);
+                ballots.record(voterId, sectionId);
+                candidateIndex.reserveBallot(vote.getCandidateId());
+                tally.record(vote);
+                resultsFeed.voteRecorded(sectionId, vote.getCandidateId());
+            }
+            votedSections.add(sectionId);
+        }
+        
+        // Publishes what the entries since the last heartbeat changed, then bumps the versions
+        private void flush() {
+            if (state.equals("copying")) return;
+            if (candidatesChanged || sectionsChanged) catalogView.publish();
+            if (votersChanged) voterView.publish();
+            for (long sectionId : votedSections) dataVersions.voteRecorded(sectionId);
+            if (sectionsChanged) {
+                dataVersions.sectionsChanged();
+            } else if (candidatesChanged) {
+                dataVersions.candidatesChanged();
+            }
+            candidatesChanged = sectionsChanged = votersChanged = false;
+            votedSections.clear();
+        }
+        
+        /** A 403 for a write, which only the primary takes, or a 503 until the first copy is in; otherwise null. */
+        Response refuse(Router.Route route) {
+            if (route.method.equals("POST") && !route.pattern.endsWith("/login")) {
+                String primary = primaryUrl == null ? "null" : "\"" + primaryUrl + "\"";
+                return Response.of("HTTP/1.1 403 Forbidden\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n\r\n" +
+                                   "{\"success\":false,\"message\":\"This server is a read-only follower; send changes to the primary\",\"primary\":" + primary + "}");
+            }
+            if (!ready) {
+                return Response.of("HTTP/1.1 503 Service Unavailable\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n" +
+                                   "Retry-After: 1\r\n\r\n" +
+                                   "{\"success\":false,\"message\":\"Follower is still copying data from the primary\"}");
+            }
+            return null;
+        }
+        
+        public long applied() {
+            return applied;
+        }
+        
+        /** Entries the primary had logged, as of its last heartbeat, that are not applied here yet. */
+        public long lagEntries() {
+            return Math.max(0, primaryPosition - applied);
+        }
+        
+        /** How long ago the primary logged the last entry applied, or 0 when caught up; assumes the clocks agree. */
+        public long lagMillis() {
+            return lagMillis;
+        }
+        
+        public long millisSinceContact() {
+            return lastContact == 0 ? -1 : System.currentTimeMillis() - lastContact;
+        }
+        
+        public boolean isConnected() {
+            return !state.equals("connecting");
+        }
+        
+        public String statusJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"role\":\"follower\",\"primary\":\"").append(host).append(":").append(port).append("\",");
+            json.append("\"primaryUrl\":").append(primaryUrl == null ? "null" : "\"" + primaryUrl + "\"").append(",");
+            json.append("\"runId\":\"").append(runId).append("\",");
+            json.append("\"state\":\"").append(state).append("\",");
+            json.append("\"ready\":").append(ready).append(",");
+            json.append("\"applied\":").append(applied).append(",");
+            json.append("\"primaryPosition\":").append(primaryPosition).append(",");
+            json.append("\"lagEntries\":").append(lagEntries()).append(",");
+            json.append("\"lagMillis\":").append(lagMillis).append(",");
+            json.append("\"millisSinceContact\":").append(millisSinceContact()).append(",");
+            json.append("\"fullCopies\":").append(fullCopies);
+            json.append("}");
+            return json.toString();
+        }
+    }
+    
+    /**
+     * Sheds load by priority before a surge slows the server down for everyone. Requests
+     * fall into three classes: votes (casting ballots, plus the voter login and candidate
+     * list a voter needs first), admin calls (every other POST) and reads (every other
+     * GET). The overload signal is queueing delay, the time a request waited for a worker.
+     * When even the shortest wait seen in an interval is above the target, the queue is
+     * standing rather than a passing burst, and the level goes up one step; each interval
+     * under the target brings it down one. Level 1 sheds reads and level 2 admin calls too,
+     * each with a fast 503 and Retry-After. Votes are never shed, and reads and admin calls
+     * together may not hold more than the workers left after the vote reserve.
+     *
+     * Requests are admitted one at a time, but the blocking engine gives a worker to a
+     * connection, which keeps it while idle between keep-alive requests. So once as many
+     * workers are busy as reads and admin calls may hold, keepAlive() turns keep-alive off
+     * and each connection returns its worker after the current response; the client's next
+     * request queues for a worker and is admitted like any other.
+     */
+    static class AdmissionControl {
+        static final int VOTE = 0;
+        static final int ADMIN = 1;
+        static final int READ = 2;
+        // Neither counted nor shed, so monitoring keeps working during overload
+        static final int EXEMPT = -1;
+        static final String[] CLASSES = { "vote", "admin", "read" };
+        private static final int MAX_LEVEL = 2;
+        
+        private final long targetNanos;
+        private final long intervalNanos;
+        // Most reads and admin calls in flight at once; 0 means no limit
+        private final int nonVoteLimit;
+        private final AtomicInteger[] inFlight = new AtomicInteger[CLASSES.length];
+        private final AtomicInteger nonVoteInFlight = new AtomicInteger();
+        private final LongAdder[] shed = new LongAdder[CLASSES.length];
+        private final Metrics.Histogram[] queueDelay = new Metrics.Histogram[CLASSES.length];
+        private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+        private final AtomicLong windowMin = new AtomicLong(Long.MAX_VALUE);
+        private volatile int level;
+        
+        public AdmissionControl(long targetMillis, long intervalMillis, int nonVoteLimit) {
+            this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+            this.nonVoteLimit = nonVoteLimit;
+            for (int c = 0; c < CLASSES.length; c++) {
+                inFlight[c] = new AtomicInteger();
+                shed[c] = new LongAdder();
+                queueDelay[c] = new Metrics.Histogram();
+            }
+        }
+        
+        static int classify(String method, String pattern) {
+            if (pattern.equals("/api/metrics") || pattern.equals("/api/replication")) return EXEMPT;
+            if (!method.equals("POST")) return pattern.equals("/api/candidates") ? VOTE : READ;
+            if (pattern.equals("/api/vote") || pattern.equals("/api/vote/batch") || pattern.equals("/api/voter/login")) return VOTE;
+            return ADMIN;
+        }
+        
+        /** Records how long a request waited for a worker; negative means it did not wait in a queue. */
+        public void observe(int admissionClass, long queueNanos) {
+            if (queueNanos < 0) return;
+            if (admissionClass != EXEMPT) queueDelay[admissionClass].record(queueNanos);
+            if (targetNanos <= 0) return;
+            windowMin.accumulateAndGet(queueNanos, Math::min);
+            
+            long now = System.nanoTime();
+            long start = windowStart.get();
+            if (now - start < intervalNanos || !windowStart.compareAndSet(start, now)) return;
+            long min = windowMin.getAndSet(Long.MAX_VALUE);
+            // Intervals that passed without a single queued request count as calm ones
+            int calm = (int) Math.min(MAX_LEVEL, (now - start) / intervalNanos - 1);
+            int next = min > targetNanos ? level + 1 - calm : level - 1 - calm;
+            level = Math.max(0, Math.min(MAX_LEVEL, next));
+        }
+        
+        /** Counts the request in flight and returns true, or returns false if it is to be shed. */
+        public boolean tryAcquire(int admissionClass) {
+            if (admissionClass == EXEMPT) return true;
+            if (targetNanos > 0 && admissionClass != VOTE) {
+                // Lower-priority classes go first: reads at level 1, admin calls as well at level 2
+                if (admissionClass >= CLASSES.length - level) {
+                    shed[admissionClass].increment();
+                    return false;
+                }
+                if (nonVoteLimit > 0 && nonVoteInFlight.incrementAndGet() > nonVoteLimit) {
+                    nonVoteInFlight.decrementAndGet();
+                    shed[admissionClass].increment();
+                    return false;
+                }
+            }
+            inFlight[admissionClass].incrementAndGet();
+            return true;
+        }
+        
+        public void release(int admissionClass) {
+            if (admissionClass == EXEMPT) return;
+            inFlight[admissionClass].decrementAndGet();
+            if (targetNanos > 0 && admissionClass != VOTE && nonVoteLimit > 0) nonVoteInFlight.decrementAndGet();
+        }
+        
+        /**
+         * Whether a blocking-engine connection may keep its worker for another request, given
+         * how many workers are busy; always true with admission off or an unbounded pool.
+         */
+        public boolean keepAlive(int busyWorkers) {
+            return targetNanos <= 0 || nonVoteLimit <= 0 || busyWorkers < nonVoteLimit;
+        }
+        
+        /** Seconds a shed client should wait; longer the deeper the overload. */
+        public int retryAfterSeconds() {
+            return Math.max(1, level);
+        }
+        
+        public String describe() {
+            if (targetNanos <= 0) return "off";
+            return "queue target " + TimeUnit.NANOSECONDS.toMillis(targetNanos) + " ms per " + TimeUnit.NANOSECONDS.toMillis(intervalNanos) +
+                   " ms interval" + (nonVoteLimit > 0 ? ", reads and admin calls limited to " + nonVoteLimit + " workers" : "");
+        }
+        
+        public int level() { return level; }
+        public int inFlight(int admissionClass) { return inFlight[admissionClass].get(); }
+        public long shed(int admissionClass) { return shed[admissionClass].sum(); }
+        public Metrics.Histogram queueDelay(int admissionClass) { return queueDelay[admissionClass]; }
+    }
+    
+    /**
+     * Runs one ClientHandler per accepted socket. "bounded" uses a fixed worker pool with
+     * a bounded queue and answers 503 once the queue is full, "virtual" starts a virtual
+     * thread per connection (JDK 21+), and "thread" keeps the old thread-per-connection
+     * behaviour. Active-worker and queue-depth gauges are kept for every mode.
+     */
+    static class ConnectionExecutor {
+        private final String mode;
+        private final ExecutorService executor;
+        private final LinkedBlockingQueue<Runnable> queue;
+        private final int maxWorkers;
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        
+        private ConnectionExecutor(String mode, ExecutorService executor, LinkedBlockingQueue<Runnable> queue, int maxWorkers) {
+            this.mode = mode;
+            this.executor = executor;
+            this.queue = queue;
+            this.maxWorkers = maxWorkers;
+        }
+        
+        public static ConnectionExecutor create(String mode, int workers, int queueCapacity) {
+            if (mode.equals("virtual")) {
+                try {
+                    // Looked up reflectively so the server still compiles and runs on older JDKs
+                    ExecutorService virtual = (ExecutorService) Executors.class
+                            .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    return new ConnectionExecutor("virtual", virtual, null, -1);
+                } catch (ReflectiveOperationException e) {
+                    System.out.println("Virtual threads need JDK 21+, falling back to a bounded pool");
+                    mode = "bounded";
+                }
+            }
+            if (mode.equals("thread")) {
+                return new ConnectionExecutor("thread", null, null, -1);
+            }
+            if (!mode.equals("bounded")) {
+                System.out.println("Unknown executor mode '" + mode + "', using bounded");
+            }
+            LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(Math.max(1, queueCapacity));
+            AtomicInteger threadIds = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, queue, r -> {
+                Thread t = new Thread(r, "client-worker-" + threadIds.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            pool.allowCoreThreadTimeOut(true);
+            return new ConnectionExecutor("bounded", pool, queue, workers);
+        }
+        
+        public void submit(Socket socket) {
+            execute(new ClientHandler(socket), () -> reject(socket));
+        }
+        
+        /** Runs a task with gauge accounting, or calls onRejected if the pool is saturated. */
+        public void execute(Runnable work, Runnable onRejected) {
+            Runnable task = () -> {
+                active.incrementAndGet();
+                try {
+                    work.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            };
+            if (executor == null) {
+                new Thread(task).start();
+                return;
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                onRejected.run();
+            }
+        }
+        
+        static final String BUSY_RESPONSE =
+                "HTTP/1.1 503 Service Unavailable\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n" +
+                "Retry-After: 1\r\nConnection: close\r\n\r\n" +
+                "{\"success\":false,\"message\":\"Server busy\"}";
+        
+        // Saturated: answer immediately on the accept thread instead of queueing unboundedly
+        private static void reject(Socket socket) {
+            try (Socket s = socket) {
+                OutputStream out = s.getOutputStream();
+                out.write(ClientHandler.frame(BUSY_RESPONSE, false));
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Error rejecting client: " + e.getMessage());
+            }
+        }
+        
+        public String describe() {
+            if (queue == null) return mode;
+            return mode + " (" + maxWorkers + " workers, queue " + getQueueCapacity() + ")";
+        }
+        
+        public String getMode() { return mode; }
+        public int getMaxWorkers() { return maxWorkers; }
+        public int getActiveWorkers() { return active.get(); }
+        public int getQueueDepth() { return queue == null ? 0 : queue.size(); }
+        public int getQueueCapacity() { return queue == null ? -1 : queue.size() + queue.remainingCapacity(); }
+        public long getCompleted() { return completed.get(); }
+        public long getRejected() { return rejected.get(); }
+    }
+    
+    /**
+     * Non-blocking engine: one selector thread accepts, reads and writes every socket,
+     * and only complete requests are handed to the worker executor, so an idle or slow
+     * client costs a registered key and a small buffer instead of a thread. Routing goes
+     * through the same ClientHandler.handleRequest as the blocking engine.
+     */
+    static class NioServer {
+        private static final int INITIAL_BUFFER_SIZE = 4096;
+        private static final int MAX_REQUEST_SIZE = HTTP_MAX_HEADER_BYTES + Math.max(HTTP_MAX_BODY_BYTES, HTTP_MAX_BULK_BODY_BYTES);
+        // A streaming response blocks its worker once this much output is waiting for the socket
+        private static final long MAX_QUEUED_OUTPUT = 256 * 1024;
+        
+        private final int port;
+        private final ConnectionExecutor workers;
+        // Used for routing only; it never touches a socket
+        private final ClientHandler router = new ClientHandler(null);
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final HttpRequestParser parser = new HttpRequestParser(HTTP_MAX_HEADERS, HTTP_MAX_HEADER_BYTES, HTTP_MAX_BODY_BYTES,
+                                                         ClientHandler.BULK_PATHS, HTTP_MAX_BULK_BODY_BYTES);
+        private Selector selector;
+        
+        private static class Connection {
+            final SocketChannel channel;
+            // Reused for every request on this connection; only one is in flight at a time
+            final HttpRequest request = new HttpRequest();
+            ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            // Response buffers and file regions produced by the worker, drained by the selector thread
+            final Queue<Object> out = new ConcurrentLinkedQueue<>();
+            final AtomicLong queuedBytes = new AtomicLong();
+            Object current;
+            volatile boolean responseDone;
+            volatile boolean keepAlive;
+            volatile boolean closed;
+            boolean busy;
+            int served;
+            long lastActive = System.currentTimeMillis();
+            // When the first byte of the request being read arrived, 0 between requests
+            long requestStarted;
+            // Parser time for the request being read, and when its response started to be written
+            long parseNanos;
+            volatile long writeStart;
+            
+            Connection(SocketChannel channel) {
+                this.channel = channel;
+            }
+        }
+        
+        private static class FileRegion {
+            final FileChannel file;
+            long position;
+            final long end;
+            
+            FileRegion(FileChannel file, long end) {
+                this.file = file;
+                this.end = end;
+            }
+        }
+        
+        /** Worker-side view of a connection; blocks the worker when the client reads slowly. */
+        private class ChannelOutputStream extends OutputStream {
+            private final Connection conn;
+            
+            ChannelOutputStream(Connection conn) {
+                this.conn = conn;
+            }
+            
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return;
+                enqueue(Arrays.copyOfRange(b, off, off + len));
+            }
+            
+            void enqueue(byte[] bytes) throws IOException {
+                if (conn.closed) throw new IOException("Connection closed");
+                conn.queuedBytes.addAndGet(bytes.length);
+                conn.out.add(ByteBuffer.wrap(bytes));
+                signal(conn);
+                synchronized (conn) {
+                    while (conn.queuedBytes.get() > MAX_QUEUED_OUTPUT && !conn.closed) {
+                        try {
+                            conn.wait(100);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+                }
+                if (conn.closed) throw new IOException("Connection closed");
+            }
+            
+            EventSink eventSink() {
+                return new ChannelEventSink(conn);
+            }
+            
+            void enqueueFile(FileChannel file, long size) throws IOException {
+                if (conn.closed) {
+                    file.close();
+                    throw new IOException("Connection closed");
+                }
+                conn.out.add(new FileRegion(file, size));
+                signal(conn);
+            }
+        }
+        
+        /** Event sink on a connection no worker is attached to; it queues without ever waiting. */
+        private class ChannelEventSink implements EventSink {
+            private final Connection conn;
+            
+            ChannelEventSink(Connection conn) {
+                this.conn = conn;
+            }
+            
+            @Override
+            public boolean offer(byte[] event) {
+                if (conn.closed || conn.responseDone || conn.queuedBytes.get() > SSE_MAX_QUEUED_BYTES) return false;
+                conn.queuedBytes.addAndGet(event.length);
+                conn.out.add(ByteBuffer.wrap(event));
+                signal(conn);
+                return true;
+            }
+            
+            @Override
+            public boolean isClosed() {
+                return conn.closed || conn.responseDone;
+            }
+            
+            @Override
+            public void close() {
+                // The selector thread closes the connection once queued output is written
+                conn.responseDone = true;
+                signal(conn);
+            }
+        }
+        
+        public NioServer(int port, ConnectionExecutor workers) {
+            this.port = port;
+            this.workers = workers;
+        }
+        
+        public void run() throws IOException {
+            selector = Selector.open();
+            try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                server.bind(new InetSocketAddress(port), 1024);
+                server.configureBlocking(false);
+                server.register(selector, SelectionKey.OP_ACCEPT);
+                System.out.println("Server started successfully!");
+                System.out.println("Access the system at: http://localhost:" + port);
+                
+                long nextSweep = System.currentTimeMillis() + 1000;
+                while (true) {
+                    selector.select(1000);
+                    Connection ready;
+                    while ((ready = pendingWrites.poll()) != null) {
+                        // A late signal for a response already written must not stop the connection reading
+                        if (!ready.busy) continue;
+                        SelectionKey key = ready.channel.keyFor(selector);
+                        if (key != null && key.isValid()) key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                    if (System.currentTimeMillis() >= nextSweep) {
+                        closeIdleConnections();
+                        nextSweep = System.currentTimeMillis() + 1000;
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (!key.isValid()) continue;
+                            if (key.isAcceptable()) {
+                                accept(server);
+                            } else if (key.isReadable()) {
+                                read(key);
+                            } else if (key.isWritable()) {
+                                write(key);
+                            }
+                        } catch (IOException e) {
+                            close(key);
+                        }
+                    }
+                }
+            } finally {
+                selector.close();
+            }
+        }
+        
+        private void accept(ServerSocketChannel server) throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                Metrics.activeConnections.increment();
+            }
+        }
+        
+        private void read(SelectionKey key) throws IOException {
+            Connection conn = (Connection) key.attachment();
+            if (!conn.in.hasRemaining()) {
+                if (conn.in.capacity() >= MAX_REQUEST_SIZE) {
+                    respond(key, conn, "HTTP/1.1 413 Payload Too Large\r\nConnection: close\r\n\r\nRequest too large");
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_REQUEST_SIZE, conn.in.capacity() * 2));
+                conn.in.flip();
+                bigger.put(conn.in);
+                conn.in = bigger;
+            }
+            int n = conn.channel.read(conn.in);
+            if (n < 0) {
+                close(key);
+                return;
+            }
+            conn.lastActive = System.currentTimeMillis();
+            if (conn.requestStarted == 0) conn.requestStarted = conn.lastActive;
+            dispatchNext(key, conn);
+        }
+        
+        // Pipelined requests are dispatched one at a time, so responses keep request order
+        private void dispatchNext(SelectionKey key, Connection conn) {
+            int length;
+            long parseStart = System.nanoTime();
+            try {
+                length = parser.parse(conn.in.array(), 0, conn.in.position(), conn.request);
+            } catch (HttpRequestParser.HttpParseException e) {
+                Metrics.parseErrors.increment();
+                respond(key, conn, e.toResponse());
+                return;
+            }
+            conn.parseNanos += System.nanoTime() - parseStart;
+            if (length < 0) return;
+            
+            // Hand the request to a worker and stop reading until the response is written
+            conn.in.flip();
+            conn.in.position(length);
+            conn.in.compact();
+            conn.busy = true;
+            conn.keepAlive = conn.request.isKeepAlive() && ++conn.served < HTTP_MAX_REQUESTS_PER_CONNECTION;
+            key.interestOps(0);
+            long parseNanos = conn.parseNanos;
+            conn.parseNanos = 0;
+            conn.requestStarted = 0;
+            long queuedAt = System.nanoTime();
+            workers.execute(() -> {
+                long handleStart = System.nanoTime();
+                conn.request.setQueueNanos(handleStart - queuedAt);
+                Response response = router.handleRequest(conn.request);
+                long persistNanos = Metrics.takePersisted();
+                conn.writeStart = System.nanoTime();
+                conn.request.getMetrics().record(response.status(), parseNanos, conn.writeStart - handleStart - persistNanos, persistNanos);
+                respondLater(conn, response);
+            }, () -> {
+                conn.writeStart = System.nanoTime();
+                conn.request.getMetrics().record(503, parseNanos, 0, 0);
+                respondLater(conn, Response.of(ConnectionExecutor.BUSY_RESPONSE));
+            });
+        }
+        
+        private void respond(SelectionKey key, Connection conn, String response) {
+            conn.keepAlive = false;
+            conn.busy = true;
+            byte[] bytes = ClientHandler.frame(response, false);
+            conn.queuedBytes.addAndGet(bytes.length);
+            conn.out.add(ByteBuffer.wrap(bytes));
+            conn.responseDone = true;
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+        
+        // Runs on a worker thread; streaming bodies are written while the selector drains them
+        private void respondLater(Connection conn, Response response) {
+            try {
+                conn.keepAlive = response.writeTo(new ChannelOutputStream(conn), conn.keepAlive, conn.request.isHttp11());
+                // An event stream stays open; its sink signals as events arrive and when it ends
+                if (response.isEventStream()) {
+                    conn.writeStart = 0;
+                    return;
+                }
+            } catch (IOException e) {
+                conn.keepAlive = false;
+            }
+            conn.responseDone = true;
+            signal(conn);
+        }
+        
+        // Asks the selector thread to start writing this connection
+        private void signal(Connection conn) {
+            pendingWrites.add(conn);
+            selector.wakeup();
+        }
+        
+        private void write(SelectionKey key) throws IOException {
+            Connection conn = (Connection) key.attachment();
+            while (true) {
+                if (conn.current == null) {
+                    conn.current = conn.out.poll();
+                    if (conn.current == null) {
+                        // The worker queues its last buffer before setting responseDone, so a
+                        // buffer added after the poll above is visible once the flag is
+                        if (conn.responseDone && !conn.out.isEmpty()) continue;
+                        break;
+                    }
+                }
+                if (conn.current instanceof FileRegion) {
+                    FileRegion region = (FileRegion) conn.current;
+                    region.position += region.file.transferTo(region.position, region.end - region.position, conn.channel);
+                    if (region.position < region.end) return;
+                    region.file.close();
+                    conn.current = null;
+                    continue;
+                }
+                ByteBuffer buffer = (ByteBuffer) conn.current;
+                conn.channel.write(buffer);
+                if (buffer.hasRemaining()) return;
+                long queued = conn.queuedBytes.addAndGet(-buffer.limit());
+                conn.current = null;
+                if (queued <= MAX_QUEUED_OUTPUT) {
+                    synchronized (conn) {
+                        conn.notifyAll();
+                    }
+                }
+            }
+            conn.lastActive = System.currentTimeMillis();
+            if (!conn.responseDone) {
+                // Worker is still producing the body; it signals again when it has more
+                key.interestOps(0);
+                return;
+            }
+            conn.responseDone = false;
+            conn.busy = false;
+            if (conn.writeStart != 0) {
+                conn.request.getMetrics().phases[Metrics.WRITE].record(System.nanoTime() - conn.writeStart);
+                conn.writeStart = 0;
+            }
+            if (!conn.keepAlive) {
+                close(key);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            dispatchNext(key, conn);
+        }
+        
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            long cutoff = now - HTTP_IDLE_TIMEOUT_MS;
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Connection) {
+                    Connection conn = (Connection) attachment;
+                    if (conn.busy) continue;
+                    if (conn.requestStarted != 0 && now - conn.requestStarted > HTTP_REQUEST_TIMEOUT_MS) {
+                        // A slow sender: answer and close rather than buffer its request forever
+                        Metrics.requestTimeouts.increment();
+                        respond(key, conn, ClientHandler.REQUEST_TIMEOUT_RESPONSE);
+                    } else if (conn.lastActive < cutoff) {
+                        close(key);
+                    }
+                }
+            }
+        }
+        
+        private static void close(SelectionKey key) {
+            key.cancel();
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                Connection conn = (Connection) attachment;
+                if (!conn.closed) Metrics.activeConnections.decrement();
+                conn.closed = true;
+                synchronized (conn) {
+                    conn.notifyAll();
+                }
+                // Release any file regions that will never be sent
+                Object pending = conn.current;
+                do {
+                    if (pending instanceof FileRegion) {
+                        try { ((FileRegion) pending).file.close(); } catch (IOException ignore) {}
+                    }
+                } while ((pending = conn.out.poll()) != null);
+            }
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                System.err.println("Error closing client channel: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * A file served from memory while it is small enough to cache. The bytes, a gzipped
+     * copy and their strong ETags are rebuilt only when the file's mtime or size changes;
+     * larger files are streamed from disk with a weak size/mtime ETag instead.
+     */
+    static class StaticAsset {
+        private final Path path;
+        private final String contentType;
+        private final long maxCachedBytes;
+        private volatile Snapshot snapshot;
+        
+        private static class Snapshot {
+            final long modified;
+            final long size;
+            final byte[] identity;
+            final byte[] gzip;
+            final String etag;
+            final String gzipEtag;
+            
+            Snapshot(long modified, long size, byte[] identity, byte[] gzip, String etag, String gzipEtag) {
+                this.modified = modified;
+                this.size = size;
+                this.identity = identity;
+                this.gzip = gzip;
+                this.etag = etag;
+                this.gzipEtag = gzipEtag;
+            }
+        }
+        
+        public StaticAsset(Path path, String contentType, long maxCachedBytes) {
+            this.path = path;
+            this.contentType = contentType;
+            this.maxCachedBytes = maxCachedBytes;
+        }
+        
+        public Response serve(HttpRequest request) throws IOException {
+            Snapshot snap = current();
+            boolean gzip = snap.gzip != null && request.headerContains("accept-encoding", "gzip");
+            String etag = gzip ? snap.gzipEtag : snap.etag;
+            if (request.matchesETag(etag)) {
+                return Response.of("HTTP/1.1 304 Not Modified\r\nETag: " + etag + "\r\nCache-Control: no-cache\r\n" +
+                                   "Vary: Accept-Encoding\r\n\r\n");
+            }
+            String head = "HTTP/1.1 200 OK\r\nContent-Type: " + contentType + "\r\nETag: " + etag +
+                          "\r\nCache-Control: no-cache\r\nVary: Accept-Encoding" + (gzip ? "\r\nContent-Encoding: gzip" : "");
+            if (snap.identity == null) return Response.file(head, path);
+            return Response.bytes(head, gzip ? snap.gzip : snap.identity);
+        }
+        
+        private Snapshot current() throws IOException {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            long modified = attrs.lastModifiedTime().toMillis();
+            Snapshot snap = snapshot;
+            if (snap != null && snap.modified == modified && snap.size == attrs.size()) return snap;
+            synchronized (this) {
+                snap = snapshot;
+                if (snap == null || snap.modified != modified || snap.size != attrs.size()) {
+                    snap = load(modified, attrs.size());
+                    snapshot = snap;
+                }
+                return snap;
+            }
+        }
+        
+        private Snapshot load(long modified, long size) throws IOException {
+            if (size > maxCachedBytes) {
+                String etag = "W/\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"";
+                return new Snapshot(modified, size, null, null, etag, etag);
+            }
+            byte[] identity = Files.readAllBytes(path);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(identity.length / 3 + 64);
+            try (GZIPOutputStream gz = new GZIPOutputStream(compressed)) {
+                gz.write(identity);
+            }
+            String hash = sha256Hex(identity).substring(0, 32);
+            return new Snapshot(modified, size, identity, compressed.toByteArray(), "\"" + hash + "\"", "\"" + hash + "-gz\"");
+        }
+        
+        private static String sha256Hex(byte[] data) {
+            try {
+                StringBuilder hex = new StringBuilder(64);
+                for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                    hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+    
+    /**
+     * What a route produces: either a complete response string built by a handler, framed
+     * with Content-Length on the way out, or a status line and headers followed by a body
+     * that is generated while it is sent, using chunked transfer encoding.
+     */
+    static class Response {
+        interface BodyWriter {
+            void writeTo(OutputStream out) throws IOException;
+        }
+        
+        private final String raw;
+        private final String head;
+        private final byte[] bytes;
+        private final Path file;
+        private final BodyWriter body;
+        private final Consumer<EventSink> events;
+        
+        private Response(String raw, String head, byte[] bytes, Path file, BodyWriter body, Consumer<EventSink> events) {
+            this.raw = raw;
+            this.head = head;
+            this.bytes = bytes;
+            this.file = file;
+            this.body = body;
+            this.events = events;
+        }
+        
+        public static Response of(String raw) {
+            return new Response(raw, null, null, null, null, null);
+        }
+        
+        /** A prebuilt binary body; the array is sent as is and must not be modified. */
+        public static Response bytes(String head, byte[] bytes) {
+            return new Response(null, head, bytes, null, null, null);
+        }
+        
+        /** A file body sent with FileChannel.transferTo rather than copied through the heap. */
+        public static Response file(String head, Path file) {
+            return new Response(null, head, null, file, null, null);
+        }
+        
+        /** head is the status line and headers, without the terminating blank line. */
+        public static Response streaming(String head, BodyWriter body) {
+            return new Response(null, head, null, null, body, null);
+        }
+        
+        /**
+         * An open-ended event stream, delimited by closing the connection. subscribe gets
+         * the sink events are offered to; the blocking engine's worker drains it until the
+         * client goes away (so only a capped number may be open, see QueuedEventSink), while
+         * the NIO engine returns its worker at once and lets the selector thread write
+         * whatever the sink queues.
+         */
+        public static Response events(String head, Consumer<EventSink> subscribe) {
+            return new Response(null, head, null, null, null, subscribe);
+        }
+        
+        public boolean isEventStream() {
+            return events != null;
+        }
+        
+        /** The status code from the status line, or 0 if it cannot be read. */
+        public int status() {
+            String line = raw != null ? raw : head;
+            if (line.length() < 12 || !line.startsWith("HTTP/1.")) return 0;
+            int code = 0;
+            for (int i = 9; i < 12; i++) {
+                char c = line.charAt(i);
+                if (c < '0' || c > '9') return 0;
+                code = code * 10 + (c - '0');
+            }
+            return code;
+        }
+        
+        /**
+         * Writes the response and returns whether the connection can stay open. HTTP/1.0
+         * clients cannot read chunks, so they get a body delimited by closing the socket.
+         */
+        public boolean writeTo(OutputStream out, boolean keepAlive, boolean chunked) throws IOException {
+            if (raw != null) {
+                byte[] framed = ClientHandler.frame(raw, keepAlive);
+                if (out instanceof NioServer.ChannelOutputStream) {
+                    ((NioServer.ChannelOutputStream) out).enqueue(framed);
+                } else {
+                    out.write(framed);
+                }
+                return keepAlive && !raw.contains("\r\nConnection: close");
+            }
+            if (bytes != null) {
+                out.write(ClientHandler.frameHead(head, bytes.length, keepAlive));
+                if (out instanceof NioServer.ChannelOutputStream) {
+                    ((NioServer.ChannelOutputStream) out).enqueue(bytes);
+                } else {
+                    out.write(bytes);
+                }
+                return keepAlive;
+            }
+            if (file != null) {
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                long size = channel.size();
+                out.write(ClientHandler.frameHead(head, size, keepAlive));
+                if (out instanceof NioServer.ChannelOutputStream) {
+                    // The selector thread transfers it straight to the socket and closes it
+                    ((NioServer.ChannelOutputStream) out).enqueueFile(channel, size);
+                } else {
+                    try (FileChannel in = channel) {
+                        out.flush();
+                        WritableByteChannel target = Channels.newChannel(out);
+                        for (long pos = 0; pos < size; ) {
+                            pos += in.transferTo(pos, size - pos, target);
+                        }
+                    }
+                }
+                return keepAlive;
+            }
+            if (events != null) {
+                byte[] streamHead = (head + "\r\nCache-Control: no-cache\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+                if (out instanceof NioServer.ChannelOutputStream) {
+                    out.write(streamHead);
+                    events.accept(((NioServer.ChannelOutputStream) out).eventSink());
+                    return false;
+                }
+                // This worker is the stream's for as long as it stays open, outside admission control
+                if (!QueuedEventSink.tryOpen()) {
+                    out.write(ClientHandler.frame(QueuedEventSink.STREAMS_FULL_RESPONSE, false));
+                    out.flush();
+                    return false;
+                }
+                try {
+                    out.write(streamHead);
+                    out.flush();
+                    QueuedEventSink sink = new QueuedEventSink(16);
+                    events.accept(sink);
+                    sink.drainTo(out);
+                } finally {
+                    QueuedEventSink.closed();
+                }
+                return false;
+            }
+            keepAlive = keepAlive && chunked;
+            StringBuilder sb = new StringBuilder(head.length() + 96).append(head);
+            if (chunked) sb.append("\r\nTransfer-Encoding: chunked");
+            sb.append(keepAlive ? "\r\nConnection: keep-alive" : "\r\nConnection: close").append("\r\n\r\n");
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            if (chunked) {
+                ChunkedOutputStream chunks = new ChunkedOutputStream(out, 8192);
+                body.writeTo(chunks);
+                chunks.finish();
+            } else {
+                body.writeTo(out);
+            }
+            out.flush();
+            return keepAlive;
+        }
+    }
+    
+    /** Destination of an event stream. offer never blocks; it returns false when the event cannot be taken now. */
+    interface EventSink {
+        boolean offer(byte[] event);
+        
+        boolean isClosed();
+        
+        /** Ends the stream and lets the connection close. */
+        void close();
+    }
+    
+    /**
+     * Event sink for the blocking engine: a short queue drained by the connection's own worker.
+     * Each open stream pins a pool worker, so with a bounded pool their number is capped (see
+     * limit()) well below the pool size; the NIO engine streams from the selector thread instead.
+     */
+    static class QueuedEventSink implements EventSink {
+        static final String STREAMS_FULL_RESPONSE =
+                "HTTP/1.1 503 Service Unavailable\r\nContent-Type: application/json\r\nAccess-Control-Allow-Origin: *\r\n" +
+                "Retry-After: 5\r\nConnection: close\r\n\r\n" +
+                "{\"success\":false,\"message\":\"Too many live results streams, retry later or poll /api/results\"}";
+        
+        private static final AtomicInteger open = new AtomicInteger();
+        // Most streams open at once; unlimited unless set at startup
+        private static volatile int limit = Integer.MAX_VALUE;
+        
+        private final BlockingQueue<byte[]> queue;
+        private volatile boolean closed;
+        
+        static void limit(int streams) {
+            limit = streams;
+        }
+        
+        /** Takes a stream slot, or returns false if every slot is in use. */
+        static boolean tryOpen() {
+            while (true) {
+                int n = open.get();
+                if (n >= limit) return false;
+                if (open.compareAndSet(n, n + 1)) return true;
+            }
+        }
+        
+        static void closed() {
+            open.decrementAndGet();
+        }
+        
+        static int openStreams() {
+            return open.get();
+        }
+        
+        QueuedEventSink(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+        
+        @Override
+        public boolean offer(byte[] event) {
+            return !closed && queue.offer(event);
+        }
+        
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+        
+        @Override
+        public void close() {
+            closed = true;
+        }
+        
+        /** Writes events until the sink is closed or a write fails because the client left. */
+        void drainTo(OutputStream out) throws IOException {
+            try {
+                while (!closed) {
+                    byte[] event = queue.poll(1, TimeUnit.SECONDS);
+                    if (event == null) continue;
+                    out.write(event);
+                    // Anything else already waiting goes out in the same flush
+                    while ((event = queue.poll()) != null) out.write(event);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closed = true;
+            }
+        }
+    }
+    
+    /** Buffers up to one chunk and writes it in HTTP/1.1 chunked framing. */
+    static class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buf;
+        private int count;
+        
+        ChunkedOutputStream(OutputStream out, int chunkSize) {
+            this.out = out;
+            this.buf = new byte[chunkSize];
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) flushChunk();
+            buf[count++] = (byte) b;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buf.length) flushChunk();
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            flushChunk();
+            out.flush();
+        }
+        
+        /** Writes any buffered bytes and the terminating zero-length chunk. */
+        void finish() throws IOException {
+            flushChunk();
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        
+        private void flushChunk() throws IOException {
+            if (count == 0) return;
+            byte[] chunk = new byte[Integer.toHexString(count).length() + 2 + count + 2];
+            byte[] size = (Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(size, 0, chunk, 0, size.length);
+            System.arraycopy(buf, 0, chunk, size.length, count);
+            chunk[chunk.length - 2] = '\r';
+            chunk[chunk.length - 1] = '\n';
+            // One write per chunk keeps the NIO engine at one queued buffer per chunk
+            out.write(chunk);
+            count = 0;
+        }
+    }
+    
+    /**
+     * One parsed HTTP request. The raw bytes are copied once into an array owned by the
+     * request, and headers and form parameters are kept as offsets into it, so Strings
+     * are only created for the values a handler actually asks for. Instances are reset
+     * and reused for every request on a connection.
+     */
+    static class HttpRequest {
+        private static final int MAX_PARAMS = 64;
+        
+        private byte[] data = new byte[1024];
+        private int length;
+        private String method;
+        private String target;
+        private String path;
+        private String pathParam;
+        private int queryStart;
+        private int queryEnd;
+        private boolean http11;
+        private int headerCount;
+        private int[] headerOffsets = new int[4 * 16];
+        private int bodyStart;
+        private int bodyLength;
+        // Query then form parameters: parsed on first lookup, values decoded and cached on demand
+        private boolean paramsParsed;
+        private int queryParamCount;
+        private int paramCount;
+        private final int[] paramOffsets = new int[4 * MAX_PARAMS];
+        private final String[] paramValues = new String[MAX_PARAMS];
+        private byte[] scratch = new byte[256];
+        // Where this request's timings are recorded; set once it is routed
+        private Metrics.RouteMetrics metrics = Metrics.OTHER;
+        // How long the request waited for a worker, or -1 when it did not queue
+        private long queueNanos = -1;
+        
+        void reset(byte[] src, int offset, int len) {
+            if (data.length < len) data = new byte[Math.max(len, data.length * 2)];
+            System.arraycopy(src, offset, data, 0, len);
+            length = len;
+            method = null;
+            target = null;
+            path = null;
+            pathParam = null;
+            queryStart = 0;
+            queryEnd = 0;
+            http11 = false;
+            headerCount = 0;
+            bodyStart = len;
+            bodyLength = 0;
+            if (paramsParsed) Arrays.fill(paramValues, 0, paramCount, null);
+            paramsParsed = false;
+            queryParamCount = 0;
+            paramCount = 0;
+            metrics = Metrics.OTHER;
+        }
+        
+        void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+            int i = headerCount * 4;
+            if (i + 4 > headerOffsets.length) headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length * 2);
+            headerOffsets[i] = nameStart;
+            headerOffsets[i + 1] = nameEnd;
+            headerOffsets[i + 2] = valueStart;
+            headerOffsets[i + 3] = valueEnd;
+            headerCount++;
+        }
+        
+        public String getMethod() { return method; }
+        public Metrics.RouteMetrics getMetrics() { return metrics; }
+        public void setMetrics(Metrics.RouteMetrics metrics) { this.metrics = metrics; }
+        public long getQueueNanos() { return queueNanos; }
+        public void setQueueNanos(long queueNanos) { this.queueNanos = queueNanos; }
+        public String getTarget() { return target; }
+        public boolean isHttp11() { return http11; }
+        /** Request target without the query string. */
+        public String getPath() { return path; }
+        /** Value bound to the {param} segment of the matched route, if any. */
+        public String getPathParam() { return pathParam; }
+        void setPathParam(String pathParam) { this.pathParam = pathParam; }
+        public int getBodyLength() { return bodyLength; }
+        
+        public String getBody() {
+            return new String(data, bodyStart, bodyLength, StandardCharsets.UTF_8);
+        }
+        
+        /** Header value by case-insensitive name, or null. */
+        public String header(String name) {
+            int i = findHeader(name);
+            return i < 0 ? null : new String(data, headerOffsets[i + 2], headerOffsets[i + 3] - headerOffsets[i + 2], StandardCharsets.ISO_8859_1);
+        }
+        
+        boolean headerContains(String name, String token) {
+            int i = findHeader(name);
+            return i >= 0 && indexOfIgnoreCase(data, headerOffsets[i + 2], headerOffsets[i + 3], token) >= 0;
+        }
+        
+        private int findHeader(String name) {
+            for (int h = 0; h < headerCount; h++) {
+                int i = h * 4;
+                if (equalsIgnoreCase(data, headerOffsets[i], headerOffsets[i + 1], name)) return i;
+            }
+            return -1;
+        }
+        
+        /** Whether If-None-Match names etag; it uses weak comparison and may list several tags or "*". */
+        public boolean matchesETag(String etag) {
+            String ifNoneMatch = header("if-none-match");
+            if (ifNoneMatch == null) return false;
+            String tag = etag.startsWith("W/") ? etag.substring(2) : etag;
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+                if (candidate.equals("*") || candidate.equals(tag)) return true;
+            }
+            return false;
+        }
+        
+        /** HTTP/1.1 keeps the connection unless asked to close; HTTP/1.0 only on request. */
+        public boolean isKeepAlive() {
+            if (headerContains("connection", "close")) return false;
+            return http11 || headerContains("connection", "keep-alive");
+        }
+        
+        /** Decoded value of an application/x-www-form-urlencoded body parameter, or null. */
+        public String param(String name) {
+            if (!paramsParsed) parseParams();
+            return findParam(queryParamCount, paramCount, name);
+        }
+        
+        /** Decoded value of a query string parameter, or null. */
+        public String queryParam(String name) {
+            if (!paramsParsed) parseParams();
+            return findParam(0, queryParamCount, name);
+        }
+        
+        private String findParam(int from, int to, String name) {
+            for (int p = from; p < to; p++) {
+                int i = p * 4;
+                if (equals(data, paramOffsets[i], paramOffsets[i + 1], name)) {
+                    if (paramValues[p] == null) paramValues[p] = decode(paramOffsets[i + 2], paramOffsets[i + 3]);
+                    return paramValues[p];
+                }
+            }
+            return null;
+        }
+        
+        private void parseParams() {
+            paramsParsed = true;
+            indexPairs(queryStart, queryEnd);
+            queryParamCount = paramCount;
+            indexPairs(bodyStart, bodyStart + bodyLength);
+        }
+        
+        private void indexPairs(int from, int to) {
+            int pos = from;
+            while (pos < to && paramCount < MAX_PARAMS) {
+                int amp = pos;
+                while (amp < to && data[amp] != '&') amp++;
+                int eq = pos;
+                while (eq < amp && data[eq] != '=') eq++;
+                // Pairs without a value are skipped, matching the old split("=") behaviour
+                if (eq < amp - 1) {
+                    int i = paramCount * 4;
+                    paramOffsets[i] = pos;
+                    paramOffsets[i + 1] = eq;
+                    paramOffsets[i + 2] = eq + 1;
+                    paramOffsets[i + 3] = amp;
+                    paramCount++;
+                }
+                pos = amp + 1;
+            }
+        }
+        
+        private String decode(int from, int to) {
+            if (scratch.length < to - from) scratch = new byte[to - from];
+            int n = 0;
+            for (int i = from; i < to; i++) {
+                byte b = data[i];
+                if (b == '+') {
+                    scratch[n++] = ' ';
+                } else if (b == '%' && i + 2 < to && hex(data[i + 1]) >= 0 && hex(data[i + 2]) >= 0) {
+                    scratch[n++] = (byte) ((hex(data[i + 1]) << 4) | hex(data[i + 2]));
+                    i += 2;
+                } else {
+                    scratch[n++] = b;
+                }
+            }
+            return new String(scratch, 0, n, StandardCharsets.UTF_8);
+        }
+        
+        private static int hex(byte b) {
+            if (b >= '0' && b <= '9') return b - '0';
+            if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+            if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+            return -1;
+        }
+        
+        static boolean equals(byte[] data, int from, int to, String s) {
+            if (to - from != s.length()) return false;
+            for (int i = 0; i < s.length(); i++) {
+                if (data[from + i] != s.charAt(i)) return false;
+            }
+            return true;
+        }
+        
+        static boolean equalsIgnoreCase(byte[] data, int from, int to, String s) {
+            if (to - from != s.length()) return false;
+            for (int i = 0; i < s.length(); i++) {
+                if (Character.toLowerCase((char) data[from + i]) != Character.toLowerCase(s.charAt(i))) return false;
+            }
+            return true;
+        }
+        
+        static int indexOfIgnoreCase(byte[] data, int from, int to, String s) {
+            for (int i = from; i + s.length() <= to; i++) {
+                if (equalsIgnoreCase(data, i, i + s.length(), s)) return i;
+            }
+            return -1;
+        }
+    }
+    
+    /**
+     * Route table built once at startup. Literal paths resolve with one hash lookup per
+     * method; a template ending in a {param} segment, like /api/voter/{voterId}, is keyed
+     * by its literal prefix, so it also resolves with a single lookup after trimming the
+     * last segment.
+     */
+    static class Router {
+        interface RouteHandler {
+            String handle(ClientHandler handler, HttpRequest request);
+        }
+        
+        /** For routes that need more than a prebuilt string, such as streamed bodies. */
+        interface ResponseHandler {
+            Response handle(ClientHandler handler, HttpRequest request);
+        }
+        
+        static class Route {
+            final String method;
+            final String pattern;
+            final ResponseHandler handler;
+            final Metrics.RouteMetrics metrics;
+            final int admissionClass;
+            
+            Route(String method, String pattern, ResponseHandler handler) {
+                this.method = method;
+                this.pattern = pattern;
+                this.handler = handler;
+                this.metrics = Metrics.route(method + " " + pattern);
+                this.admissionClass = AdmissionControl.classify(method, pattern);
+            }
+        }
+        
+        private final Map<String, Map<String, Route>> exact = new HashMap<>();
+        private final Map<String, Map<String, Route>> withParam = new HashMap<>();
+        
+        public void add(String method, String pattern, RouteHandler handler) {
+            addResponse(method, pattern, (h, req) -> Response.of(handler.handle(h, req)));
+        }
+        
+        public void addResponse(String method, String pattern, ResponseHandler handler) {
+            Route route = new Route(method, pattern, handler);
+            int brace = pattern.indexOf('{');
+            if (brace < 0) {
+                exact.computeIfAbsent(method, k -> new HashMap<>()).put(pattern, route);
+            } else if (brace > 0 && pattern.charAt(brace - 1) == '/' && pattern.indexOf('/', brace) < 0 && pattern.endsWith("}")) {
+                withParam.computeIfAbsent(method, k -> new HashMap<>()).put(pattern.substring(0, brace), route);
+            } else {
+                throw new IllegalArgumentException("Only a trailing {param} segment is supported: " + pattern);
+            }
+        }
+        
+        /** Finds the route for the request, binding its path parameter; null when none matches. */
+        public Route match(String method, HttpRequest request) {
+            String path = request.getPath();
+            Map<String, Route> literal = exact.get(method);
+            Route route = literal == null ? null : literal.get(path);
+            if (route != null) return route;
+            
+            Map<String, Route> templates = withParam.get(method);
+            int slash = path.lastIndexOf('/');
+            if (templates == null || slash < 0 || slash == path.length() - 1) return null;
+            route = templates.get(path.substring(0, slash + 1));
+            if (route != null) request.setPathParam(path.substring(slash + 1));
+            return route;
+        }
+    }
+    
+    /**
+     * Single-pass HTTP/1.x parser over a byte buffer. parse() returns the number of bytes
+     * the request took, or -1 when more input is needed; anything left after that is the
+     * start of the next pipelined request. Header count and size limits are enforced
+     * before the request is accepted.
+     */
+    static class HttpRequestParser {
+        private final int maxHeaders;
+        private final int maxHeaderBytes;
+        private final int maxBodyBytes;
+        private final Set<String> bulkPaths;
+        private final int maxBulkBodyBytes;
+        
+        static class HttpParseException extends Exception {
+            private static final long serialVersionUID = 1L;
+            
+            private final String status;
+            
+            HttpParseException(String status, String message) {
+                super(message);
+                this.status = status;
+            }
+            
+            String toResponse() {
+                return "HTTP/1.1 " + status + "\r\nConnection: close\r\n\r\n" + getMessage();
+            }
+        }
+        
+        public HttpRequestParser(int maxHeaders, int maxHeaderBytes, int maxBodyBytes) {
+            this(maxHeaders, maxHeaderBytes, maxBodyBytes, Collections.emptySet(), maxBodyBytes);
+        }
+        
+        /** Requests whose path is in bulkPaths may carry bodies up to maxBulkBodyBytes instead. */
+        public HttpRequestParser(int maxHeaders, int maxHeaderBytes, int maxBodyBytes, Set<String> bulkPaths, int maxBulkBodyBytes) {
+            this.maxHeaders = maxHeaders;
+            this.maxHeaderBytes = maxHeaderBytes;
+            this.maxBodyBytes = maxBodyBytes;
+            this.bulkPaths = bulkPaths;
+            this.maxBulkBodyBytes = maxBulkBodyBytes;
+        }
+        
+        public int parse(byte[] buf, int offset, int limit, HttpRequest request) throws HttpParseException {
+            // Tolerate stray CRLFs between pipelined requests
+            int start = offset;
+            while (start < limit && (buf[start] == '\r' || buf[start] == '\n')) start++;
+            
+            int scanEnd = Math.min(limit, start + maxHeaderBytes);
+            int headerEnd = -1;
+            for (int i = start + 3; i < scanEnd; i++) {
+                if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r') {
+                    headerEnd = i + 1;
+                    break;
+                }
+            }
+            if (headerEnd < 0) {
+                if (limit - start >= maxHeaderBytes) {
+                    throw new HttpParseException("431 Request Header Fields Too Large", "Request headers too large");
+                }
+                return -1;
+            }
+            
+            long contentLength = contentLength(buf, start, headerEnd);
+            if (contentLength > maxBodyBytes && (contentLength > maxBulkBodyBytes || !isBulkPath(buf, start, headerEnd))) {
+                throw new HttpParseException("413 Payload Too Large", "Request body too large");
+            }
+            int total = headerEnd - start + (int) contentLength;
+            if (limit - start < total) return -1;
+            
+            request.reset(buf, start, total);
+            parseHead(request, headerEnd - start);
+            request.bodyStart = headerEnd - start;
+            request.bodyLength = (int) contentLength;
+            return start - offset + total;
+        }
+        
+        private void parseHead(HttpRequest request, int headerEnd) throws HttpParseException {
+            byte[] data = request.data;
+            int lineEnd = indexOfCrlf(data, 0, headerEnd);
+            int sp1 = indexOf(data, 0, lineEnd, (byte) ' ');
+            int sp2 = sp1 < 0 ? -1 : indexOf(data, sp1 + 1, lineEnd, (byte) ' ');
+            if (sp1 <= 0 || sp2 < 0 || sp2 == sp1 + 1) {
+                throw new HttpParseException("400 Bad Request", "Invalid request");
+            }
+            request.method = method(data, 0, sp1);
+            request.target = new String(data, sp1 + 1, sp2 - sp1 - 1, StandardCharsets.ISO_8859_1);
+            int question = indexOf(data, sp1 + 1, sp2, (byte) '?');
+            if (question < 0) {
+                request.path = request.target;
+            } else {
+                request.path = request.target.substring(0, question - sp1 - 1);
+                request.queryStart = question + 1;
+                request.queryEnd = sp2;
+            }
+            request.http11 = HttpRequest.equals(data, sp2 + 1, lineEnd, "HTTP/1.1");
+            
+            int pos = lineEnd + 2;
+            while (pos < headerEnd - 2) {
+                int end = indexOfCrlf(data, pos, headerEnd);
+                int colon = indexOf(data, pos, end, (byte) ':');
+                if (colon > pos) {
+                    if (request.headerCount >= maxHeaders) {
+                        throw new HttpParseException("431 Request Header Fields Too Large", "Too many request headers");
+                    }
+                    int valueStart = colon + 1;
+                    int valueEnd = end;
+                    while (valueStart < valueEnd && data[valueStart] == ' ') valueStart++;
+                    while (valueEnd > valueStart && data[valueEnd - 1] == ' ') valueEnd--;
+                    request.addHeader(pos, colon, valueStart, valueEnd);
+                }
+                pos = end + 2;
+            }
+        }
+        
+        // Finds Content-Length without materialising any header strings
+        private static long contentLength(byte[] buf, int from, int headerEnd) throws HttpParseException {
+            int pos = indexOfCrlf(buf, from, headerEnd) + 2;
+            while (pos < headerEnd - 2) {
+                int end = indexOfCrlf(buf, pos, headerEnd);
+                int colon = indexOf(buf, pos, end, (byte) ':');
+                if (colon > pos && HttpRequest.equalsIgnoreCase(buf, pos, colon, "content-length")) {
+                    long value = 0;
+                    boolean digits = false;
+                    for (int i = colon + 1; i < end; i++) {
+                        byte b = buf[i];
+                        if (b == ' ') continue;
+                        if (b < '0' || b > '9' || value > Integer.MAX_VALUE) {
+                            throw new HttpParseException("400 Bad Request", "Invalid Content-Length");
+                        }
+                        value = value * 10 + (b - '0');
+                        digits = true;
+                    }
+                    return digits ? value : 0;
+                }
+                pos = end + 2;
+            }
+            return 0;
+        }
+        
+        // Only reached for bodies over the normal limit, so the path string is rarely built
+        private boolean isBulkPath(byte[] buf, int from, int headerEnd) {
+            int lineEnd = indexOfCrlf(buf, from, headerEnd);
+            int sp1 = indexOf(buf, from, lineEnd, (byte) ' ');
+            int sp2 = sp1 < 0 ? -1 : indexOf(buf, sp1 + 1, lineEnd, (byte) ' ');
+            if (sp2 < 0) return false;
+            int question = indexOf(buf, sp1 + 1, sp2, (byte) '?');
+            int pathEnd = question < 0 ? sp2 : question;
+            return bulkPaths.contains(new String(buf, sp1 + 1, pathEnd - sp1 - 1, StandardCharsets.ISO_8859_1));
+        }
+        
+        // Common methods map to constants so the request line allocates only the target
+        private static String method(byte[] data, int from, int to) {
+            if (HttpRequest.equals(data, from, to, "GET")) return "GET";
+            if (HttpRequest.equals(data, from, to, "POST")) return "POST";
+            if (HttpRequest.equals(data, from, to, "OPTIONS")) return "OPTIONS";
+            return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+        }
+        
+        private static int indexOfCrlf(byte[] data, int from, int to) {
+            for (int i = from; i + 1 < to; i++) {
+                if (data[i] == '\r' && data[i + 1] == '\n') return i;
+            }
+            return to;
+        }
+        
+        private static int indexOf(byte[] data, int from, int to, byte b) {
+            for (int i = from; i < to; i++) {
+                if (data[i] == b) return i;
+            }
+            return -1;
+        }
+    }
+    
+    /**
+     * Parses a bulk upload held in a request body, as CSV or as NDJSON with one flat object
+     * per line. The body is cut into chunks at line boundaries and the chunks are parsed and
+     * validated in parallel; valid rows come back in upload order, and rejected rows are
+     * kept with their line numbers for the report.
+     */
+    static class BulkImport {
+        private static final int CHUNK_BYTES = 256 * 1024;
+        private static final int MAX_REPORTED_ERRORS = 1000;
+        
+        /** Turns one row's fields, in column order, into a record or throws IllegalArgumentException. */
+        interface RowMapper<T> {
+            T map(String[] fields);
+        }
+        
+        static class Row<T> {
+            final int line;
+            final T record;
+            final String error;
+            
+            Row(int line, T record, String error) {
+                this.line = line;
+                this.record = record;
+                this.error = error;
+            }
+        }
+        
+        static class Result<T> {
+            final List<Row<T>> rows = new ArrayList<>();
+            private final List<Row<T>> errors = new ArrayList<>();
+            
+            void reject(int line, String message) {
+                errors.add(new Row<>(line, null, message));
+            }
+            
+            List<Row<T>> errors() {
+                return errors;
+            }
+            
+            String report(int imported) {
+                errors.sort(Comparator.comparingInt(row -> row.line));
+                StringBuilder json = new StringBuilder(64 + Math.min(errors.size(), MAX_REPORTED_ERRORS) * 48);
+                json.append("{\"success\":true,\"imported\":").append(imported);
+                json.append(",\"rejected\":").append(errors.size());
+                json.append(",\"errors\":[");
+                for (int i = 0; i < errors.size() && i < MAX_REPORTED_ERRORS; i++) {
+                    if (i > 0) json.append(",");
+                    Row<T> row = errors.get(i);
+                    json.append("{\"line\":").append(row.line).append(",\"message\":\"").append(row.error).append("\"}");
+                }
+                json.append("],\"errorsTruncated\":").append(errors.size() > MAX_REPORTED_ERRORS).append("}");
+                return json.toString();
+            }
+        }
+        
+        public static <T> Result<T> parse(HttpRequest request, String[] columns, RowMapper<T> mapper) {
+            byte[] data = request.data;
+            int from = request.bodyStart;
+            int end = request.bodyStart + request.bodyLength;
+            boolean ndjson = request.headerContains("content-type", "json") || startsWithBrace(data, from, end);
+            
+            List<int[]> chunks = new ArrayList<>();
+            for (int start = from; start < end; ) {
+                int cut = Math.min(end, start + CHUNK_BYTES);
+                while (cut < end && data[cut - 1] != '\n') cut++;
+                chunks.add(new int[] { start, cut });
+                start = cut;
+            }
+            
+            List<List<Row<T>>> parsed = chunks.parallelStream()
+                    .map(chunk -> parseChunk(data, chunk[0], chunk[1], chunk[0] == from, columns, ndjson, mapper))
+                    .collect(java.util.stream.Collectors.toList());
+            
+            // Chunk-local line numbers become upload line numbers once the chunks are in order
+            Result<T> result = new Result<>();
+            int base = 0;
+            for (int c = 0; c < parsed.size(); c++) {
+                for (Row<T> row : parsed.get(c)) {
+                    if (row.error == null) {
+                        result.rows.add(new Row<>(base + row.line, row.record, null));
+                    } else {
+                        result.reject(base + row.line, row.error);
+                    }
+                }
+                base += countLines(data, chunks.get(c)[0], chunks.get(c)[1]);
+            }
+            return result;
+        }
+        
+        /**
+         * Rows in the body as parse() would see them (non-blank lines, less a CSV header),
+         * found without parsing any; counting stops once it passes limit.
+         */
+        public static int countRows(HttpRequest request, String[] columns, int limit) {
+            byte[] data = request.data;
+            int from = request.bodyStart;
+            int end = request.bodyStart + request.bodyLength;
+            boolean ndjson = request.headerContains("content-type", "json") || startsWithBrace(data, from, end);
+            int rows = 0;
+            for (int start = from; start < end && rows <= limit; ) {
+                int stop = start;
+                while (stop < end && data[stop] != '\n') stop++;
+                boolean blank = true;
+                for (int i = start; i < stop && blank; i++) blank = (data[i] & 0xff) <= ' ';
+                // Only the first line is decoded, to tell a CSV header row from a ballot
+                boolean header = !blank && !ndjson && start == from && new String(data, start, stop - start, StandardCharsets.UTF_8)
+                        .trim().split(",", 2)[0].trim().equalsIgnoreCase(columns[0]);
+                if (!blank && !header) rows++;
+                start = stop + 1;
+            }
+            return rows;
+        }
+        
+        private static <T> List<Row<T>> parseChunk(byte[] data, int from, int to, boolean first, String[] columns, boolean ndjson,
+                                                   RowMapper<T> mapper) {
+            String[] lines = new String(data, from, to - from, StandardCharsets.UTF_8).split("\n", -1);
+            List<Row<T>> rows = new ArrayList<>(lines.length);
+            for (int i = 0; i < lines.length; i++) {
+                String line = lines[i].trim();
+                if (line.isEmpty()) continue;
+                // A CSV header row is recognised by its first column name
+                if (!ndjson && first && i == 0 && line.split(",", 2)[0].trim().equalsIgnoreCase(columns[0])) continue;
+                try {
+                    String[] fields = ndjson ? objectFields(line, columns) : csvFields(line, columns);
+                    for (String field : fields) {
+                        if (field != null && (field.indexOf(',') >= 0 || field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0)) {
+                            throw new IllegalArgumentException("Fields cannot contain commas or line breaks");
+                        }
+                    }
+                    rows.add(new Row<>(i + 1, mapper.map(fields), null));
+                } catch (IllegalArgumentException e) {
+                    rows.add(new Row<>(i + 1, null, e.getMessage()));
+                }
+            }
+            return rows;
+        }
+        
+        private static String[] csvFields(String line, String[] columns) {
+            String[] parts = line.split(",", -1);
+            if (parts.length > columns.length) throw new IllegalArgumentException("Too many fields");
+            String[] fields = new String[columns.length];
+            for (int i = 0; i < parts.length; i++) fields[i] = parts[i].trim();
+            return fields;
+        }
+        
+        private static String[] objectFields(String line, String[] columns) {
+            Map<String, String> object = parseObject(line);
+            String[] fields = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) fields[i] = object.get(columns[i]);
+            return fields;
+        }
+        
+        /** Requires the first count fields to be present and non-empty. */
+        static void require(String[] fields, int count) {
+            for (int i = 0; i < count; i++) {
+                if (fields[i] == null || fields[i].isEmpty()) throw new IllegalArgumentException("Missing required field");
+            }
+        }
+        
+        static int age(String value) {
+            try {
+                int age = Integer.parseInt(value);
+                if (age < 0) throw new IllegalArgumentException("Invalid age format");
+                return age;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid age format");
+            }
+        }
+        
+        /**
+         * Parses one flat JSON object. Values may be strings, numbers, booleans or null;
+         * non-string values are kept as their literal text and null maps to null.
+         */
+        static Map<String, String> parseObject(String line) {
+            Map<String, String> object = new HashMap<>();
+            int[] pos = { skipSpace(line, 0) };
+            expect(line, pos, '{');
+            if (peek(line, pos) == '}') {
+                pos[0]++;
+            } else {
+                while (true) {
+                    String key = readString(line, pos);
+                    expect(line, pos, ':');
+                    String value;
+                    if (peek(line, pos) == '"') {
+                        value = readString(line, pos);
+                    } else {
+                        int start = pos[0];
+                        while (pos[0] < line.length() && ",} \t".indexOf(line.charAt(pos[0])) < 0) pos[0]++;
+                        value = line.substring(start, pos[0]);
+                        if (value.isEmpty()) throw new IllegalArgumentException("Invalid JSON value");
+                        if (value.equals("null")) value = null;
+                    }
+                    object.put(key, value);
+                    char next = peek(line, pos);
+                    pos[0]++;
+                    if (next == '}') break;
+                    if (next != ',') throw new IllegalArgumentException("Invalid JSON object");
+                }
+            }
+            if (skipSpace(line, pos[0]) != line.length()) throw new IllegalArgumentException("Invalid JSON object");
+            return object;
+        }
+        
+        private static String readString(String line, int[] pos) {
+            expect(line, pos, '"');
+            StringBuilder sb = new StringBuilder();
+            int i = pos[0];
+            while (true) {
+                if (i >= line.length()) throw new IllegalArgumentException("Unterminated JSON string");
+                char c = line.charAt(i++);
+                if (c == '"') break;
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (i >= line.length()) throw new IllegalArgumentException("Unterminated JSON string");
+                char e = line.charAt(i++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (i + 4 > line.length()) throw new IllegalArgumentException("Invalid JSON escape");
+                        try {
+                            sb.append((char) Integer.parseInt(line.substring(i, i + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw new IllegalArgumentException("Invalid JSON escape");
+                        }
+                        i += 4;
+                        break;
+                    default: sb.append(e);
+                }
+            }
+            pos[0] = i;
+            return sb.toString();
+        }
+        
+        private static void expect(String line, int[] pos, char c) {
+            if (peek(line, pos) != c) throw new IllegalArgumentException("Invalid JSON object");
+            pos[0]++;
+        }
+        
+        // Skips whitespace and returns the next character, or 0 at the end of the line
+        private static char peek(String line, int[] pos) {
+            pos[0] = skipSpace(line, pos[0]);
+            return pos[0] < line.length() ? line.charAt(pos[0]) : 0;
+        }
+        
+        private static int skipSpace(String line, int i) {
+            while (i < line.length() && Character.isWhitespace(line.charAt(i))) i++;
+            return i;
+        }
+        
+        private static boolean startsWithBrace(byte[] data, int from, int to) {
+            int i = from;
+            while (i < to && (data[i] == ' ' || data[i] == '\t' || data[i] == '\r' || data[i] == '\n')) i++;
+            return i < to && data[i] == '{';
+        }
+        
+        private static int countLines(byte[] data, int from, int to) {
+            int lines = 0;
+            for (int i = from; i < to; i++) {
+                if (data[i] == '\n') lines++;
+            }
+            // Only the last chunk can end without a newline
+            return (to > from && data[to - 1] != '\n') ? lines + 1 : lines;
+        }
+    }
+    
+    /**
+     * Change counters behind the ETags of cached read endpoints. Candidate and section
+     * changes bump the catalog counter; a vote bumps its section's counter and the
+     * overall one. Tags also carry the boot time, so counters restarting from zero after
+     * a restart never revalidate a body from the previous run. Writers publish the views a
+     * body is built from before bumping, so a body tagged with a new version has the change.
+     */
+    static class DataVersions {
+        private final String epoch = Long.toHexString(System.currentTimeMillis());
+        private final AtomicLong catalog = new AtomicLong();
+        private final AtomicLong sectionList = new AtomicLong();
+        private final AtomicLong allVotes = new AtomicLong();
+        private final Map<Long, AtomicLong> sectionVotes = new ConcurrentHashMap<>();
+        
+        public void candidatesChanged() {
+            catalog.incrementAndGet();
+        }
+        
+        public void sectionsChanged() {
+            catalog.incrementAndGet();
+            sectionList.incrementAndGet();
+        }
+        
+        /** Call after the vote is in the tally, so a body built at the new version includes it. */
+        public void voteRecorded(long sectionId) {
+            sectionVotes.computeIfAbsent(sectionId, k -> new AtomicLong()).incrementAndGet();
+            allVotes.incrementAndGet();
+        }
+        
+        public void votesRemoved(long sectionId) {
+            sectionVotes.remove(sectionId);
+            allVotes.incrementAndGet();
+        }
+        
+        /** ETag for results in one section, or across all sections when sectionId is null. */
+        public String resultsTag(Long sectionId) {
+            long voteVersion;
+            if (sectionId == null) {
+                voteVersion = allVotes.get();
+            } else {
+                AtomicLong counter = sectionVotes.get(sectionId);
+                voteVersion = counter == null ? 0 : counter.get();
+            }
+            return "\"r" + epoch + "-" + catalog.get() + "-" + voteVersion + "\"";
+        }
+        
+        public long catalogVersion() {
+            return catalog.get();
+        }
+        
+        public String sectionsTag() {
+            return "\"s" + epoch + "-" + sectionList.get() + "\"";
+        }
+    }
+    
+    /**
+     * Pushes live results to Server-Sent Events subscribers. castVote only marks the
+     * (section, candidate) it touched; one publisher thread wakes every window, reads the
+     * marked counts from the tally and serializes one event per subscribed scope, shared
+     * by every subscriber of that scope. Sinks never block the publisher: a subscriber
+     * that cannot take an event is skipped and later sent a full snapshot, and one that
+     * stays behind for longer than dropAfterMillis is disconnected.
+     */
+    static class ResultsFeed {
+        private static final byte[] HEARTBEAT = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+        
+        private final long windowMillis;
+        private final long heartbeatMillis;
+        private final long dropAfterMillis;
+        // section -> candidates voted for since the last window; marks are removed one at a time
+        private final Map<Long, Map<Long, Boolean>> dirty = new ConcurrentHashMap<>();
+        // scope (0 = all sections) -> subscribers
+        private final Map<Long, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+        private Thread publisher;
+        // Publisher thread only
+        private long lastCatalog;
+        private long lastHeartbeat;
+        
+        private static class Subscriber {
+            final EventSink sink;
+            boolean needsSnapshot = true;
+            long behindSince;
+            
+            Subscriber(EventSink sink) {
+                this.sink = sink;
+            }
+        }
+        
+        public ResultsFeed(long windowMillis, long heartbeatMillis, long dropAfterMillis) {
+            this.windowMillis = Math.max(1, windowMillis);
+            this.heartbeatMillis = heartbeatMillis;
+            this.dropAfterMillis = dropAfterMillis;
+        }
+        
+        public synchronized void start() {
+            if (publisher != null) return;
+            lastCatalog = dataVersions.catalogVersion();
+            lastHeartbeat = System.currentTimeMillis();
+            publisher = new Thread(this::publishLoop, "results-feed");
+            publisher.setDaemon(true);
+            publisher.start();
+        }
+        
+        /** Call after the vote is in the tally. */
+        public void voteRecorded(long sectionId, long candidateId) {
+            dirty.computeIfAbsent(sectionId, k -> new ConcurrentHashMap<>()).put(candidateId, Boolean.TRUE);
+        }
+        
+        /** Subscribes to one section, or to all sections when sectionId is null; the first event is a snapshot. */
+        public void subscribe(Long sectionId, EventSink sink) {
+            subscribers.computeIfAbsent(sectionId == null ? 0L : sectionId, k -> ConcurrentHashMap.newKeySet())
+                       .add(new Subscriber(sink));
+        }
+        
+        public int subscriberCount() {
+            int count = 0;
+            for (Set<Subscriber> scope : subscribers.values()) count += scope.size();
+            return count;
+        }
+        
+        private void publishLoop() {
+            while (true) {
+                try {
+                    Thread.sleep(windowMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    publish(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    System.err.println("Results feed error: " + e.getMessage());
+                }
+            }
+        }
+        
+        private void publish(long now) {
+            Map<Long, List<Long>> changed = new HashMap<>();
+            Set<Long> changedAnywhere = new LinkedHashSet<>();
+            for (Map.Entry<Long, Map<Long, Boolean>> section : dirty.entrySet()) {
+                for (Long candidateId : section.getValue().keySet()) {
+                    // A vote marked after this removal is published in the next window
+                    if (section.getValue().remove(candidateId) == null) continue;
+                    changed.computeIfAbsent(section.getKey(), k -> new ArrayList<>()).add(candidateId);
+                    changedAnywhere.add(candidateId);
+                }
+            }
+            // New or removed candidates and sections are not deltas; everyone gets a snapshot
+            long catalog = dataVersions.catalogVersion();
+            boolean resync = catalog != lastCatalog;
+            lastCatalog = catalog;
+            boolean heartbeat = now - lastHeartbeat >= heartbeatMillis;
+            if (heartbeat) lastHeartbeat = now;
+            
+            for (Map.Entry<Long, Set<Subscriber>> entry : subscribers.entrySet()) {
+                Long scope = entry.getKey() == 0 ? null : entry.getKey();
+                Collection<Long> delta = scope == null ? changedAnywhere : changed.get(scope);
+                byte[] deltaEvent = null;
+                byte[] snapshotEvent = null;
+                for (Iterator<Subscriber> it = entry.getValue().iterator(); it.hasNext(); ) {
+                    Subscriber sub = it.next();
+                    if (sub.sink.isClosed()) {
+                        it.remove();
+                        continue;
+                    }
+                    if (resync) sub.needsSnapshot = true;
+                    
+                    byte[] event;
+                    if (sub.needsSnapshot) {
+                        if (snapshotEvent == null) snapshotEvent = event("snapshot", snapshotJson(scope));
+                        event = snapshotEvent;
+                    } else if (delta != null && !delta.isEmpty()) {
+                        if (deltaEvent == null) deltaEvent = event("delta", deltaJson(scope, delta));
+                        event = deltaEvent;
+                    } else if (heartbeat) {
+                        event = HEARTBEAT;
+                    } else {
+                        continue;
+                    }
+                    
+                    if (sub.sink.offer(event)) {
+                        sub.needsSnapshot = false;
+                        sub.behindSince = 0;
+                    } else {
+                        // Skipped events are covered by the snapshot it gets once it catches up
+                        sub.needsSnapshot = true;
+                        if (sub.behindSince == 0) {
+                            sub.behindSince = now;
+                        } else if (now - sub.behindSince > dropAfterMillis) {
+                            sub.sink.close();
+                            it.remove();
+                        }
+                    }
+                }
+            }
+        }
+        
+        private static byte[] event(String name, String json) {
+            return ("event: " + name + "\ndata: " + json + "\n\n").getBytes(StandardCharsets.UTF_8);
+        }
+        
+        private static String snapshotJson(Long scope) {
+            CatalogView view = catalogView.get();
+            long[] counts = view.counts(scope);
+            StringBuilder json = new StringBuilder();
+            json.append("{\"sectionId\":").append(scope == null ? 0 : scope).append(",\"candidates\":[");
+            boolean first = true;
+            for (int i = 0; i < view.candidates.length; i++) {
+                Candidate candidate = view.candidates[i];
+                if (!first) json.append(",");
+                json.append("{\"id\":").append(candidate.getId()).append(",");
+                json.append("\"name\":\"").append(candidate.getName()).append("\",");
+                json.append("\"party\":\"").append(candidate.getParty()).append("\",");
+                json.append("\"votes\":").append(counts[i]).append("}");
+                first = false;
+            }
+            json.append("],\"totalVotes\":").append(CatalogView.total(counts));
+            json.append(",\"totalCandidates\":").append(view.candidates.length);
+            json.append("}");
+            return json.toString();
+        }
+        
+        private static String deltaJson(Long scope, Collection<Long> candidateIds) {
+            CatalogView view = catalogView.get();
+            long[] counts = view.counts(scope);
+            StringBuilder json = new StringBuilder();
+            json.append("{\"sectionId\":").append(scope == null ? 0 : scope).append(",\"candidates\":[");
+            boolean first = true;
+            for (Long candidateId : candidateIds) {
+                int i = view.indexOf(candidateId);
+                // Deleted since it was voted for; the catalog change sends everyone a snapshot
+                if (i < 0) continue;
+                if (!first) json.append(",");
+                json.append("{\"id\":").append(candidateId).append(",\"votes\":").append(counts[i]).append("}");
+                first = false;
+            }
+            json.append("],\"totalVotes\":").append(CatalogView.total(counts)).append("}");
+            return json.toString();
+        }
+    }
+    
+    /** One serialized body per key, reused while the ETag it was built for is current. */
+    static class VersionedCache<K> {
+        private static class Entry {
+            final String etag;
+            final byte[] body;
+            
+            Entry(String etag, byte[] body) {
+                this.etag = etag;
+                this.body = body;
+            }
+        }
+        
+        private final Map<K, Entry> entries = new ConcurrentHashMap<>();
+        
+        /** The cached body for etag, or a fresh one from build that replaces it. The array must not be modified. */
+        public byte[] get(K key, String etag, java.util.function.Supplier<String> build) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.etag.equals(etag)) return entry.body;
+            byte[] body = build.get().getBytes(StandardCharsets.UTF_8);
+            entries.put(key, new Entry(etag, body));
+            return body;
+        }
+        
+        public void remove(K key) {
+            entries.remove(key);
+        }
+    }
+    
+    /**
+     * A value rebuilt from the live tables after every change and read with one volatile
+     * load. Writers call publish() once their change is made; one of them rebuilds at a
+     * time, and a rebuild covers every change whose publish() started before it did, so
+     * writers that arrive together share a rebuild. publish() returns once the caller's
+     * change is in the published value, so a reader that sees a version bumped after it
+     * also sees the change.
+     */
+    static final class PublishedView<T> {
+        private static final class Version<T> {
+            final long epoch;
+            final T value;
+            
+            Version(long epoch, T value) {
+                this.epoch = epoch;
+                this.value = value;
+            }
+        }
+        
+        private final java.util.function.Supplier<T> build;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicBoolean building = new AtomicBoolean();
+        private volatile Version<T> current;
+        
+        public PublishedView(java.util.function.Supplier<T> build) {
+            this.build = build;
+            this.current = new Version<>(0, build.get());
+        }
+        
+        public T get() {
+            return current.value;
+        }
+        
+        public void publish() {
+            long ticket = requested.incrementAndGet();
+            while (current.epoch < ticket) {
+                if (building.compareAndSet(false, true)) {
+                    try {
+                        // Every ticket up to this one was taken after its change was made
+                        long epoch = requested.get();
+                        if (current.epoch < ticket) current = new Version<>(epoch, build.get());
+                    } finally {
+                        building.set(false);
+                    }
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Candidates and sections as immutable arrays, published after every change to either.
+     * Votes do not republish it: counts are read from the live tally into a fresh array for
+     * each response, and the response's total is the sum of that array, so it always adds
+     * up even while votes keep arriving.
+     */
+    static final class CatalogView {
+        // Both in ID order
+        final Candidate[] candidates;
+        final VotingSection[] sections;
+        private final long[] candidateIds;
+        private final long[] sectionIds;
+        // Section -> its candidates, in ID order
+        private final Map<Long, Candidate[]> standing;
+        
+        private CatalogView(Candidate[] candidates, VotingSection[] sections) {
+            this.candidates = candidates;
+            this.sections = sections;
+            candidateIds = new long[candidates.length];
+            Map<Long, List<Candidate>> grouped = new HashMap<>();
+            for (int i = 0; i < candidates.length; i++) {
+                candidateIds[i] = candidates[i].getId();
+                grouped.computeIfAbsent(candidates[i].getSectionId(), k -> new ArrayList<>()).add(candidates[i]);
+            }
+            standing = new HashMap<>();
+            for (Map.Entry<Long, List<Candidate>> entry : grouped.entrySet()) {
+                standing.put(entry.getKey(), entry.getValue().toArray(new Candidate[0]));
+            }
+            sectionIds = new long[sections.length];
+            for (int i = 0; i < sections.length; i++) sectionIds[i] = sections[i].getId();
+        }
+        
+        static CatalogView build() {
+            Candidate[] all = VotingSystemServer.candidates.values().toArray(new Candidate[0]);
+            Arrays.sort(all, Comparator.comparingLong(Candidate::getId));
+            VotingSection[] listed = VotingSystemServer.sections.values().toArray(new VotingSection[0]);
+            Arrays.sort(listed, Comparator.comparingLong(VotingSection::getId));
+            return new CatalogView(all, listed);
+        }
+        
+        /** Current votes for each of candidates, in one section or across all sections when scope is null. */
+        public long[] counts(Long scope) {
+            long[] counts = new long[candidateIds.length];
+            for (int i = 0; i < counts.length; i++) counts[i] = tally.count(scope, candidateIds[i]);
+            return counts;
+        }
+        
+        /** The total to report next to counts, so the two always agree. */
+        static long total(long[] counts) {
+            long sum = 0;
+            for (long count : counts) sum += count;
+            return sum;
+        }
+        
+        /** Candidates standing in a section, in ID order. */
+        public Candidate[] standing(long sectionId) {
+            Candidate[] listed = standing.get(sectionId);
+            return listed == null ? new Candidate[0] : listed;
+        }
+        
+        /** Position of a candidate in candidates, or a negative number if it is not listed. */
+        public int indexOf(long candidateId) {
+            return Arrays.binarySearch(candidateIds, candidateId);
+        }
+        
+        public boolean hasSection(long sectionId) {
+            return Arrays.binarySearch(sectionIds, sectionId) >= 0;
+        }
+    }
+    
+    /**
+     * Request counters and latency histograms, served at /api/metrics in the Prometheus
+     * text format. Every route gets its own counters; a request's time is split into
+     * parse, handle, persist (waits for journal fsyncs and table rewrites) and
+     * write. Recording is a few LongAdder increments, so the vote path never takes a lock.
+     */
+    static class Metrics {
+        static final int PARSE = 0;
+        static final int HANDLE = 1;
+        static final int PERSIST = 2;
+        static final int WRITE = 3;
+        private static final String[] PHASES = { "parse", "handle", "persist", "write" };
+        
+        // Bucket upper bounds in nanoseconds, from 50us to 10s
+        private static final long[] BOUNDS = {
+            50_000, 100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000,
+            50_000_000, 100_000_000, 250_000_000, 500_000_000, 1_000_000_000, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+        };
+        
+        static class Histogram {
+            private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+            private final LongAdder sumNanos = new LongAdder();
+            
+            Histogram() {
+                for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+            }
+            
+            void record(long nanos) {
+                int i = 0;
+                while (i < BOUNDS.length && nanos > BOUNDS[i]) i++;
+                buckets[i].increment();
+                sumNanos.add(nanos);
+            }
+            
+            /** Cumulative buckets, as Prometheus expects; labels go inside the braces. */
+            void write(StringBuilder out, String name, String labels) {
+                String prefix = labels.isEmpty() ? "" : labels + ",";
+                long cumulative = 0;
+                for (int i = 0; i < buckets.length; i++) {
+                    cumulative += buckets[i].sum();
+                    String le = i < BOUNDS.length ? seconds(BOUNDS[i]) : "+Inf";
+                    out.append(name).append("_bucket{").append(prefix).append("le=\"").append(le).append("\"} ")
+                       .append(cumulative).append('\n');
+                }
+                String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+                out.append(name).append("_sum").append(braces).append(' ').append(seconds(sumNanos.sum())).append('\n');
+                out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+            }
+        }
+        
+        static class RouteMetrics {
+            final String label;
+            final LongAdder requests = new LongAdder();
+            final LongAdder clientErrors = new LongAdder();
+            final LongAdder serverErrors = new LongAdder();
+            final Histogram[] phases = new Histogram[PHASES.length];
+            
+            RouteMetrics(String label) {
+                this.label = label;
+                for (int i = 0; i < phases.length; i++) phases[i] = new Histogram();
+            }
+            
+            /** Counts a finished request; the write phase is recorded separately once the body is out. */
+            void record(int status, long parseNanos, long handleNanos, long persistNanos) {
+                requests.increment();
+                if (status >= 500) serverErrors.increment();
+                else if (status >= 400) clientErrors.increment();
+                phases[PARSE].record(parseNanos);
+                phases[HANDLE].record(handleNanos);
+                if (persistNanos > 0) phases[PERSIST].record(persistNanos);
+            }
+        }
+        
+        private static final List<RouteMetrics> ROUTES = new CopyOnWriteArrayList<>();
+        // Requests that matched no API route: static files, unknown paths, preflights
+        static final RouteMetrics OTHER = route("other");
+        static final LongAdder parseErrors = new LongAdder();
+        static final LongAdder requestTimeouts = new LongAdder();
+        static final LongAdder activeConnections = new LongAdder();
+        static final Histogram journalFlush = new Histogram();
+        static final LongAdder journalVotes = new LongAdder();
+        static final Histogram snapshotWrite = new Histogram();
+        
+        // Persistence time spent by the current thread, collected once the handler returns
+        private static final ThreadLocal<long[]> PERSISTED = ThreadLocal.withInitial(() -> new long[1]);
+        
+        static RouteMetrics route(String label) {
+            RouteMetrics metrics = new RouteMetrics(label);
+            ROUTES.add(metrics);
+            return metrics;
+        }
+        
+        static void persisted(long startNanos) {
+            PERSISTED.get()[0] += System.nanoTime() - startNanos;
+        }
+        
+        static long takePersisted() {
+            long[] persisted = PERSISTED.get();
+            long nanos = persisted[0];
+            persisted[0] = 0;
+            return nanos;
+        }
+        
+        static String render() {
+            StringBuilder out = new StringBuilder(16 * 1024);
+            header(out, "voting_http_requests_total", "counter", "Requests answered, by route.");
+            for (RouteMetrics route : ROUTES) {
+                long n = route.requests.sum();
+                if (n > 0) out.append("voting_http_requests_total{route=\"").append(route.label).append("\"} ").append(n).append('\n');
+            }
+            header(out, "voting_http_errors_total", "counter", "Requests answered with a 4xx or 5xx status, by route and status class.");
+            for (RouteMetrics route : ROUTES) {
+                if (route.requests.sum() == 0) continue;
+                out.append("voting_http_errors_total{route=\"").append(route.label).append("\",class=\"4xx\"} ")
+                   .append(route.clientErrors.sum()).append('\n');
+                out.append("voting_http_errors_total{route=\"").append(route.label).append("\",class=\"5xx\"} ")
+                   .append(route.serverErrors.sum()).append('\n');
+            }
+            header(out, "voting_http_phase_seconds", "histogram", "Time spent in each phase of a request, by route.");
+            for (RouteMetrics route : ROUTES) {
+                if (route.requests.sum() == 0) continue;
+                for (int i = 0; i < PHASES.length; i++) {
+                    route.phases[i].write(out, "voting_http_phase_seconds", "route=\"" + route.label + "\",phase=\"" + PHASES[i] + "\"");
+                }
+            }
+            counter(out, "voting_http_parse_errors_total", "Requests rejected by the parser before routing.", parseErrors.sum());
+            counter(out, "voting_http_request_timeouts_total", "Connections closed with 408 because a request arrived too slowly.", requestTimeouts.sum());
+            gauge(out, "voting_connections_active", "Open client connections.", activeConnections.sum());
+            
+            ConnectionExecutor executor = connectionExecutor;
+            if (executor != null) {
+                gauge(out, "voting_workers_active", "Worker threads handling a request.", executor.getActiveWorkers());
+                gauge(out, "voting_workers_queued", "Work waiting for a worker.", executor.getQueueDepth());
+                counter(out, "voting_workers_rejected_total", "Work turned away with 503 because the queue was full.", executor.getRejected());
+            }
+            gauge(out, "voting_event_subscribers", "Open live results streams.", resultsFeed.subscriberCount());
+            gauge(out, "voting_event_streams_blocking", "Live results streams holding a blocking-engine worker.", QueuedEventSink.openStreams());
+            
+            AdmissionControl control = admission;
+            gauge(out, "voting_admission_level", "Overload level: 0 admits all, 1 sheds reads, 2 also sheds admin calls.", control.level());
+            header(out, "voting_admission_in_flight", "gauge", "Requests being handled, by admission class.");
+            for (int c = 0; c < AdmissionControl.CLASSES.length; c++) {
+                out.append("voting_admission_in_flight{class=\"").append(AdmissionControl.CLASSES[c]).append("\"} ").append(control.inFlight(c)).append('\n');
+            }
+            header(out, "voting_admission_shed_total", "counter", "Requests shed with 503 by admission control, by class.");
+            for (int c = 0; c < AdmissionControl.CLASSES.length; c++) {
+                out.append("voting_admission_shed_total{class=\"").append(AdmissionControl.CLASSES[c]).append("\"} ").append(control.shed(c)).append('\n');
+            }
+            header(out, "voting_admission_queue_seconds", "histogram", "Time requests waited for a worker, by admission class.");
+            for (int c = 0; c < AdmissionControl.CLASSES.length; c++) {
+                control.queueDelay(c).write(out, "voting_admission_queue_seconds", "class=\"" + AdmissionControl.CLASSES[c] + "\"");
+            }
+            
+            if (changeLog.isEnabled()) {
+                long position = changeLog.head();
+                gauge(out, "voting_replication_position", "Sequence number of the newest change log entry.", position);
+                gauge(out, "voting_replication_followers", "Followers connected to this primary.", changeLog.links().size());
+                header(out, "voting_replication_follower_behind", "gauge", "Change log entries not yet shipped to a follower.");
+                for (ChangeLog.Link link : changeLog.links()) {
+                    out.append("voting_replication_follower_behind{follower=\"").append(link.address).append("\"} ")
+                       .append(Math.max(0, position - link.shipped)).append('\n');
+                }
+            }
+            Follower replica = follower;
+            if (replica != null) {
+                gauge(out, "voting_replication_connected", "1 while the stream from the primary is up.", replica.isConnected() ? 1 : 0);
+                gauge(out, "voting_replication_ready", "0 while a full copy from the primary is loading, else 1.", replica.isReady() ? 1 : 0);
+                gauge(out, "voting_replication_applied_position", "Sequence number of the last change applied.", replica.applied());
+                gauge(out, "voting_replication_lag_entries", "Changes logged by the primary and not yet applied.", replica.lagEntries());
+                header(out, "voting_replication_lag_seconds", "gauge", "Age of the last change applied when it was applied, or 0 when caught up.");
+                out.append("voting_replication_lag_seconds ").append(seconds(TimeUnit.MILLISECONDS.toNanos(replica.lagMillis()))).append('\n');
+            }
+            
+            header(out, "voting_journal_flush_seconds", "histogram", "Time to write and fsync one batch of votes.");
+            journalFlush.write(out, "voting_journal_flush_seconds", "");
+            counter(out, "voting_journal_votes_total", "Votes made durable by the journal.", journalVotes.sum());
+            gauge(out, "voting_journal_queue_depth", "Vote journal records queued and not yet written.", voteStore.queued());
+            header(out, "voting_snapshot_write_seconds", "histogram", "Time to write the binary snapshot.");
+            snapshotWrite.write(out, "voting_snapshot_write_seconds", "");
+            
+            gauge(out, "voting_persistence_queue_depth", "Table saves queued or waiting for their table's rewrite.", persistence.pending());
+            counter(out, "voting_persistence_failures_total", "Table rewrites that failed.", persistence.failures());
+            header(out, "voting_persistence_flush_seconds", "histogram", "Time to write, fsync and rename one table.");
+            for (Persistence.Table table : persistence.tables()) {
+                table.flushes.write(out, "voting_persistence_flush_seconds", "table=\"" + table.name + "\",mode=\"" + table.mode + "\"");
+            }
+            
+            // Skip list sizes are a traversal, which is fine at scrape intervals
+            header(out, "voting_records", "gauge", "Records held in memory, by table.");
+            out.append("voting_records{table=\"voters\"} ").append(voters.size()).append('\n');
+            out.append("voting_records{table=\"votes\"} ").append(voteStore.size()).append('\n');
+            out.append("voting_records{table=\"candidates\"} ").append(candidates.size()).append('\n');
+            out.append("voting_records{table=\"sections\"} ").append(sections.size()).append('\n');
+            gauge(out, "voting_voter_registry_bytes", "Approximate heap held by the voter registry.", voters.bytes());
+            return out.toString();
+        }
+        
+        private static void header(StringBuilder out, String name, String type, String help) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+        
+        private static void counter(StringBuilder out, String name, String help, long value) {
+            header(out, name, "counter", help);
+            out.append(name).append(' ').append(value).append('\n');
+        }
+        
+        private static void gauge(StringBuilder out, String name, String help, long value) {
+            header(out, name, "gauge", help);
+            out.append(name).append(' ').append(value).append('\n');
+        }
+        
+        private static String seconds(long nanos) {
+            return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+        }
+    }
+    
+    /**
+     * Running vote counts per (section, candidate), plus the same counts across all
+     * sections. LongAdder cells keep concurrent votes for one candidate from contending,
+     * so results are O(candidates) instead of a scan over every vote.
+     */
+    static class VoteTally {
+        private final Map<Long, Map<Long, LongAdder>> bySection = new ConcurrentHashMap<>();
+        private final Map<Long, LongAdder> sectionTotals = new ConcurrentHashMap<>();
+        private final Map<Long, LongAdder> overall = new ConcurrentHashMap<>();
+        private final LongAdder grandTotal = new LongAdder();
+        
+        public void record(Vote vote) {
+            long sectionId = vote.getSectionId();
+            long candidateId = vote.getCandidateId();
+            bySection.computeIfAbsent(sectionId, k -> new ConcurrentHashMap<>())
+                     .computeIfAbsent(candidateId, k -> new LongAdder()).increment();
+            sectionTotals.computeIfAbsent(sectionId, k -> new LongAdder()).increment();
+            overall.computeIfAbsent(candidateId, k -> new LongAdder()).increment();
+            grandTotal.increment();
+        }
+        
+        /** Takes back one recorded vote; votes are only ever removed one at a time on a follower. */
+        public void remove(Vote vote) {
+            long sectionId = vote.getSectionId();
+            long candidateId = vote.getCandidateId();
+            Map<Long, LongAdder> counts = bySection.get(sectionId);
+            LongAdder count = counts == null ? null : counts.get(candidateId);
+            if (count == null) return;
+            count.decrement();
+            sectionTotals.get(sectionId).decrement();
+            overall.get(candidateId).decrement();
+            grandTotal.decrement();
+        }
+        
+        /**
+         * Drops a section's counters and takes its votes back out of the overall counts,
+         * returning how many votes each candidate lost.
+         */
+        public Map<Long, Long> removeSection(long sectionId) {
+            Map<Long, LongAdder> counts = bySection.remove(sectionId);
+            sectionTotals.remove(sectionId);
+            Map<Long, Long> removed = new HashMap<>();
+            if (counts == null) return removed;
+            for (Map.Entry<Long, LongAdder> entry : counts.entrySet()) {
+                long n = entry.getValue().sum();
+                LongAdder candidateTotal = overall.get(entry.getKey());
+                if (candidateTotal != null) candidateTotal.add(-n);
+                grandTotal.add(-n);
+                removed.put(entry.getKey(), n);
+            }
+            return removed;
+        }
+        
+        /** Recounts from scratch; parts are counted in parallel, typically one per vote shard. */
+        public void rebuild(List<Collection<Vote>> parts) {
+            bySection.clear();
+            sectionTotals.clear();
+            overall.clear();
+            grandTotal.reset();
+            parts.parallelStream().forEach(part -> {
+                for (Vote vote : part) record(vote);
+            });
+        }
+        
+        /** Votes for a candidate in one section, or across all sections when sectionId is null. */
+        public long count(Long sectionId, long candidateId) {
+            Map<Long, LongAdder> counts = sectionId == null ? overall : bySection.get(sectionId);
+            if (counts == null) return 0;
+            LongAdder adder = counts.get(candidateId);
+            return adder == null ? 0 : adder.sum();
+        }
+        
+        public long total(Long sectionId) {
+            if (sectionId == null) return grandTotal.sum();
+            LongAdder adder = sectionTotals.get(sectionId);
+            return adder == null ? 0 : adder.sum();
+        }
+    }
+    
+    /**
+     * How many ballots each candidate holds, counting ones still being journaled. (The
+     * candidates standing in each section are listed from the published CatalogView.) The
+     * ballot count doubles as the delete gate: deleting swaps a zero count for RETIRED and
+     * a ballot is only counted against a candidate that is not retired, so a candidate
+     * with votes is never deleted and a deleted candidate never receives a vote.
+     */
+    static class CandidateIndex {
+        private static final long RETIRED = -1;
+        
+        private final Map<Long, AtomicLong> ballotCounts = new ConcurrentHashMap<>();
+        
+        /** Indexes a candidate already in the table; its ballot count starts at zero. */
+        public void add(Candidate candidate) {
+            ballotCounts.putIfAbsent(candidate.getId(), new AtomicLong());
+        }
+        
+        public void remove(Candidate candidate) {
+            ballotCounts.remove(candidate.getId());
+        }
+        
+        /** Counts a ballot for the candidate; false if there is no such candidate or it is being deleted. */
+        public boolean reserveBallot(long candidateId) {
+            AtomicLong count = ballotCounts.get(candidateId);
+            if (count == null) return false;
+            while (true) {
+                long current = count.get();
+                if (current == RETIRED) return false;
+                if (count.compareAndSet(current, current + 1)) return true;
+            }
+        }
+        
+        /** Takes back a ballot that was not recorded after all. */
+        public void releaseBallot(long candidateId) {
+            AtomicLong count = ballotCounts.get(candidateId);
+            if (count != null) count.decrementAndGet();
+        }
+        
+        /** Takes back ballots deleted with their section, as returned by VoteTally.removeSection. */
+        public void ballotsRemoved(Map<Long, Long> removed) {
+            for (Map.Entry<Long, Long> entry : removed.entrySet()) {
+                AtomicLong count = ballotCounts.get(entry.getKey());
+                if (count != null) count.addAndGet(-entry.getValue());
+            }
+        }
+        
+        /** Marks a candidate with no ballots as deleted, returning false if it has any. */
+        public boolean retire(long candidateId) {
+            AtomicLong count = ballotCounts.get(candidateId);
+            return count != null && count.compareAndSet(0, RETIRED);
+        }
+        
+        public void clear() {
+            ballotCounts.clear();
+        }
+        
+        /** Re-indexes the candidate table, taking each candidate's ballot count from the tally. */
+        public void rebuild(Collection<Candidate> all, VoteTally tally) {
+            clear();
+            for (Candidate candidate : all) {
+                add(candidate);
+                ballotCounts.get(candidate.getId()).set(tally.count(null, candidate.getId()));
+            }
+        }
+    }
+    
+    // Data classes
+    static class Voter {
+        private String voterId;
+        private String name;
+        private int age;
+        private String gender;
+        
+        public Voter(String voterId, String name, int age, String gender) {
+            this.voterId = voterId;
+            this.name = name;
+            this.age = age;
+            this.gender = gender;
+        }
+        
+        public String getVoterId() { return voterId; }
+        public String getName() { return name; }
+        public int getAge() { return age; }
+        public String getGender() { return gender; }
+    }
+    
+    static class Candidate {
+        private long id;
+        private String name;
+        private String party;
+        private int age;
+        private String gender;
+        private long sectionId;
+        
+        public Candidate(long id, String name, String party, int age, String gender) {
+            this.id = id;
+            this.name = name;
+            this.party = party;
+            this.age = age;
+            this.gender = gender;
+            this.sectionId = 0;
+        }
+        
+        public long getId() { return id; }
+        public String getName() { return name; }
+        public String getParty() { return party; }
+        public int getAge() { return age; }
+        public String getGender() { return gender; }
+        public long getSectionId() { return sectionId; }
+        public void setSectionId(long sectionId) { this.sectionId = sectionId; }
+    }
+    
+    static class Vote {
+        private String voterId;
+        private long candidateId;
+        private long sectionId;
+        private String timestamp;
+        // Idempotency key of a kiosk batch ballot, null for votes cast one at a time
+        private String key;
+        
+        public Vote(String voterId, long candidateId, String timestamp) {
+            this.voterId = voterId;
+            this.candidateId = candidateId;
+            this.sectionId = 0;
+            this.timestamp = timestamp;
+        }
+
+        public Vote(String voterId, long candidateId, long sectionId, String timestamp) {
+            this(voterId, candidateId, sectionId, timestamp, null);
+        }
+        
+        public Vote(String voterId, long candidateId, long sectionId, String timestamp, String key) {
             this.voterId = voterId;
             this.candidateId = candidateId;
             this.sectionId = sectionId;
             this.timestamp = timestamp;
+            this.key = key;
         }
 
         public String getVoterId() { return voterId; }
         public long getCandidateId() { return candidateId; }
         public long getSectionId() { return sectionId; }
         public String getTimestamp() { return timestamp; }
+        public String getKey() { return key; }
     }
     
     static class VotingSection {
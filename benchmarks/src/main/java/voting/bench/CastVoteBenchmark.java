@@ -0,0 +1,111 @@
+package voting.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * castVote end to end: the duplicate check, the shard insert and waiting for the shard
+ * journal's group commit to fsync. Each call votes as a fresh voter so none are rejected as
+ * repeats. The vote store lives in a temporary directory; -p flushIntervalMs=0 fsyncs every
+ * batch as soon as it is taken. The threaded variant shows how far group commit amortizes
+ * fsync, with ballots spread over every section's journal; the batch variant sends
+ * BATCH_SIZE kiosk ballots per call to /api/vote/batch, so divide its score accordingly.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class CastVoteBenchmark {
+    static final int BATCH_SIZE = 100;
+    
+    @Param({"10000", "1000000"})
+    public int votes;
+    
+    @Param({"2"})
+    public long flushIntervalMs;
+    
+    private final AtomicLong nextVoter = new AtomicLong();
+    private Path dir;
+    private Object store;
+    private Object previousStore;
+    
+    @State(Scope.Thread)
+    public static class Client {
+        Object handler;
+        
+        @Setup
+        public void setup() throws Throwable {
+            handler = Server.handler();
+        }
+    }
+    
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        dir = Files.createTempDirectory("castvote");
+        previousStore = Server.get("voteStore");
+        store = Server.NEW_VOTE_STORE.invoke(dir, flushIntervalMs, 512);
+        Server.set("voteStore", store);
+        Fixtures.populate(votes, votes);
+        nextVoter.set(votes);
+        Server.STORE_OPEN.invoke(store);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        Server.STORE_CLOSE.invoke(store);
+        Server.set("voteStore", previousStore);
+        Fixtures.deleteTree(dir);
+    }
+    
+    private Object ballot() throws Throwable {
+        long i = nextVoter.getAndIncrement();
+        String body = "voterId=" + Fixtures.voterId(i) + "&candidateId=" + Fixtures.candidateOf(i) +
+                "&sectionId=" + Fixtures.sectionOf(i);
+        return Server.request("POST /api/vote HTTP/1.1\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+    }
+    
+    private Object batch() throws Throwable {
+        long start = nextVoter.getAndAdd(BATCH_SIZE);
+        StringBuilder body = new StringBuilder(BATCH_SIZE * 32);
+        for (long i = start; i < start + BATCH_SIZE; i++) {
+            body.append("k").append(i).append(',').append(Fixtures.voterId(i)).append(',')
+                .append(Fixtures.candidateOf(i)).append(',').append(Fixtures.sectionOf(i)).append('\n');
+        }
+        return Server.request("POST /api/vote/batch HTTP/1.1\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+    }
+    
+    @Benchmark
+    public Object castVote(Client client) throws Throwable {
+        return Server.CAST_VOTE.invoke(client.handler, ballot());
+    }
+    
+    @Benchmark
+    @Threads(16)
+    public Object castVoteConcurrent(Client client) throws Throwable {
+        return Server.CAST_VOTE.invoke(client.handler, ballot());
+    }
+    
+    @Benchmark
+    public Object castVoteBatch(Client client) throws Throwable {
+        return Server.CAST_VOTE_BATCH.invoke(client.handler, batch());
+    }
+}
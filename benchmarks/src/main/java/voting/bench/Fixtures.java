@@ -0,0 +1,93 @@
+package voting.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Synthetic election data. Every voter casts one ballot, spread round-robin over the
+ * sections and over the candidates standing in each section.
+ */
+final class Fixtures {
+    static final int SECTIONS = 10;
+    static final int CANDIDATES_PER_SECTION = 8;
+    private static final String TIMESTAMP = new Date(0).toString();
+    
+    private Fixtures() {}
+    
+    static String voterId(long i) {
+        return String.format("V%09d", i);
+    }
+    
+    static long sectionOf(long i) {
+        return 1 + i % SECTIONS;
+    }
+    
+    static long candidateOf(long i) {
+        long section = sectionOf(i);
+        return (section - 1) * CANDIDATES_PER_SECTION + 1 + (i / SECTIONS) % CANDIDATES_PER_SECTION;
+    }
+    
+    /**
+     * Replaces the server's tables, and the shards of the current vote store, with voters
+     * registered voters, the first votes of whom have voted.
+     */
+    static void populate(int voters, int votes) throws Throwable {
+        Map<Long, Object> sections = Server.map("sections");
+        Map<Long, Object> candidates = Server.map("candidates");
+        Object voterTable = Server.get("voters");
+        Object store = Server.get("voteStore");
+        sections.clear();
+        candidates.clear();
+        Server.REGISTRY_CLEAR.invoke(voterTable);
+        Server.STORE_CLEAR.invoke(store);
+        List<Map<String, Object>> shards = new ArrayList<>();
+        shards.add(null);
+        
+        for (long s = 1; s <= SECTIONS; s++) {
+            sections.put(s, Server.NEW_SECTION.invoke(s, "Section " + s, "Benchmark section", "2024-01-01", "2030-12-31"));
+            for (int c = 0; c < CANDIDATES_PER_SECTION; c++) {
+                long id = (s - 1) * CANDIDATES_PER_SECTION + 1 + c;
+                Object candidate = Server.NEW_CANDIDATE.invoke(id, "Candidate " + id, "Party " + (c % 4), 40, "F");
+                Server.SET_SECTION.invoke(candidate, s);
+                candidates.put(id, candidate);
+            }
+            shards.add(Server.shardVotes(store, s));
+        }
+        // Ascending keys keep the skip list inserts at the tail and the voter roll already sorted
+        for (long i = 0; i < voters; i++) {
+            String id = voterId(i);
+            Server.REGISTRY_PUT.invoke(voterTable, Server.NEW_VOTER.invoke(id, "Voter " + i, 18 + (int) (i % 70), i % 2 == 0 ? "M" : "F"));
+            if (i < votes) {
+                shards.get((int) sectionOf(i)).put(id, Server.NEW_VOTE.invoke(id, candidateOf(i), sectionOf(i), TIMESTAMP));
+            }
+        }
+        Server.REBUILD_TALLY.invoke(Server.get("tally"), Server.STORE_PARTS.invoke(store));
+        Server.REBUILD_LEDGER.invoke(Server.get("ballots"), Server.STORE_SHARDS.invoke(store));
+        Server.REBUILD_CANDIDATE_INDEX.invoke(Server.get("candidateIndex"), candidates.values(), Server.get("tally"));
+        Server.PUBLISH_VIEWS.invoke();
+    }
+    
+    /** Writes a vote shard file in the server's on-disk format. */
+    static void writeVotes(Path file, int votes) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (long i = 0; i < votes; i++) {
+                out.write(voterId(i) + "," + candidateOf(i) + "," + sectionOf(i) + "," + TIMESTAMP);
+                out.newLine();
+            }
+        }
+    }
+    
+    static void deleteTree(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) return;
+        try (var paths = Files.walk(dir)) {
+            paths.sorted((a, b) -> b.getNameCount() - a.getNameCount()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package voting.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Request parsing and parameter lookup, the per-request work every endpoint pays before
+ * its handler runs, plus one full trip through the router for a small JSON endpoint.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpRequestBenchmark {
+    private static final byte[] GET = ("GET /api/candidates?sectionId=3 HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)\r\n" +
+            "Accept: application/json, text/plain, */*\r\n" +
+            "Accept-Language: en-US,en;q=0.9\r\n" +
+            "Accept-Encoding: gzip, deflate, br\r\n" +
+            "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final String LOGIN_BODY = "voterId=V000000042&name=Voter%2042";
+    private static final byte[] POST = ("POST /api/voter/login HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Content-Type: application/x-www-form-urlencoded\r\n" +
+            "Content-Length: " + LOGIN_BODY.length() + "\r\n" +
+            "Connection: keep-alive\r\n\r\n" + LOGIN_BODY).getBytes(StandardCharsets.ISO_8859_1);
+    
+    private Object parser;
+    private Object handler;
+    
+    @Setup
+    public void setup() throws Throwable {
+        Fixtures.populate(1000, 500);
+        parser = Server.parser();
+        handler = Server.handler();
+    }
+    
+    @Benchmark
+    public int parseGet() throws Throwable {
+        return (int) Server.PARSE.invoke(parser, GET, 0, GET.length, Server.NEW_REQUEST.invoke());
+    }
+    
+    @Benchmark
+    public void parseGetQueryParam(Blackhole bh) throws Throwable {
+        Object request = Server.NEW_REQUEST.invoke();
+        Server.PARSE.invoke(parser, GET, 0, GET.length, request);
+        bh.consume(Server.QUERY_PARAM.invoke(request, "sectionId"));
+    }
+    
+    /** Form body parameters, looked up the way loginVoter and castVote read them. */
+    @Benchmark
+    public void parsePostParams(Blackhole bh) throws Throwable {
+        Object request = Server.NEW_REQUEST.invoke();
+        Server.PARSE.invoke(parser, POST, 0, POST.length, request);
+        bh.consume(Server.PARAM.invoke(request, "voterId"));
+        bh.consume(Server.PARAM.invoke(request, "name"));
+    }
+    
+    @Benchmark
+    public Object handleRequest() throws Throwable {
+        Object request = Server.NEW_REQUEST.invoke();
+        Server.PARSE.invoke(parser, GET, 0, GET.length, request);
+        return Server.HANDLE_REQUEST.invoke(handler, request);
+    }
+}
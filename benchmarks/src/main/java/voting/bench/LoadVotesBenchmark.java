@@ -0,0 +1,72 @@
+package voting.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Startup cost of reading one vote shard file, as loadVotes does for every section when
+ * there is no usable snapshot. Each iteration starts from an empty map and replays the
+ * whole file once.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class LoadVotesBenchmark {
+    @Param({"10000", "1000000", "10000000"})
+    public int votes;
+    
+    private Path dir;
+    private String file;
+    private ConcurrentSkipListMap<String, Object> table;
+    
+    @Setup(Level.Trial)
+    public void writeJournal() throws Exception {
+        dir = Files.createTempDirectory("loadvotes");
+        Path path = dir.resolve("section-1.csv");
+        Fixtures.writeVotes(path, votes);
+        file = path.toString();
+    }
+    
+    @Setup(Level.Iteration)
+    public void clearVotes() throws Exception {
+        table = new ConcurrentSkipListMap<>();
+        System.gc();
+    }
+    
+    @TearDown(Level.Trial)
+    public void deleteJournal() throws Exception {
+        Fixtures.deleteTree(dir);
+    }
+    
+    @Benchmark
+    public long loadVotes() throws Throwable {
+        Consumer<Object> sink = vote -> {
+            try {
+                table.put((String) Server.VOTER_ID.invoke(vote), vote);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        return (long) Server.REPLAY_VOTES.invoke(file, 0L, sink);
+    }
+}
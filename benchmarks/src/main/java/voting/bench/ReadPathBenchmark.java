@@ -0,0 +1,80 @@
+package voting.bench;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The read endpoints against a populated store. getResults goes through the ETag cache,
+ * which is what a polling client sees between votes; resultsJson is the rebuild that
+ * follows every vote. getVotersPage is one ?limit= page from the middle of the roll,
+ * getVotersAll streams the whole roll to a sink.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class ReadPathBenchmark {
+    @Param({"10000", "1000000", "10000000"})
+    public int votes;
+    
+    private Object handler;
+    private Object resultsRequest;
+    private Object votersPageRequest;
+    private Object votersAllRequest;
+    
+    @Setup
+    public void setup() throws Throwable {
+        Fixtures.populate(votes, votes);
+        handler = Server.handler();
+        resultsRequest = Server.request("GET /api/results?sectionId=3 HTTP/1.1\r\n\r\n");
+        votersPageRequest = Server.request("GET /api/voters?limit=100&after=" + Fixtures.voterId(votes / 2) + " HTTP/1.1\r\n\r\n");
+        votersAllRequest = Server.request("GET /api/voters HTTP/1.1\r\n\r\n");
+    }
+    
+    @Benchmark
+    public Object getResults() throws Throwable {
+        return Server.GET_RESULTS.invoke(handler, resultsRequest);
+    }
+    
+    @Benchmark
+    public Object resultsJsonSection() throws Throwable {
+        return Server.RESULTS_JSON.invoke(handler, (Long) 3L);
+    }
+    
+    @Benchmark
+    public Object resultsJsonOverall() throws Throwable {
+        return Server.RESULTS_JSON.invoke(handler, (Long) null);
+    }
+    
+    @Benchmark
+    public Object getCandidates() throws Throwable {
+        return Server.GET_CANDIDATES.invoke(handler, (Long) 3L);
+    }
+    
+    @Benchmark
+    public boolean getVotersPage() throws Throwable {
+        Object response = Server.GET_VOTERS.invoke(handler, votersPageRequest);
+        return (boolean) Server.WRITE_RESPONSE.invoke(response, OutputStream.nullOutputStream(), true, true);
+    }
+    
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean getVotersAll() throws Throwable {
+        Object response = Server.GET_VOTERS.invoke(handler, votersAllRequest);
+        return (boolean) Server.WRITE_RESPONSE.invoke(response, OutputStream.nullOutputStream(), true, true);
+    }
+}
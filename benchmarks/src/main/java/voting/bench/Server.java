@@ -0,0 +1,165 @@
+package voting.bench;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Handles onto VotingSystemServer internals. The server is a single file in the default
+ * package, which a named package cannot import, and JMH only generates code for
+ * benchmarks in named packages, so everything is reached through method handles. The
+ * handles are static finals, which lets the JIT inline through them like direct calls.
+ */
+final class Server {
+    static final Class<?> SERVER = type("VotingSystemServer");
+    static final Class<?> CLIENT_HANDLER = type("VotingSystemServer$ClientHandler");
+    static final Class<?> HTTP_REQUEST = type("VotingSystemServer$HttpRequest");
+    static final Class<?> PARSER = type("VotingSystemServer$HttpRequestParser");
+    static final Class<?> RESPONSE = type("VotingSystemServer$Response");
+    static final Class<?> VOTE_STORE = type("VotingSystemServer$VoteStore");
+    static final Class<?> SHARD = type("VotingSystemServer$VoteStore$Shard");
+    static final Class<?> TALLY = type("VotingSystemServer$VoteTally");
+    static final Class<?> LEDGER = type("VotingSystemServer$BallotLedger");
+    static final Class<?> CANDIDATE_INDEX = type("VotingSystemServer$CandidateIndex");
+    static final Class<?> VOTER = type("VotingSystemServer$Voter");
+    static final Class<?> VOTER_REGISTRY = type("VotingSystemServer$VoterRegistry");
+    static final Class<?> CANDIDATE = type("VotingSystemServer$Candidate");
+    static final Class<?> VOTE = type("VotingSystemServer$Vote");
+    static final Class<?> SECTION = type("VotingSystemServer$VotingSection");
+    
+    static final MethodHandle NEW_HANDLER = constructor(CLIENT_HANDLER, Socket.class);
+    static final MethodHandle NEW_REQUEST = constructor(HTTP_REQUEST);
+    static final MethodHandle NEW_PARSER = constructor(PARSER, int.class, int.class, int.class, Set.class, int.class);
+    static final MethodHandle NEW_VOTE_STORE = constructor(VOTE_STORE, Path.class, long.class, int.class);
+    static final MethodHandle NEW_VOTER = constructor(VOTER, String.class, String.class, int.class, String.class);
+    static final MethodHandle NEW_VOTER_REGISTRY = constructor(VOTER_REGISTRY);
+    static final MethodHandle NEW_CANDIDATE = constructor(CANDIDATE, long.class, String.class, String.class, int.class, String.class);
+    static final MethodHandle NEW_VOTE = constructor(VOTE, String.class, long.class, long.class, String.class);
+    static final MethodHandle NEW_SECTION = constructor(SECTION, long.class, String.class, String.class, String.class, String.class);
+    
+    static final MethodHandle PARSE = method(PARSER, "parse", byte[].class, int.class, int.class, HTTP_REQUEST);
+    static final MethodHandle PARAM = method(HTTP_REQUEST, "param", String.class);
+    static final MethodHandle QUERY_PARAM = method(HTTP_REQUEST, "queryParam", String.class);
+    static final MethodHandle HANDLE_REQUEST = method(CLIENT_HANDLER, "handleRequest", HTTP_REQUEST);
+    static final MethodHandle CAST_VOTE = method(CLIENT_HANDLER, "castVote", HTTP_REQUEST);
+    static final MethodHandle CAST_VOTE_BATCH = method(CLIENT_HANDLER, "castVoteBatch", HTTP_REQUEST);
+    static final MethodHandle GET_RESULTS = method(CLIENT_HANDLER, "getResults", HTTP_REQUEST);
+    static final MethodHandle RESULTS_JSON = method(CLIENT_HANDLER, "resultsJson", Long.class);
+    static final MethodHandle GET_CANDIDATES = method(CLIENT_HANDLER, "getCandidates", Long.class);
+    static final MethodHandle GET_VOTERS = method(CLIENT_HANDLER, "getVoters", HTTP_REQUEST);
+    static final MethodHandle WRITE_RESPONSE = method(RESPONSE, "writeTo", OutputStream.class, boolean.class, boolean.class);
+    static final MethodHandle STORE_SHARD = method(VOTE_STORE, "shard", long.class);
+    static final MethodHandle STORE_PARTS = method(VOTE_STORE, "parts");
+    static final MethodHandle STORE_SHARDS = method(VOTE_STORE, "shards");
+    static final MethodHandle STORE_CLEAR = method(VOTE_STORE, "clear");
+    static final MethodHandle STORE_OPEN = method(VOTE_STORE, "open");
+    static final MethodHandle STORE_CLOSE = method(VOTE_STORE, "close");
+    static final MethodHandle SHARD_VOTES = getter(SHARD, "votes");
+    static final MethodHandle VOTER_ID = method(VOTE, "getVoterId");
+    static final MethodHandle REGISTRY_PUT = method(VOTER_REGISTRY, "put", VOTER);
+    static final MethodHandle REGISTRY_CLEAR = method(VOTER_REGISTRY, "clear");
+    static final MethodHandle REGISTRY_ROLL = method(VOTER_REGISTRY, "roll");
+    static final MethodHandle REGISTRY_BYTES = method(VOTER_REGISTRY, "bytes");
+    static final MethodHandle SET_SECTION = method(CANDIDATE, "setSectionId", long.class);
+    static final MethodHandle REBUILD_TALLY = method(TALLY, "rebuild", List.class);
+    static final MethodHandle REBUILD_LEDGER = method(LEDGER, "rebuild", Collection.class);
+    static final MethodHandle REBUILD_CANDIDATE_INDEX = method(CANDIDATE_INDEX, "rebuild", Collection.class, TALLY);
+    static final MethodHandle REPLAY_VOTES = method(SERVER, "replayVotes", String.class, long.class, Consumer.class);
+    static final MethodHandle PUBLISH_VIEWS = method(SERVER, "publishViews");
+    static final MethodHandle BULK_PATHS = getter(CLIENT_HANDLER, "BULK_PATHS");
+    
+    private Server() {}
+    
+    /** A parser with the server's default limits. */
+    static Object parser() throws Throwable {
+        return NEW_PARSER.invoke(64, 8192, 1 << 20, BULK_PATHS.invoke(), 64 << 20);
+    }
+    
+    /** A handler with no socket, the way the NIO engine uses one to route requests. */
+    static Object handler() throws Throwable {
+        return NEW_HANDLER.invoke((Socket) null);
+    }
+    
+    /** Parses one raw request; the text must hold the whole message, body included. */
+    static Object request(String raw) throws Throwable {
+        byte[] data = raw.getBytes(StandardCharsets.ISO_8859_1);
+        Object request = NEW_REQUEST.invoke();
+        int consumed = (int) PARSE.invoke(parser(), data, 0, data.length, request);
+        if (consumed != data.length) throw new IllegalArgumentException("Incomplete request: " + raw);
+        return request;
+    }
+    
+    static Object get(String field) throws ReflectiveOperationException {
+        return field(field).get(null);
+    }
+    
+    static void set(String field, Object value) throws ReflectiveOperationException {
+        field(field).set(null, value);
+    }
+    
+    @SuppressWarnings("unchecked")
+    static <K> Map<K, Object> map(String field) throws ReflectiveOperationException {
+        return (Map<K, Object>) get(field);
+    }
+    
+    /** The vote map of one section's shard in the given store, created if missing. */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> shardVotes(Object store, long sectionId) throws Throwable {
+        return (Map<String, Object>) SHARD_VOTES.invoke(STORE_SHARD.invoke(store, sectionId));
+    }
+    
+    private static Field field(String name) throws NoSuchFieldException {
+        Field field = SERVER.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+    
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    private static MethodHandle constructor(Class<?> owner, Class<?>... parameters) {
+        try {
+            Constructor<?> constructor = owner.getDeclaredConstructor(parameters);
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    private static MethodHandle method(Class<?> owner, String name, Class<?>... parameters) {
+        try {
+            Method method = owner.getDeclaredMethod(name, parameters);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    private static MethodHandle getter(Class<?> owner, String name) {
+        try {
+            Field field = owner.getDeclaredField(name);
+            field.setAccessible(true);
+            return MethodHandles.lookup().unreflectGetter(field);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package voting.bench;
+
+import java.lang.ref.Reference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Heap taken by a roll of synthetic voters in the server's VoterRegistry, and by the
+ * layout it replaced: a ConcurrentSkipListMap of Voter objects plus the Voter[] the list
+ * endpoint was served from. Every voter's fields are split out of a CSV line, as the
+ * server's loader does, so the old layout repeats the gender strings the same way.
+ *
+ * java -Xmx8g -cp benchmarks/target/benchmarks.jar voting.bench.VoterMemory [voters]
+ */
+final class VoterMemory {
+    private VoterMemory() {}
+    
+    public static void main(String[] args) throws Throwable {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        
+        long base = usedHeap();
+        Map<String, Object> map = new ConcurrentSkipListMap<>();
+        for (long i = 0; i < count; i++) {
+            Object voter = voter(i);
+            map.put(Fixtures.voterId(i), voter);
+        }
+        Object[] view = map.values().toArray();
+        long mapBytes = usedHeap() - base;
+        Reference.reachabilityFence(view);
+        map = null;
+        view = null;
+        
+        base = usedHeap();
+        Object registry = Server.NEW_VOTER_REGISTRY.invoke();
+        for (long i = 0; i < count; i++) Server.REGISTRY_PUT.invoke(registry, voter(i));
+        Object roll = Server.REGISTRY_ROLL.invoke(registry);
+        long registryBytes = usedHeap() - base;
+        long estimate = (long) Server.REGISTRY_BYTES.invoke(registry);
+        Reference.reachabilityFence(roll);
+        
+        System.out.printf("%,d voters%n", count);
+        System.out.printf("%-44s %,15d bytes  %6.1f bytes/voter%n", "ConcurrentSkipListMap<String, Voter> + Voter[]", mapBytes, mapBytes / (double) count);
+        System.out.printf("%-44s %,15d bytes  %6.1f bytes/voter%n", "VoterRegistry + roll", registryBytes, registryBytes / (double) count);
+        System.out.printf("%-44s %,15d bytes%n", "VoterRegistry.bytes() estimate, without roll", estimate);
+        System.out.printf("%.1fx smaller%n", mapBytes / (double) Math.max(1, registryBytes));
+    }
+    
+    private static Object voter(long i) throws Throwable {
+        String[] parts = (Fixtures.voterId(i) + ",Voter " + i + "," + (18 + i % 70) + "," + (i % 2 == 0 ? "male" : "female")).split(",");
+        return Server.NEW_VOTER.invoke(parts[0], parts[1], Integer.parseInt(parts[2]), parts[3]);
+    }
+    
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
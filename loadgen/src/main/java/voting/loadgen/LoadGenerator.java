@@ -0,0 +1,410 @@
+package voting.loadgen;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Election-day load generator for VotingSystemServer.
+ *
+ * Arrivals follow a fixed schedule at the target rate whether or not earlier requests
+ * have finished (open loop), and every latency is measured from the moment the request
+ * was due rather than when it was actually sent, so a stalled server shows up as queueing
+ * in the percentiles instead of quietly lowering the offered load. Each arrival is either
+ * a results poll or a voter session: login, the candidates of one section, then a vote for
+ * one of them, each step issued as soon as the previous one answers (plus --think-ms).
+ *
+ * Options (all --name=value):
+ *   --target=URL          server to load (default http://localhost:8080)
+ *   --server=PATH         start a local server from this jar or classes directory first,
+ *                         seeded with the voter population; it must be free to take port 8080
+ *   --server-opts="..."   extra JVM options for the local server
+ *   --rate=N              arrivals per second (default 100)
+ *   --duration=S          measured seconds (default 30)
+ *   --warmup=S            seconds run before measuring (default 5)
+ *   --voters=N            voter population; each voter votes once (default 100000)
+ *   --sections=N          sections in the seeded election (default 10)
+ *   --candidates=N        candidates per seeded section (default 8)
+ *   --results-share=F     fraction of arrivals that poll results (default 0.2)
+ *   --think-ms=N          pause between the steps of a session (default 0)
+ *   --arrivals=poisson|uniform   inter-arrival distribution (default poisson)
+ *   --timeout-ms=N        per request timeout (default 10000)
+ *   --seed                register the voter population on --target through /api/voter/bulk
+ */
+public class LoadGenerator {
+    enum Endpoint {
+        LOGIN("POST /api/voter/login"),
+        CANDIDATES("GET /api/candidates"),
+        VOTE("POST /api/vote"),
+        RESULTS("GET /api/results");
+
+        final String label;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder ok = new LongAdder();
+        final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+        Endpoint(String label) {
+            this.label = label;
+        }
+
+        void error(String kind) {
+            errors.computeIfAbsent(kind, k -> new LongAdder()).increment();
+        }
+
+        long errorCount() {
+            return errors.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+    }
+
+    static final String VOTER_PREFIX = "LG";
+    private static final Pattern CANDIDATE_ID = Pattern.compile("\"id\"\\s*:\\s*(\\d+)");
+
+    private final Map<String, String> options;
+    private final URI target;
+    private final HttpClient client;
+    private final Duration timeout;
+    private final int population;
+    private final int sections;
+    private final double resultsShare;
+    private final long thinkMillis;
+    private final AtomicLong nextVoter = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong maxInFlight = new AtomicLong();
+    private volatile long measureFrom;
+    private volatile long measureUntil;
+
+    LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.target = URI.create(options.getOrDefault("target", "http://localhost:8080"));
+        this.timeout = Duration.ofMillis(longOption("timeout-ms", 10000));
+        this.population = (int) longOption("voters", 100000);
+        this.sections = (int) longOption("sections", 10);
+        this.resultsShare = Double.parseDouble(options.getOrDefault("results-share", "0.2"));
+        this.thinkMillis = longOption("think-ms", 0);
+        ExecutorService callbacks = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()), r -> {
+            Thread t = new Thread(r, "loadgen-http");
+            t.setDaemon(true);
+            return t;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(timeout)
+                .executor(callbacks)
+                .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        // Retire pooled connections before the server's 5 s idle timeout can close one mid-request
+        if (System.getProperty("jdk.httpclient.keepalive.timeout") == null) {
+            System.setProperty("jdk.httpclient.keepalive.timeout", "4");
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        LocalServer server = null;
+        if (options.containsKey("server")) {
+            server = LocalServer.start(Path.of(options.get("server")), options.getOrDefault("server-opts", ""),
+                    generator.population, generator.sections, (int) generator.longOption("candidates", 8));
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        } else if (options.containsKey("seed")) {
+            generator.seed();
+        }
+        try {
+            generator.run();
+        } finally {
+            if (server != null) server.stop();
+        }
+    }
+
+    void run() throws InterruptedException {
+        double rate = Double.parseDouble(options.getOrDefault("rate", "100"));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(longOption("warmup", 5));
+        long durationNanos = TimeUnit.SECONDS.toNanos(longOption("duration", 30));
+        boolean poisson = !"uniform".equals(options.getOrDefault("arrivals", "poisson"));
+        System.out.printf(Locale.ROOT, "Offering %.1f arrivals/s to %s for %ds after %ds warm-up (%.0f%% results polls, %,d voters)%n",
+                rate, target, TimeUnit.NANOSECONDS.toSeconds(durationNanos), TimeUnit.NANOSECONDS.toSeconds(warmupNanos),
+                resultsShare * 100, population);
+
+        long start = System.nanoTime();
+        measureFrom = start + warmupNanos;
+        measureUntil = measureFrom + durationNanos;
+        Random random = new Random();
+        double intervalNanos = 1e9 / rate;
+        double offset = 0;
+        long arrivals = 0;
+        long maxLag = 0;
+        for (long due = start; due < measureUntil; due = start + (long) offset) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            maxLag = Math.max(maxLag, -wait);
+            arrive(due);
+            arrivals++;
+            offset += poisson ? -Math.log(1 - random.nextDouble()) * intervalNanos : intervalNanos;
+        }
+
+        // Let stragglers finish; anything still out after the timeout has been counted as failed
+        long drainUntil = System.nanoTime() + timeout.toNanos() + TimeUnit.SECONDS.toNanos(1);
+        while (inFlight.get() > 0 && System.nanoTime() < drainUntil) {
+            Thread.sleep(50);
+        }
+        report(arrivals, TimeUnit.NANOSECONDS.toMillis(maxLag), (System.nanoTime() - measureFrom) / 1e9);
+    }
+
+    private void arrive(long due) {
+        if (ThreadLocalRandom.current().nextDouble() < resultsShare) {
+            long section = 1 + ThreadLocalRandom.current().nextInt(sections);
+            send(Endpoint.RESULTS, due, get("/api/results?sectionId=" + section));
+            return;
+        }
+        String voterId = voterId(nextVoter.getAndIncrement() % population);
+        long section = 1 + ThreadLocalRandom.current().nextInt(sections);
+        send(Endpoint.LOGIN, due, post("/api/voter/login", "voterId=" + voterId))
+            .thenCompose(login -> login == null ? done() : after(candidatesDue ->
+                send(Endpoint.CANDIDATES, candidatesDue, get("/api/candidates?sectionId=" + section))))
+            .thenCompose(candidates -> candidates == null ? done() : after(voteDue -> {
+                List<String> ids = new ArrayList<>();
+                Matcher m = CANDIDATE_ID.matcher(candidates);
+                while (m.find()) ids.add(m.group(1));
+                if (ids.isEmpty()) {
+                    if (voteDue >= measureFrom && voteDue < measureUntil) Endpoint.VOTE.error("no candidates");
+                    return done();
+                }
+                String candidateId = ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+                return send(Endpoint.VOTE, voteDue, post("/api/vote",
+                        "voterId=" + voterId + "&candidateId=" + candidateId + "&sectionId=" + section));
+            }));
+    }
+
+    /** Runs the next step of a session once the think time has passed, passing the time it was due. */
+    private CompletableFuture<String> after(java.util.function.LongFunction<CompletableFuture<String>> step) {
+        if (thinkMillis == 0) return step.apply(System.nanoTime());
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(thinkMillis);
+        return CompletableFuture.supplyAsync(() -> due, CompletableFuture.delayedExecutor(thinkMillis, TimeUnit.MILLISECONDS))
+                .thenCompose(step::apply);
+    }
+
+    private static CompletableFuture<String> done() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Sends a request that was due at the given nanoTime and completes with its body, or
+     * with null when it failed. Requests due outside the measured window are not recorded.
+     */
+    private CompletableFuture<String> send(Endpoint endpoint, long due, HttpRequest request) {
+        long n = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(n, Math::max);
+        boolean measured = due >= measureFrom && due < measureUntil;
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+            .handle((response, error) -> {
+                inFlight.decrementAndGet();
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due);
+                if (measured) endpoint.latency.record(micros);
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if (measured) endpoint.error(cause.getClass().getSimpleName());
+                    return null;
+                }
+                if (response.statusCode() >= 400) {
+                    if (measured) endpoint.error("HTTP " + response.statusCode());
+                    return null;
+                }
+                if (measured) endpoint.ok.increment();
+                return response.body();
+            });
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(target.resolve(path)).timeout(timeout).GET().build();
+    }
+
+    private HttpRequest post(String path, String form) {
+        return HttpRequest.newBuilder(target.resolve(path)).timeout(timeout)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build();
+    }
+
+    private void report(long arrivals, long maxLagMillis, double seconds) {
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%,d arrivals scheduled; generator fell behind schedule by at most %d ms; peak %d requests in flight%n",
+                arrivals, maxLagMillis, maxInFlight.get());
+        System.out.printf(Locale.ROOT, "Latency in ms, measured from when each request was due, over %.1f s%n%n", seconds);
+        System.out.printf(Locale.ROOT, "%-22s %9s %9s %8s %8s %8s %8s %8s %8s %9s%n",
+                "endpoint", "requests", "req/s", "errors", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+        for (Endpoint e : Endpoint.values()) {
+            LatencyHistogram h = e.latency;
+            System.out.printf(Locale.ROOT, "%-22s %9d %9.1f %8d %8.2f %8.2f %8.2f %8.2f %8.2f %9.2f%n",
+                    e.label, h.count(), h.count() / seconds, e.errorCount(),
+                    h.percentile(0.50) / 1e3, h.percentile(0.90) / 1e3, h.percentile(0.99) / 1e3,
+                    h.percentile(0.999) / 1e3, h.percentile(0.9999) / 1e3, h.max() / 1e3);
+        }
+        boolean header = false;
+        for (Endpoint e : Endpoint.values()) {
+            for (Map.Entry<String, LongAdder> error : e.errors.entrySet()) {
+                if (!header) {
+                    System.out.println();
+                    System.out.println("Errors:");
+                    header = true;
+                }
+                System.out.printf(Locale.ROOT, "  %-22s %-28s %d%n", e.label, error.getKey(), error.getValue().sum());
+            }
+        }
+        if (nextVoter.get() > population) {
+            System.out.printf(Locale.ROOT, "%nNote: %,d sessions for a population of %,d, so later votes were repeat ballots (HTTP 400)%n",
+                    nextVoter.get(), population);
+        }
+    }
+
+    /** Registers the voter population on an already running server. */
+    private void seed() throws IOException, InterruptedException {
+        int chunk = 50000;
+        for (int from = 0; from < population; from += chunk) {
+            StringBuilder csv = new StringBuilder("voterId,name,age,gender\n");
+            for (int i = from; i < Math.min(population, from + chunk); i++) {
+                csv.append(voterId(i)).append(",Load Voter ").append(i).append(',').append(18 + i % 70)
+                   .append(',').append(i % 2 == 0 ? "male" : "female").append('\n');
+            }
+            HttpRequest request = HttpRequest.newBuilder(target.resolve("/api/voter/bulk"))
+                    .timeout(Duration.ofMinutes(5))
+                    .header("Content-Type", "text/csv")
+                    .POST(HttpRequest.BodyPublishers.ofString(csv.toString()))
+                    .build();
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IOException("Seeding voters failed: HTTP " + response.statusCode() + " " + response.body());
+            }
+        }
+        System.out.printf(Locale.ROOT, "Registered %,d voters on %s%n", population, target);
+    }
+
+    static String voterId(long i) {
+        return String.format(Locale.ROOT, "%s%08d", VOTER_PREFIX, i);
+    }
+
+    private long longOption(String name, long fallback) {
+        String value = options.get(name);
+        return value == null ? fallback : Long.parseLong(value);
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) throw new IllegalArgumentException("Unexpected argument: " + arg);
+            int eq = arg.indexOf('=');
+            if (eq < 0) options.put(arg.substring(2), "true");
+            else options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    /**
+     * A server started in a scratch directory whose CSV files hold the seeded election:
+     * the voter population, the sections, and candidates spread evenly over them.
+     */
+    static class LocalServer {
+        private final Process process;
+        private final Path dir;
+        private boolean stopped;
+
+        private LocalServer(Process process, Path dir) {
+            this.process = process;
+            this.dir = dir;
+        }
+
+        static LocalServer start(Path classpath, String jvmOptions, int voters, int sections, int candidatesPerSection)
+                throws IOException, InterruptedException {
+            Path dir = Files.createTempDirectory("voting-loadgen");
+            try (BufferedWriter out = Files.newBufferedWriter(dir.resolve("voters.csv"), StandardCharsets.UTF_8)) {
+                for (int i = 0; i < voters; i++) {
+                    out.write(voterId(i) + ",Load Voter " + i + "," + (18 + i % 70) + "," + (i % 2 == 0 ? "male" : "female"));
+                    out.newLine();
+                }
+            }
+            try (BufferedWriter sectionsOut = Files.newBufferedWriter(dir.resolve("sections.csv"), StandardCharsets.UTF_8);
+                 BufferedWriter candidatesOut = Files.newBufferedWriter(dir.resolve("candidates.csv"), StandardCharsets.UTF_8)) {
+                long candidateId = 1;
+                for (int s = 1; s <= sections; s++) {
+                    sectionsOut.write(s + ",Section " + s + ",Load test section,2024-01-01T00:00,2099-12-31T23:59");
+                    sectionsOut.newLine();
+                    for (int c = 0; c < candidatesPerSection; c++, candidateId++) {
+                        candidatesOut.write(candidateId + ",Candidate " + candidateId + ",Party " + (c % 4) + ",40,female," + s);
+                        candidatesOut.newLine();
+                    }
+                }
+            }
+            Files.createFile(dir.resolve("votes.csv"));
+
+            List<String> command = new ArrayList<>();
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            if (!jvmOptions.isBlank()) command.addAll(Arrays.asList(jvmOptions.trim().split("\\s+")));
+            command.addAll(List.of("-cp", classpath.toAbsolutePath().toString(), "VotingSystemServer"));
+            File log = dir.resolve("server.log").toFile();
+            Process process = new ProcessBuilder(command).directory(dir.toFile())
+                    .redirectErrorStream(true).redirectOutput(log).start();
+            LocalServer server = new LocalServer(process, dir);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (true) {
+                try (Socket probe = new Socket("localhost", 8080)) {
+                    break;
+                } catch (ConnectException e) {
+                    if (!process.isAlive() || System.nanoTime() > deadline) {
+                        server.stop();
+                        throw new IOException("Local server did not start; see " + log, e);
+                    }
+                    Thread.sleep(100);
+                }
+            }
+            System.out.printf(Locale.ROOT, "Started local server (pid %d) in %s with %,d voters%n", process.pid(), dir, voters);
+            return server;
+        }
+
+        synchronized void stop() {
+            if (stopped) return;
+            stopped = true;
+            process.destroy();
+            try {
+                if (!process.waitFor(30, TimeUnit.SECONDS)) process.destroyForcibly().waitFor();
+                try (var paths = Files.walk(dir)) {
+                    paths.sorted((a, b) -> b.getNameCount() - a.getNameCount()).forEach(p -> p.toFile().delete());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                System.err.println("Could not remove " + dir + ": " + e.getMessage());
+            }
+        }
+    }
+}